@@ -3,14 +3,18 @@ package com.github.fakemongo;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.codecs.configuration.CodecRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.fakemongo.impl.CursorRegistry;
+import com.github.fakemongo.impl.TtlMonitor;
 import com.mongodb.DB;
 import com.mongodb.FongoBulkWriteCombiner;
 import com.mongodb.FongoDB;
@@ -72,6 +76,11 @@ public class Fongo implements /* TODO REMOVE 3.6 */ OperationExecutor {
   public static final ServerVersion V3_SERVER_VERSION = new ServerVersion(3, 0);
   public static final ServerVersion OLD_SERVER_VERSION = new ServerVersion(0, 0);
   public static final ServerVersion DEFAULT_SERVER_VERSION = V3_6_SERVER_VERSION;
+  public static final long DEFAULT_MAX_DOCUMENTS_PER_COLLECTION = 100000L;
+  // Same as ttlMonitorSleepSecs of mongod.
+  public static final long DEFAULT_TTL_MONITOR_PERIOD_MILLIS = 60000L;
+  // Expired documents removed by a collection before releasing its lock.
+  public static final int TTL_BATCH_SIZE = 1000;
 
   private final Map<String, FongoDB> dbMap = new ConcurrentHashMap<String, FongoDB>();
   private final ServerAddress serverAddress;
@@ -79,6 +88,11 @@ public class Fongo implements /* TODO REMOVE 3.6 */ OperationExecutor {
   private final String name;
   private final ServerVersion serverVersion;
   private final CodecRegistry codecRegistry;
+  private volatile boolean immutableDocuments = false;
+  private volatile long maxDocumentsPerCollection = DEFAULT_MAX_DOCUMENTS_PER_COLLECTION;
+  private volatile long maxBytesPerCollection = 0L;
+  private final TtlMonitor ttlMonitor = new TtlMonitor(this, DEFAULT_TTL_MONITOR_PERIOD_MILLIS);
+  private final CursorRegistry cursorRegistry = new CursorRegistry(CursorRegistry.DEFAULT_TIMEOUT_MILLIS);
 
   /**
    * @param name Used only for a nice toString in case you have multiple instances
@@ -191,6 +205,113 @@ public class Fongo implements /* TODO REMOVE 3.6 */ OperationExecutor {
     return codecRegistry;
   }
 
+  public boolean isImmutableDocuments() {
+    return immutableDocuments;
+  }
+
+  /**
+   * Store the documents as read-only objects : finds share the embedded documents and lists with the store instead of
+   * deep copying them, but they can't be modified by the caller (an {@link UnsupportedOperationException} is thrown).
+   * <p/>
+   * Only the collections created after this call are affected.
+   *
+   * @param immutableDocuments true to store read-only documents.
+   */
+  public void setImmutableDocuments(boolean immutableDocuments) {
+    this.immutableDocuments = immutableDocuments;
+  }
+
+  public long getMaxDocumentsPerCollection() {
+    return maxDocumentsPerCollection;
+  }
+
+  /**
+   * Limit the number of documents of each collection : an insert beyond the limit throws a {@link FongoException}.
+   * Defaults to {@link #DEFAULT_MAX_DOCUMENTS_PER_COLLECTION}.
+   *
+   * @param maxDocumentsPerCollection max number of documents, 0 for no limit.
+   */
+  public void setMaxDocumentsPerCollection(long maxDocumentsPerCollection) {
+    if (maxDocumentsPerCollection < 0) {
+      throw new IllegalArgumentException("maxDocumentsPerCollection must be positive or 0, was " + maxDocumentsPerCollection);
+    }
+    this.maxDocumentsPerCollection = maxDocumentsPerCollection;
+  }
+
+  public long getMaxBytesPerCollection() {
+    return maxBytesPerCollection;
+  }
+
+  /**
+   * Limit the estimated BSON size of each collection : an insert or an update making a collection grow beyond
+   * the limit throws a {@link FongoException}.
+   * No limit by default.
+   *
+   * @param maxBytesPerCollection max size in bytes, 0 for no limit.
+   */
+  public void setMaxBytesPerCollection(long maxBytesPerCollection) {
+    if (maxBytesPerCollection < 0) {
+      throw new IllegalArgumentException("maxBytesPerCollection must be positive or 0, was " + maxBytesPerCollection);
+    }
+    this.maxBytesPerCollection = maxBytesPerCollection;
+  }
+
+  public TtlMonitor getTtlMonitor() {
+    return ttlMonitor;
+  }
+
+  /**
+   * Time between two removals of the documents expired by the TTL indexes. Defaults to
+   * {@link #DEFAULT_TTL_MONITOR_PERIOD_MILLIS}, like mongod. The removals only start once a TTL index is created.
+   *
+   * @param period time between two removals, 0 to only remove with {@link #runTtlPass()}.
+   * @param unit   unit of the period.
+   */
+  public void setTtlMonitorPeriod(long period, TimeUnit unit) {
+    ttlMonitor.setPeriodMillis(unit.toMillis(period));
+  }
+
+  /**
+   * Remove now the documents expired by the TTL indexes of all the databases, without waiting for the monitor.
+   *
+   * @return number of removed documents.
+   */
+  public int runTtlPass() {
+    return runTtlPass(new Date());
+  }
+
+  /**
+   * Remove the documents expired at the given date by the TTL indexes of all the databases.
+   *
+   * @param now date of the pass.
+   * @return number of removed documents.
+   */
+  public int runTtlPass(Date now) {
+    int removed = 0;
+    for (FongoDB db : new ArrayList<FongoDB>(dbMap.values())) {
+      removed += db.removeExpired(now, TTL_BATCH_SIZE);
+    }
+    return removed;
+  }
+
+  /**
+   * @return the server side cursors, asked for by getMore.
+   */
+  public CursorRegistry getCursorRegistry() {
+    return cursorRegistry;
+  }
+
+  /**
+   * Time after which an unused server side cursor is removed. Defaults to
+   * {@link CursorRegistry#DEFAULT_TIMEOUT_MILLIS}, like mongod.
+   *
+   * @param timeout time after which an unused cursor is removed, 0 to never remove them.
+   * @param unit    unit of the timeout.
+   */
+  public void setCursorTimeout(long timeout, TimeUnit unit) {
+    cursorRegistry.setTimeoutMillis(unit.toMillis(timeout));
+  }
+
   private MongoClient createMongo() {
     return MockMongoClient.create(this);
   }
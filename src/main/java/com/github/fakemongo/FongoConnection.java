@@ -35,6 +35,7 @@ import org.bson.codecs.Decoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.fakemongo.impl.CursorRegistry;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BulkUpdateRequestBuilder;
@@ -51,6 +52,7 @@ import com.mongodb.FongoDBCollection;
 import com.mongodb.InsertManyWriteConcernException;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCommandException;
+import com.mongodb.MongoCursorNotFoundException;
 import com.mongodb.MongoNamespace;
 import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
@@ -547,6 +549,22 @@ public class FongoConnection implements Connection {
       final DBObject query = dbObject(command, "query");
       final List<Object> distincts = dbCollection.distinct(command.getString("key").getValue(), query);
       return reencode(commandResultDecoder, "values", bsonArray(distincts));
+    } else if (command.containsKey("planCacheListPlans")) {
+      final FongoDBCollection dbCollection = (FongoDBCollection) db.getCollection(command.get("planCacheListPlans").asString().getValue());
+      final DBObject query = dbObject(command, "query");
+      return reencode(commandResultDecoder, "plans", dbCollection.planCacheListPlans(query));
+    } else if (command.containsKey("planCacheClear")) {
+      final FongoDBCollection dbCollection = (FongoDBCollection) db.getCollection(command.get("planCacheClear").asString().getValue());
+      dbCollection.planCacheClear(dbObject(command, "query"));
+      return commandResultDecoder.decode(new BsonDocumentReader(new BsonDocument("ok", new BsonDouble(1.0))), decoderContext());
+    } else if (command.containsKey("explain")) {
+      final DBObject explain = ((FongoDB) db).explain(dbObject(command, "explain"));
+      if (explain == null) {
+        throw new MongoCommandException(new BsonDocument("ok", BsonBoolean.FALSE)
+            .append("errmsg", new BsonString("explain only handles find, count, update and delete")), this.fongo.getServerAddress());
+      }
+      explain.put("ok", 1.0);
+      return commandResultDecoder.decode(new BsonDocumentReader(bsonDocument(explain)), decoderContext());
     } else if (command.containsKey("aggregate")) {
       final DBCollection dbCollection = db.getCollection(command.get("aggregate").asString().getValue());
       final AggregationOutput aggregate = dbCollection.aggregate(dbObjects(command, "pipeline"));
@@ -556,7 +574,12 @@ public class FongoConnection implements Connection {
       if (!v3) {
         return reencode(commandResultDecoder, resultField, results);
       } else {
-        return reencode(commandResultDecoder, "cursor", new BasicDBObject("id", 0L).append("ns", dbCollection.getFullName()).append("firstBatch", results));
+        final CursorRegistry.Batches batches = CursorRegistry.batchesOf(results);
+        final BsonDocument cursor = command.getDocument("cursor");
+        final List<DBObject> firstBatch = CursorRegistry.nextBatch(batches,
+            cursor.containsKey("batchSize") ? cursor.getNumber("batchSize").intValue() : CursorRegistry.DEFAULT_FIRST_BATCH_SIZE);
+        final long cursorId = fongo.getCursorRegistry().register(dbCollection.getFullName(), batches, true);
+        return reencode(commandResultDecoder, "cursor", new BasicDBObject("id", cursorId).append("ns", dbCollection.getFullName()).append("firstBatch", firstBatch));
       }
     } else if (command.containsKey("renameCollection")) {
       ((FongoDB) db).renameCollection(command.getString("renameCollection").getValue(), command.getString("to").getValue(), command.getBoolean("dropTarget", BsonBoolean.FALSE).getValue());
@@ -569,8 +592,19 @@ public class FongoConnection implements Connection {
         DBObject keys = dbObject(bsonDocument.getDocument("key"));
         String name = bsonDocument.getString("name").getValue();
         boolean unique = bsonDocument.getBoolean("unique", BsonBoolean.FALSE).getValue();
+        boolean sparse = bsonDocument.getBoolean("sparse", BsonBoolean.FALSE).getValue();
 
-        dbCollection.createIndex(keys, name, unique);
+        final DBObject options = new BasicDBObject("name", name);
+        if (unique) {
+          options.put("unique", Boolean.TRUE);
+        }
+        if (sparse) {
+          options.put("sparse", Boolean.TRUE);
+        }
+        if (bsonDocument.containsKey("partialFilterExpression")) {
+          options.put("partialFilterExpression", dbObject(bsonDocument.getDocument("partialFilterExpression")));
+        }
+        dbCollection.createIndex(keys, options);
       }
 
       return (T) new BsonDocument("ok", BsonBoolean.TRUE);
@@ -679,9 +713,9 @@ public class FongoConnection implements Connection {
       }
     } else if (command.containsKey("find")) {
       final FongoDBCollection dbCollection = (FongoDBCollection) db.getCollection(command.get("find").asString().getValue());
-      BsonInt32 limit = getValue(command, "limit", -1);
+      BsonInt32 limit = getValue(command, "limit", 0);
       BsonInt32 skip = getValue(command, "skip", 0);
-      BsonInt32 maxScan = getValue(command, "maxScan", Integer.MAX_VALUE);
+      BsonInt32 batchSize = getValue(command, "batchSize", CursorRegistry.DEFAULT_FIRST_BATCH_SIZE);
       DBObject projection = null;
       if (command.containsKey("projection")) {
         projection = dbObject(command.getDocument("projection"));
@@ -693,15 +727,38 @@ public class FongoConnection implements Connection {
       if (command.containsKey("sort")) {
         query.put("$orderby", dbObject(command.getDocument("sort")));
       }
-      final DBCursor cur = dbCollection.find(query, projection);
-      cur.limit(limit.getValue());
-      cur.skip(skip.getValue());
-      cur.maxScan(maxScan.getValue());
-      final List<Document> each = documents(cur.toArray());
-//      return (T) new BsonDocument("cursor", new BsonDocument("id",
-//          new BsonInt64(0)).append("ns", new BsonString(dbCollection.getFullName()))
-//          .append("firstBatch", FongoBsonArrayWrapper.bsonArrayWrapper(each)));
-      return reencode(commandResultDecoder, "cursor", new BasicDBObject("id", 0L).append("ns", dbCollection.getFullName()).append("firstBatch", each));
+      if (command.containsKey("maxScan")) {
+        query.put("$maxScan", command.getInt32("maxScan").getValue());
+      }
+      final FongoDBCollection.FindCursor results = dbCollection.openFind(query, projection, skip.getValue(), limit.getValue());
+      final List<DBObject> firstBatch = CursorRegistry.nextBatch(results, batchSize.getValue());
+      final long cursorId = command.getBoolean("singleBatch", BsonBoolean.FALSE).getValue() ? 0L
+          : fongo.getCursorRegistry().register(dbCollection.getFullName(), results,
+          !command.getBoolean("noCursorTimeout", BsonBoolean.FALSE).getValue());
+      return reencode(commandResultDecoder, "cursor", new BasicDBObject("id", cursorId).append("ns", dbCollection.getFullName()).append("firstBatch", documents(firstBatch)));
+    } else if (command.containsKey("getMore")) {
+      final String namespace = database + "." + command.getString("collection").getValue();
+      final long cursorId = command.getInt64("getMore").getValue();
+      final List<DBObject> nextBatch = fongo.getCursorRegistry().getMore(cursorId, namespace, getValue(command, "batchSize", 0).getValue());
+      if (nextBatch == null) {
+        throw new MongoCommandException(new BsonDocument("ok", BsonBoolean.FALSE).append("code", new BsonInt32(43))
+            .append("errmsg", new BsonString("Cursor not found, cursor id: " + cursorId)), this.fongo.getServerAddress());
+      }
+      final long nextId = fongo.getCursorRegistry().isAlive(cursorId) ? cursorId : 0L;
+      return reencode(commandResultDecoder, "cursor", new BasicDBObject("id", nextId).append("ns", namespace).append("nextBatch", documents(nextBatch)));
+    } else if (command.containsKey("killCursors")) {
+      final BsonArray killed = new BsonArray();
+      final BsonArray notFound = new BsonArray();
+      for (BsonValue cursorId : command.getArray("cursors")) {
+        if (fongo.getCursorRegistry().kill(cursorId.asInt64().getValue())) {
+          killed.add(cursorId);
+        } else {
+          notFound.add(cursorId);
+        }
+      }
+      return commandResultDecoder.decode(new BsonDocumentReader(new BsonDocument("cursorsKilled", killed)
+          .append("cursorsNotFound", notFound).append("cursorsAlive", new BsonArray()).append("cursorsUnknown", new BsonArray())
+          .append("ok", new BsonDouble(1.0))), decoderContext());
     } else if (command.containsKey("listDatabases")) {
       final List<String> databaseNames = fongo.getDatabaseNames();
       final List<BsonDocument> documents = new ArrayList<BsonDocument>();
@@ -848,43 +905,54 @@ public class FongoConnection implements Connection {
 
   @Override
   public <T> QueryResult<T> query(MongoNamespace namespace, BsonDocument queryDocument, BsonDocument fields, int numberToReturn, int skip, boolean slaveOk, boolean tailableCursor, boolean awaitData, boolean noCursorTimeout, boolean partial, boolean oplogReplay, Decoder<T> resultDecoder) {
-    LOG.debug("query() namespace:{} queryDocument:{}, fields:{}", namespace, queryDocument, fields);
-    final DBCollection collection = dbCollection(namespace);
-
-    final List<DBObject> objects = collection
-        .find(dbObject(queryDocument), dbObject(fields))
-        .limit(numberToReturn)
-        .skip(skip)
-        .toArray();
-
-    return new QueryResult(namespace, decode(objects, resultDecoder), 1, fongo.getServerAddress());
+    return query(namespace, queryDocument, fields, skip, numberToReturn, 0, slaveOk, tailableCursor, awaitData,
+        noCursorTimeout, partial, oplogReplay, resultDecoder);
   }
 
   @Override
   public <T> QueryResult<T> query(MongoNamespace namespace, BsonDocument queryDocument, BsonDocument fields, int skip,
                                   int limit, int batchSize, boolean slaveOk, boolean tailableCursor, boolean awaitData,
                                   boolean noCursorTimeout, boolean partial, boolean oplogReplay, Decoder<T> resultDecoder) {
-    // we ignore the batchSize here since batching is not implemented.
-    return query(namespace, queryDocument, fields,
-        limit, skip, slaveOk, tailableCursor, awaitData,
-        noCursorTimeout, partial, oplogReplay, resultDecoder);
+    LOG.debug("query() namespace:{} queryDocument:{}, fields:{}", namespace, queryDocument, fields);
+    final FongoDBCollection collection = dbCollection(namespace);
+    DBObject query = dbObject(queryDocument);
+    if (!query.containsField("$query")) {
+      query = new BasicDBObject("$query", query);
+    }
+
+    final FongoDBCollection.FindCursor results = collection.openFind(query, dbObject(fields), skip, Math.abs(limit));
+    // A negative limit or batch size asks for a single batch.
+    final List<DBObject> objects = CursorRegistry.nextBatch(results, batchSize == 0 ? limit == 0 ? CursorRegistry.DEFAULT_FIRST_BATCH_SIZE : Math.abs(limit) : Math.abs(batchSize));
+    final long cursorId = limit < 0 || batchSize < 0 ? 0L
+        : fongo.getCursorRegistry().register(namespace.getFullName(), results, !noCursorTimeout);
+
+    return new QueryResult(namespace, decode(objects, resultDecoder), cursorId, fongo.getServerAddress());
   }
 
   @Override
   public <T> QueryResult<T> getMore(MongoNamespace namespace, long cursorId, int numberToReturn, Decoder<T> resultDecoder) {
     LOG.debug("getMore() namespace:{} cursorId:{}", namespace, cursorId);
+    final List<DBObject> objects = fongo.getCursorRegistry().getMore(cursorId, namespace.getFullName(), numberToReturn);
+    if (objects == null) {
+      throw new MongoCursorNotFoundException(cursorId, fongo.getServerAddress());
+    }
     // 0 means Cursor exhausted.
-    return new QueryResult(namespace, Collections.emptyList(), 0, fongo.getServerAddress());
+    final long nextId = fongo.getCursorRegistry().isAlive(cursorId) ? cursorId : 0L;
+    return new QueryResult(namespace, decode(objects, resultDecoder), nextId, fongo.getServerAddress());
   }
 
   @Override
   public void killCursor(List<Long> cursors) {
-    LOG.info("killCursor() cursors:{}", cursors);
+    LOG.debug("killCursor() cursors:{}", cursors);
+    for (Long cursorId : cursors) {
+      fongo.getCursorRegistry().kill(cursorId);
+    }
   }
 
   @Override
   public void killCursor(MongoNamespace namespace, List<Long> cursors) {
     LOG.debug("killCursor() namespace:{}, cursors:{}", namespace.getFullName(), cursors);
+    killCursor(cursors);
   }
 
   @Override
@@ -0,0 +1,262 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.DBObject;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side cursors of a {@link com.github.fakemongo.Fongo}, like the cursor manager of mongod : a find or an
+ * aggregate which doesn't give all its results in the first batch registers a cursor, the next batches are asked by
+ * getMore, until the cursor is exhausted or killed.
+ * <p/>
+ * A cursor not used for the timeout is removed by a reaper, in a daemon thread shared by all the instances.
+ * <p/>
+ * Thread safe.
+ */
+public final class CursorRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger(CursorRegistry.class);
+
+  // Same as the cursorTimeoutMillis of mongod.
+  public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+  // Same as the first batch of mongod, when no batch size is given.
+  public static final int DEFAULT_FIRST_BATCH_SIZE = 101;
+  // A batch stops once it holds about this estimated BSON size, like the 16MB of mongod.
+  public static final long MAX_BATCH_BYTES = 16L * 1024 * 1024;
+  // Maximum time between two passes of the reaper.
+  private static final long MAX_REAPER_PERIOD_MILLIS = 60000L;
+
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "fongo-cursor-reaper");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Results of a cursor, produced batch by batch.
+   */
+  public interface Batches {
+    /**
+     * @param size maximum number of results.
+     * @return the next results, less than size only when there are no more results.
+     */
+    List<DBObject> nextBatch(int size);
+
+    /**
+     * @return false once all the results were given.
+     */
+    boolean hasMore();
+  }
+
+  private final Map<Long, Cursor> cursors = new ConcurrentHashMap<Long, Cursor>();
+  private final AtomicLong nextId = new AtomicLong(1L);
+  private long timeoutMillis;
+  // Next pass of the reaper, null while not scheduled.
+  private Reaper reaper;
+
+  public CursorRegistry(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return results already computed, given batch by batch.
+   */
+  public static Batches batchesOf(Iterable<DBObject> objects) {
+    final Iterator<DBObject> iterator = objects.iterator();
+    return new Batches() {
+      @Override
+      public List<DBObject> nextBatch(int size) {
+        final List<DBObject> batch = new ArrayList<DBObject>();
+        while (batch.size() < size && iterator.hasNext()) {
+          batch.add(iterator.next());
+        }
+        return batch;
+      }
+
+      @Override
+      public boolean hasMore() {
+        return iterator.hasNext();
+      }
+    };
+  }
+
+  /**
+   * Next batch of results, like mongod : at most size results, and no more than about {@link #MAX_BATCH_BYTES}.
+   *
+   * @param size maximum number of results, 0 for no maximum.
+   */
+  public static List<DBObject> nextBatch(Batches batches, int size) {
+    final List<DBObject> batch = new ArrayList<DBObject>();
+    long bytes = 0L;
+    while (batches.hasMore() && (size <= 0 || batch.size() < size) && bytes < MAX_BATCH_BYTES) {
+      final int chunk = size <= 0 ? DEFAULT_FIRST_BATCH_SIZE : Math.min(size - batch.size(), DEFAULT_FIRST_BATCH_SIZE);
+      for (DBObject object : batches.nextBatch(chunk)) {
+        bytes += RecordStore.estimateSize(object);
+        batch.add(object);
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * Register the results not given yet, unless there are none.
+   *
+   * @param namespace    full name of the collection.
+   * @param timeoutAllowed false for a cursor which must never be removed by the reaper (noCursorTimeout).
+   * @return the id of the cursor, 0 if all the results were given.
+   */
+  public long register(String namespace, Batches batches, boolean timeoutAllowed) {
+    if (!batches.hasMore()) {
+      return 0L;
+    }
+    final long id = nextId.getAndIncrement();
+    cursors.put(id, new Cursor(namespace, batches, timeoutAllowed));
+    scheduleReaper();
+    return id;
+  }
+
+  /**
+   * Give the next batch of a cursor : the cursor is removed once exhausted.
+   *
+   * @param size maximum number of results, 0 for no maximum.
+   * @return the next batch, null if the cursor is unknown (exhausted, killed or timed out) or of another namespace.
+   */
+  public List<DBObject> getMore(long id, String namespace, int size) {
+    final Cursor cursor = cursors.get(id);
+    if (cursor == null || !cursor.namespace.equals(namespace)) {
+      return null;
+    }
+    final List<DBObject> batch;
+    synchronized (cursor) {
+      batch = nextBatch(cursor.batches, size);
+      cursor.lastUsed = System.currentTimeMillis();
+    }
+    if (!cursor.batches.hasMore()) {
+      cursors.remove(id);
+    }
+    return batch;
+  }
+
+  /**
+   * @return true if the cursor is still registered.
+   */
+  public boolean isAlive(long id) {
+    return cursors.containsKey(id);
+  }
+
+  /**
+   * @return true if the cursor was killed, false if it was unknown.
+   */
+  public boolean kill(long id) {
+    return cursors.remove(id) != null;
+  }
+
+  public int size() {
+    return cursors.size();
+  }
+
+  public synchronized long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * @param timeoutMillis time after which an unused cursor is removed, 0 to never remove them.
+   */
+  public synchronized void setTimeoutMillis(long timeoutMillis) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must be positive or 0, was " + timeoutMillis);
+    }
+    this.timeoutMillis = timeoutMillis;
+    if (reaper != null) {
+      reaper.future.cancel(false);
+      reaper = null;
+    }
+    scheduleReaper();
+  }
+
+  /**
+   * Remove the cursors not used since the timeout.
+   *
+   * @return number of cursors removed.
+   */
+  public int reap(long now) {
+    final long timeout = getTimeoutMillis();
+    if (timeout == 0) {
+      return 0;
+    }
+    int removed = 0;
+    for (Iterator<Cursor> iterator = cursors.values().iterator(); iterator.hasNext(); ) {
+      final Cursor cursor = iterator.next();
+      if (cursor.timeoutAllowed && now - cursor.lastUsed >= timeout) {
+        iterator.remove();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private synchronized void scheduleReaper() {
+    if (reaper == null && timeoutMillis > 0) {
+      final long period = Math.min(timeoutMillis, MAX_REAPER_PERIOD_MILLIS);
+      reaper = new Reaper(new WeakReference<CursorRegistry>(this));
+      reaper.future = EXECUTOR.scheduleWithFixedDelay(reaper, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final class Cursor {
+    private final String namespace;
+    private final Batches batches;
+    private final boolean timeoutAllowed;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private Cursor(String namespace, Batches batches, boolean timeoutAllowed) {
+      this.namespace = namespace;
+      this.batches = batches;
+      this.timeoutAllowed = timeoutAllowed;
+    }
+  }
+
+  /**
+   * Only holds a weak reference : a registry which is not used anymore cancels its passes.
+   */
+  private static final class Reaper implements Runnable {
+    private final WeakReference<CursorRegistry> registry;
+    private volatile ScheduledFuture<?> future;
+
+    private Reaper(WeakReference<CursorRegistry> registry) {
+      this.registry = registry;
+    }
+
+    @Override
+    public void run() {
+      final CursorRegistry current = registry.get();
+      if (current == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      try {
+        final int removed = current.reap(System.currentTimeMillis());
+        LOG.debug("{} timed out cursors removed", removed);
+      } catch (RuntimeException e) {
+        // Next passes must still run.
+        LOG.warn("cursor reaper failed", e);
+      }
+    }
+  }
+}
@@ -96,7 +96,9 @@ public class ExpressionParser {
     map.put(Object.class, 3);
     map.put(BasicDBObject.class, 4);
     map.put(LazyDBObject.class, 4);
+    map.put(ReadOnlyDBObject.class, 4);
     map.put(BasicDBList.class, 5);
+    map.put(ReadOnlyDBList.class, 5);
     map.put(LazyBSONList.class, 5);
     map.put(byte[].class, 6);
     map.put(Binary.class, 6);
@@ -0,0 +1,209 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.BasicDBList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import org.bson.BSONObject;
+
+/**
+ * A list which can't be modified once built, see {@link ReadOnlyDBObject}.
+ */
+public class ReadOnlyDBList extends BasicDBList {
+  private final boolean frozen;
+
+  ReadOnlyDBList(List<?> source) {
+    for (Object value : source) {
+      super.add(ReadOnlyDBObject.freeze(value));
+    }
+    this.frozen = true;
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new UnsupportedOperationException("stored documents are read-only, copy them before any modification");
+    }
+  }
+
+  @Override
+  public Object put(String key, Object v) {
+    checkNotFrozen();
+    return super.put(key, v);
+  }
+
+  @Override
+  public Object put(int key, Object value) {
+    checkNotFrozen();
+    return super.put(key, value);
+  }
+
+  @Override
+  public void putAll(Map m) {
+    checkNotFrozen();
+    super.putAll(m);
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    checkNotFrozen();
+    super.putAll(o);
+  }
+
+  @Override
+  public Object removeField(String key) {
+    checkNotFrozen();
+    return super.removeField(key);
+  }
+
+  @Override
+  public boolean add(Object o) {
+    checkNotFrozen();
+    return super.add(o);
+  }
+
+  @Override
+  public void add(int index, Object element) {
+    checkNotFrozen();
+    super.add(index, element);
+  }
+
+  @Override
+  public Object set(int index, Object element) {
+    checkNotFrozen();
+    return super.set(index, element);
+  }
+
+  @Override
+  public Object remove(int index) {
+    checkNotFrozen();
+    return super.remove(index);
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    checkNotFrozen();
+    return super.remove(o);
+  }
+
+  @Override
+  public boolean addAll(Collection<?> c) {
+    checkNotFrozen();
+    return super.addAll(c);
+  }
+
+  @Override
+  public boolean addAll(int index, Collection<?> c) {
+    checkNotFrozen();
+    return super.addAll(index, c);
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    checkNotFrozen();
+    return super.removeAll(c);
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    checkNotFrozen();
+    return super.retainAll(c);
+  }
+
+  @Override
+  public void clear() {
+    checkNotFrozen();
+    super.clear();
+  }
+
+  // The default methods of Java 8 are implemented by ArrayList without set or remove.
+
+  @Override
+  public boolean removeIf(Predicate<? super Object> filter) {
+    checkNotFrozen();
+    return super.removeIf(filter);
+  }
+
+  @Override
+  public void replaceAll(UnaryOperator<Object> operator) {
+    checkNotFrozen();
+    super.replaceAll(operator);
+  }
+
+  @Override
+  public void sort(Comparator<? super Object> c) {
+    checkNotFrozen();
+    super.sort(c);
+  }
+
+  @Override
+  public Iterator<Object> iterator() {
+    return listIterator(0);
+  }
+
+  @Override
+  public ListIterator<Object> listIterator() {
+    return listIterator(0);
+  }
+
+  @Override
+  public ListIterator<Object> listIterator(int index) {
+    final ListIterator<Object> iterator = super.listIterator(index);
+    return new ListIterator<Object>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public Object next() {
+        return iterator.next();
+      }
+
+      @Override
+      public boolean hasPrevious() {
+        return iterator.hasPrevious();
+      }
+
+      @Override
+      public Object previous() {
+        return iterator.previous();
+      }
+
+      @Override
+      public int nextIndex() {
+        return iterator.nextIndex();
+      }
+
+      @Override
+      public int previousIndex() {
+        return iterator.previousIndex();
+      }
+
+      @Override
+      public void remove() {
+        checkNotFrozen();
+      }
+
+      @Override
+      public void set(Object o) {
+        checkNotFrozen();
+      }
+
+      @Override
+      public void add(Object o) {
+        checkNotFrozen();
+      }
+    };
+  }
+
+  @Override
+  public List<Object> subList(int fromIndex, int toIndex) {
+    return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+  }
+}
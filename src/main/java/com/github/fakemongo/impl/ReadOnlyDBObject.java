@@ -0,0 +1,188 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.bson.BSONObject;
+
+/**
+ * A document which can't be modified once built.
+ * <p/>
+ * Used by collections storing immutable documents : the stored documents are given to the readers without copy,
+ * {@link #copy()} or {@link Util#clone(DBObject)} give a modifiable deep copy.
+ */
+public class ReadOnlyDBObject extends BasicDBObject {
+  private boolean frozen;
+
+  private ReadOnlyDBObject() {
+  }
+
+  /**
+   * Deep copy an object into a read-only one, with _id field in first.
+   * Read-only values are shared, not copied.
+   *
+   * @param source source to copy, can be null.
+   */
+  public static DBObject freezeIdFirst(DBObject source) {
+    if (source == null || source instanceof ReadOnlyDBObject) {
+      return source;
+    }
+    final ReadOnlyDBObject frozen = new ReadOnlyDBObject();
+    if (source.containsField(FongoDBCollection.ID_FIELD_NAME)) {
+      frozen.put(FongoDBCollection.ID_FIELD_NAME, freeze(source.get(FongoDBCollection.ID_FIELD_NAME)));
+    }
+    for (String field : source.keySet()) {
+      if (!FongoDBCollection.ID_FIELD_NAME.equals(field)) {
+        frozen.put(field, freeze(source.get(field)));
+      }
+    }
+    frozen.frozen = true;
+    return frozen;
+  }
+
+  static Object freeze(Object value) {
+    if (value instanceof ReadOnlyDBObject || value instanceof ReadOnlyDBList) {
+      return value;
+    }
+    if (value instanceof List) {
+      return new ReadOnlyDBList((List<?>) value);
+    }
+    if (ExpressionParser.isDbObject(value)) {
+      final DBObject source = ExpressionParser.toDbObject(value);
+      final ReadOnlyDBObject frozen = new ReadOnlyDBObject();
+      for (String field : source.keySet()) {
+        frozen.put(field, freeze(source.get(field)));
+      }
+      frozen.frozen = true;
+      return frozen;
+    }
+    return Util.clone(value);
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new UnsupportedOperationException("stored documents are read-only, copy them before any modification");
+    }
+  }
+
+  @Override
+  public Object put(String key, Object val) {
+    checkNotFrozen();
+    return super.put(key, val);
+  }
+
+  @Override
+  public void putAll(Map m) {
+    checkNotFrozen();
+    super.putAll(m);
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    checkNotFrozen();
+    super.putAll(o);
+  }
+
+  @Override
+  public Object remove(Object key) {
+    checkNotFrozen();
+    return super.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    checkNotFrozen();
+    super.clear();
+  }
+
+  // The default methods of Java 8 are implemented by HashMap without put or remove.
+
+  @Override
+  public Object putIfAbsent(String key, Object value) {
+    checkNotFrozen();
+    return super.putIfAbsent(key, value);
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    checkNotFrozen();
+    return super.remove(key, value);
+  }
+
+  @Override
+  public boolean replace(String key, Object oldValue, Object newValue) {
+    checkNotFrozen();
+    return super.replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public Object replace(String key, Object value) {
+    checkNotFrozen();
+    return super.replace(key, value);
+  }
+
+  @Override
+  public Object computeIfAbsent(String key, Function<? super String, ?> mappingFunction) {
+    checkNotFrozen();
+    return super.computeIfAbsent(key, mappingFunction);
+  }
+
+  @Override
+  public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ?> remappingFunction) {
+    checkNotFrozen();
+    return super.computeIfPresent(key, remappingFunction);
+  }
+
+  @Override
+  public Object compute(String key, BiFunction<? super String, ? super Object, ?> remappingFunction) {
+    checkNotFrozen();
+    return super.compute(key, remappingFunction);
+  }
+
+  @Override
+  public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+    checkNotFrozen();
+    return super.merge(key, value, remappingFunction);
+  }
+
+  @Override
+  public void replaceAll(BiFunction<? super String, ? super Object, ?> function) {
+    checkNotFrozen();
+    super.replaceAll(function);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(super.keySet());
+  }
+
+  @Override
+  public Collection<Object> values() {
+    return Collections.unmodifiableCollection(super.values());
+  }
+
+  /**
+   * The entries are read-only too : {@link Map.Entry#setValue(Object)} would modify the document.
+   */
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    if (!frozen) {
+      return super.entrySet();
+    }
+    final Set<Map.Entry<String, Object>> entries = super.entrySet();
+    return Collections.unmodifiableMap(new AbstractMap<String, Object>() {
+      @Override
+      public Set<Map.Entry<String, Object>> entrySet() {
+        return entries;
+      }
+    }).entrySet();
+  }
+}
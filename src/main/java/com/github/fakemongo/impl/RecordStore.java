@@ -0,0 +1,258 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+/**
+ * Primary storage of the documents of a collection.
+ * <p/>
+ * Each document gets a sequence number when inserted, and keeps it when updated : iterating the store gives the
+ * documents in natural order, without having to sort them. A scan can be resumed after the sequence number of the
+ * last document it saw, even when the store was modified in between.
+ * <p/>
+ * Documents are found back by identity : the store must be given the same instances as the ones shared by the indexes.
+ * <p/>
+ * The store also keeps the estimated BSON size of its documents, so the size of a collection is known without walking
+ * it. A size not given on a write is only estimated when asked for, once : writes don't pay for it when no size limit
+ * is set.
+ */
+public class RecordStore {
+  // Size of a document not estimated yet.
+  public static final long UNKNOWN_SIZE = -1L;
+
+  private final NavigableMap<Long, DBObject> records = new TreeMap<Long, DBObject>();
+  private final Map<DBObject, Record> sequences = new IdentityHashMap<DBObject, Record>();
+  private final Collection<DBObject> values = Collections.unmodifiableCollection(records.values());
+  private long nextSequence = 0L;
+  // Size of the documents whose size is known.
+  private long bytes = 0L;
+  // Number of documents whose size is not estimated yet.
+  private int unsized = 0;
+
+  /**
+   * Add a document at the end of the natural order.
+   */
+  public void add(DBObject object) {
+    add(object, UNKNOWN_SIZE);
+  }
+
+  /**
+   * @param bytes estimated size of the document, {@link #UNKNOWN_SIZE} to estimate it only when needed.
+   */
+  public void add(DBObject object, long bytes) {
+    final Record record = new Record(nextSequence++, bytes);
+    records.put(record.sequence, object);
+    sequences.put(object, record);
+    count(record, 1);
+  }
+
+  /**
+   * Replace a document, keeping its place in the natural order.
+   * If the old document is unknown, the new one is added at the end.
+   */
+  public void replace(DBObject oldObject, DBObject newObject) {
+    replace(oldObject, newObject, UNKNOWN_SIZE);
+  }
+
+  /**
+   * @param bytes estimated size of the new document, {@link #UNKNOWN_SIZE} to estimate it only when needed.
+   */
+  public void replace(DBObject oldObject, DBObject newObject, long bytes) {
+    final Record oldRecord = sequences.remove(oldObject);
+    if (oldRecord == null) {
+      add(newObject, bytes);
+      return;
+    }
+    count(oldRecord, -1);
+    final Record record = new Record(oldRecord.sequence, bytes);
+    records.put(record.sequence, newObject);
+    sequences.put(newObject, record);
+    count(record, 1);
+  }
+
+  public boolean remove(DBObject object) {
+    final Record record = sequences.remove(object);
+    if (record == null) {
+      return false;
+    }
+    records.remove(record.sequence);
+    count(record, -1);
+    return true;
+  }
+
+  private void count(Record record, int sign) {
+    if (record.bytes == UNKNOWN_SIZE) {
+      unsized += sign;
+    } else {
+      bytes += sign * record.bytes;
+    }
+  }
+
+  public boolean contains(DBObject object) {
+    return sequences.containsKey(object);
+  }
+
+  public int size() {
+    return records.size();
+  }
+
+  /**
+   * @return the estimated BSON size of all the documents.
+   */
+  public long bytes() {
+    if (unsized > 0) {
+      for (Map.Entry<DBObject, Record> entry : sequences.entrySet()) {
+        estimate(entry.getKey(), entry.getValue());
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the estimated BSON size of a document of the store, 0 if it is not in the store.
+   */
+  public long bytesOf(DBObject object) {
+    final Record record = sequences.get(object);
+    if (record == null) {
+      return 0L;
+    }
+    estimate(object, record);
+    return record.bytes;
+  }
+
+  private void estimate(DBObject object, Record record) {
+    if (record.bytes == UNKNOWN_SIZE) {
+      record.bytes = estimateSize(object);
+      unsized--;
+      bytes += record.bytes;
+    }
+  }
+
+  public void clear() {
+    records.clear();
+    sequences.clear();
+    bytes = 0L;
+    unsized = 0;
+  }
+
+  /**
+   * @return a read-only view of the documents, in natural order.
+   */
+  public Collection<DBObject> values() {
+    return values;
+  }
+
+  /**
+   * @return sequence number of the last document added, -1 if none was added.
+   */
+  public long lastSequence() {
+    return nextSequence - 1;
+  }
+
+  /**
+   * @param after sequence number of the last document seen, -1 to start from the first document.
+   * @param last  sequence number of the last document to give : the documents added after it are not given.
+   * @return a read-only view of the documents between the sequence numbers, by sequence number, in natural order.
+   */
+  public SortedMap<Long, DBObject> valuesBetween(long after, long last) {
+    if (last <= after) {
+      return Collections.unmodifiableSortedMap(new TreeMap<Long, DBObject>());
+    }
+    return Collections.unmodifiableSortedMap(records.subMap(after, false, last, true));
+  }
+
+  /**
+   * Estimate the size of a value once encoded in BSON, without encoding it.
+   * Field names and types are counted like the BSON specification does ; unknown types count as 8 bytes.
+   */
+  public static long estimateSize(Object value) {
+    if (value instanceof Map) {
+      long size = 4 + 1; // length and terminal 0.
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        size += 1 + String.valueOf(entry.getKey()).length() + 1 + estimateSize(entry.getValue());
+      }
+      return size;
+    }
+    if (value instanceof DBObject) {
+      // Not toMap() : some document classes (like GridFSFile) don't support it.
+      final DBObject object = (DBObject) value;
+      long size = 4 + 1;
+      for (String key : object.keySet()) {
+        size += 1 + key.length() + 1 + estimateSize(object.get(key));
+      }
+      return size;
+    }
+    if (value instanceof Iterable) {
+      long size = 4 + 1;
+      int i = 0;
+      for (Object element : (Iterable<?>) value) {
+        size += 1 + String.valueOf(i++).length() + 1 + estimateSize(element);
+      }
+      return size;
+    }
+    if (value instanceof Object[]) {
+      long size = 4 + 1;
+      final Object[] array = (Object[]) value;
+      for (int i = 0; i < array.length; i++) {
+        size += 1 + String.valueOf(i).length() + 1 + estimateSize(array[i]);
+      }
+      return size;
+    }
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return 4 + ((String) value).length() + 1;
+    }
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return 4;
+    }
+    if (value instanceof Boolean) {
+      return 1;
+    }
+    if (value instanceof ObjectId) {
+      return 12;
+    }
+    if (value instanceof Decimal128 || value instanceof UUID) {
+      return 16;
+    }
+    if (value instanceof byte[]) {
+      return 4 + 1 + ((byte[]) value).length;
+    }
+    if (value instanceof Binary) {
+      return 4 + 1 + ((Binary) value).length();
+    }
+    if (value instanceof Pattern) {
+      return ((Pattern) value).pattern().length() + 1 + 4;
+    }
+    if (value instanceof DBRef) {
+      final DBRef ref = (DBRef) value;
+      return 4 + 1 + 6 + estimateSize(ref.getCollectionName()) + 5 + estimateSize(ref.getId());
+    }
+    // Long, Double, Date, timestamps...
+    return 8;
+  }
+
+  private static final class Record {
+    private final long sequence;
+    // Estimated once, UNKNOWN_SIZE until then.
+    private long bytes;
+
+    private Record(long sequence, long bytes) {
+      this.sequence = sequence;
+      this.bytes = bytes;
+    }
+  }
+}
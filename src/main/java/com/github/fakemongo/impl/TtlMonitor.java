@@ -0,0 +1,108 @@
+package com.github.fakemongo.impl;
+
+import com.github.fakemongo.Fongo;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remove the documents expired by the TTL indexes of a {@link Fongo}, like the TTL monitor of mongod : a pass runs
+ * every period, in a daemon thread shared by all the instances.
+ * <p/>
+ * The passes only start once a TTL index is created, and don't keep the Fongo from being garbage collected.
+ * <p/>
+ * Thread safe.
+ */
+public final class TtlMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(TtlMonitor.class);
+
+  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      final Thread thread = new Thread(runnable, "fongo-ttl-monitor");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final WeakReference<Fongo> fongo;
+  private long periodMillis;
+  // A TTL index was created.
+  private boolean started = false;
+  // Next pass, null while not scheduled.
+  private Pass pass;
+
+  public TtlMonitor(Fongo fongo, long periodMillis) {
+    this.fongo = new WeakReference<Fongo>(fongo);
+    this.periodMillis = periodMillis;
+  }
+
+  /**
+   * Schedule the passes, if not already done. Called when a TTL index is created.
+   */
+  public synchronized void start() {
+    started = true;
+    schedule();
+  }
+
+  public synchronized long getPeriodMillis() {
+    return periodMillis;
+  }
+
+  /**
+   * @param periodMillis time between two passes, 0 to stop the passes.
+   */
+  public synchronized void setPeriodMillis(long periodMillis) {
+    if (periodMillis < 0) {
+      throw new IllegalArgumentException("periodMillis must be positive or 0, was " + periodMillis);
+    }
+    this.periodMillis = periodMillis;
+    if (pass != null) {
+      pass.future.cancel(false);
+      pass = null;
+    }
+    schedule();
+  }
+
+  private void schedule() {
+    if (started && pass == null && periodMillis > 0) {
+      pass = new Pass(fongo);
+      pass.future = EXECUTOR.scheduleWithFixedDelay(pass, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Only holds a weak reference : a Fongo which is not used anymore cancels its passes.
+   */
+  private static final class Pass implements Runnable {
+    private final WeakReference<Fongo> fongo;
+    private volatile ScheduledFuture<?> future;
+
+    private Pass(WeakReference<Fongo> fongo) {
+      this.fongo = fongo;
+    }
+
+    @Override
+    public void run() {
+      final Fongo current = fongo.get();
+      if (current == null) {
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      try {
+        final int removed = current.runTtlPass();
+        LOG.debug("{} : {} expired documents removed", current, removed);
+      } catch (RuntimeException e) {
+        // Next passes must still run.
+        LOG.warn("TTL pass of " + current + " failed", e);
+      }
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.github.fakemongo.impl.aggregation;
 
 import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
 import com.mongodb.*;
 import com.mongodb.annotations.ThreadSafe;
 import org.slf4j.Logger;
@@ -33,8 +34,7 @@ public class AddFields extends PipelineKeyword {
     List<DBObject> dbObjects = new ArrayList<DBObject>();
     DBCursor cursor = parentColl.find();
     for (DBObject item : cursor) {
-      DBObject newObject = new BasicDBObject();
-      newObject.putAll(item);
+      DBObject newObject = Util.clone(item);
       dbObjects.add(newObject);
       for (String fieldToAdd : fieldsToAddExpr.keySet()) {
         Object object = fieldsToAddExpr.get(fieldToAdd);
@@ -1,6 +1,7 @@
 package com.github.fakemongo.impl.aggregation;
 
 import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
 import com.mongodb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,7 +50,7 @@ public class ReplaceRoot extends PipelineKeyword {
         validateTrue(DBObject.class.isAssignableFrom(embeddedDoc.getClass()),
                      "Embedded value must evaluate to document at " + index);
         index++;
-        retval.add((DBObject) embeddedDoc);
+        retval.add(Util.clone((DBObject) embeddedDoc));
       }
       return retval;
     }
@@ -175,9 +175,9 @@ public final class GeoUtil {
     Coordinate coordinate = null;
     if (value instanceof List) {
       List list = (List) value;
-      if (list.size() == 2) {
+      if (list.size() == 2 && list.get(0) instanceof Number && list.get(1) instanceof Number) {
         coordinate = new Coordinate(((Number) list.get(1)).doubleValue(), ((Number) list.get(0)).doubleValue());
-      } else {
+      } else if (list.size() != 2) {
         LOG.warn("Strange, coordinate of {} has not a size of 2", value);
       }
     } else if (ExpressionParser.isDbObject(value)) {
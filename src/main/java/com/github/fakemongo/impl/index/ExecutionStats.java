@@ -0,0 +1,240 @@
+package com.github.fakemongo.impl.index;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the execution of one operation (find, count, update, remove) : the plan, what was examined, and the
+ * time spent in each stage. Gives the output of explain.
+ * <p/>
+ * NOT Thread Safe : one instance by operation.
+ */
+public final class ExecutionStats {
+  public static final String PLAN = "plan";
+  public static final String INDEX = "index";
+  public static final String SORT = "sort";
+  public static final String FILTER = "filter";
+  public static final String PROJECTION = "projection";
+  public static final String WRITE = "write";
+
+  private final String operation;
+  private final long start = System.nanoTime();
+  private long stageStart = start;
+  private final Map<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+  private QueryPlan plan;
+  // Plan which really gave the objects, null for a scan of the collection.
+  private QueryPlan used;
+  private boolean covered;
+  private boolean sorted;
+  // Objects kept by a sort with a limit, 0 without limit.
+  private int sortLimit;
+  private boolean projected;
+  private long keysExamined;
+  private long docsExamined;
+  private long returned;
+
+  /**
+   * @param operation "find", "count", "update" or "remove".
+   */
+  public ExecutionStats(String operation) {
+    this.operation = operation;
+  }
+
+  /**
+   * End the current stage : the time since the end of the previous stage is given to this one.
+   */
+  public void endStage(String stage) {
+    final long now = System.nanoTime();
+    final Long previous = stageNanos.get(stage);
+    stageNanos.put(stage, (previous == null ? 0L : previous) + now - stageStart);
+    stageStart = now;
+  }
+
+  public void setPlan(QueryPlan plan) {
+    this.plan = plan;
+  }
+
+  public QueryPlan getPlan() {
+    return plan;
+  }
+
+  /**
+   * @param used    the plan which gave the objects.
+   * @param covered true if the keys of the index gave the results.
+   */
+  public void setUsed(QueryPlan used, boolean covered) {
+    this.used = used;
+    this.covered = covered;
+  }
+
+  public QueryPlan getUsed() {
+    return used;
+  }
+
+  public boolean isCovered() {
+    return covered;
+  }
+
+  public void setSorted(boolean sorted) {
+    this.sorted = sorted;
+  }
+
+  /**
+   * @param sortLimit number of objects kept by the sort (skip + limit), 0 when all the objects are sorted.
+   */
+  public void setSortLimit(int sortLimit) {
+    this.sortLimit = sortLimit;
+  }
+
+  public void setProjected(boolean projected) {
+    this.projected = projected;
+  }
+
+  void keyExamined() {
+    keysExamined++;
+  }
+
+  void docExamined() {
+    docsExamined++;
+  }
+
+  /**
+   * An intersection only examines the objects given by both indexes.
+   */
+  void intersected(long docsExaminedBefore, int objects) {
+    docsExamined = docsExaminedBefore + objects;
+  }
+
+  /**
+   * Objects filtered by the executor : they are examined only when they come from a scan of the collection, the index
+   * has already examined the others.
+   */
+  public void filtered(long objects) {
+    if (used == null) {
+      docsExamined += objects;
+    }
+  }
+
+  public void setReturned(long returned) {
+    this.returned = returned;
+  }
+
+  public long getKeysExamined() {
+    return keysExamined;
+  }
+
+  public long getDocsExamined() {
+    return docsExamined;
+  }
+
+  public long getReturned() {
+    return returned;
+  }
+
+  /**
+   * @return time spent in each stage, in nanoseconds.
+   */
+  public Map<String, Long> getStageNanos() {
+    return stageNanos;
+  }
+
+  /**
+   * @return the output of explain, close to the one of MongoDB 3.x.
+   */
+  public DBObject toExplain(String namespace, DBObject query) {
+    final BasicDBList rejectedPlans = new BasicDBList();
+    if (plan != null) {
+      for (QueryPlan rejected : plan.getRejectedPlans()) {
+        rejectedPlans.add(accessStage(rejected, false).append("cost", rejected.getCost()));
+      }
+    }
+    final BasicDBObject stageTimes = new BasicDBObject();
+    for (Map.Entry<String, Long> entry : stageNanos.entrySet()) {
+      stageTimes.append(entry.getKey(), entry.getValue() / 1000L);
+    }
+    return new BasicDBObject("queryPlanner", new BasicDBObject("plannerVersion", 1)
+        .append("namespace", namespace)
+        .append("indexFilterSet", false)
+        .append("parsedQuery", query == null ? new BasicDBObject() : query)
+        .append("indexOnly", covered)
+        .append("winningPlan", winningPlan())
+        .append("rejectedPlans", rejectedPlans))
+        .append("executionStats", new BasicDBObject("executionSuccess", true)
+            .append("nReturned", returned)
+            .append("executionTimeMillis", (stageStart - start) / 1000000L)
+            .append("totalKeysExamined", keysExamined)
+            .append("totalDocsExamined", docsExamined)
+            .append("stageTimesMicros", stageTimes));
+  }
+
+  private DBObject winningPlan() {
+    BasicDBObject stage = used == null ? new BasicDBObject("stage", "COLLSCAN") : accessStage(used, covered);
+    if (used != null && used == plan) {
+      stage.append("cost", plan.getCost());
+    }
+    if (sorted) {
+      stage = new BasicDBObject("stage", "SORT").append("inputStage", stage);
+      if (sortLimit > 0) {
+        stage.append("limitAmount", sortLimit);
+      }
+    }
+    if (projected) {
+      stage = new BasicDBObject("stage", covered ? "PROJECTION_COVERED" : "PROJECTION").append("inputStage", stage);
+    }
+    if ("count".equals(operation)) {
+      stage = new BasicDBObject("stage", "COUNT").append("inputStage", stage);
+    } else if ("update".equals(operation)) {
+      stage = new BasicDBObject("stage", "UPDATE").append("inputStage", stage);
+    } else if ("remove".equals(operation)) {
+      stage = new BasicDBObject("stage", "DELETE").append("inputStage", stage);
+    }
+    return stage;
+  }
+
+  private static BasicDBObject accessStage(QueryPlan plan, boolean covered) {
+    if (plan.isCollectionScan()) {
+      return new BasicDBObject("stage", "COLLSCAN");
+    }
+    final BasicDBList inputStages = new BasicDBList();
+    if (plan.isUnion()) {
+      for (QueryPlan branch : plan.getBranchPlans()) {
+        inputStages.add(accessStage(branch, false));
+      }
+      return new BasicDBObject("stage", "OR").append("inputStages", inputStages);
+    }
+    if (plan.isIntersection()) {
+      inputStages.add(indexScan(plan.getIndex()));
+      inputStages.add(indexScan(plan.getIntersectedIndex()));
+      return new BasicDBObject("stage", "FETCH").append("inputStage",
+          new BasicDBObject("stage", "AND_HASH").append("inputStages", inputStages));
+    }
+    final BasicDBObject indexScan = indexScan(plan.getIndex());
+    return covered ? indexScan : new BasicDBObject("stage", "FETCH").append("inputStage", indexScan);
+  }
+
+  private static BasicDBObject indexScan(IndexAbstract index) {
+    return new BasicDBObject("stage", "IXSCAN")
+        .append("keyPattern", index.getKeyPattern())
+        .append("indexName", index.getName())
+        .append("isMultiKey", index.isMultiKey())
+        .append("isUnique", index.isUnique())
+        .append("isSparse", index.isSparse())
+        .append("isPartial", index.getPartialFilterExpression() != null);
+  }
+
+  @Override
+  public String toString() {
+    return "ExecutionStats{" +
+        "operation='" + operation + '\'' +
+        ", plan=" + (used == null ? "COLLSCAN" : used.getSolution()) +
+        ", covered=" + covered +
+        ", keysExamined=" + keysExamined +
+        ", docsExamined=" + docsExamined +
+        ", returned=" + returned +
+        ", stageNanos=" + stageNanos +
+        '}';
+  }
+}
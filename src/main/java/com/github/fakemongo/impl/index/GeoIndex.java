@@ -39,13 +39,18 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
     return new GeoUtil.GeoDBObject(super.getKeyFor(object), geoIndex);
   }
 
+  @Override
+  List<GeoUtil.GeoDBObject> getKeysFor(DBObject object) {
+    return Collections.singletonList(getKeyFor(object));
+  }
+
   @Override
   public GeoUtil.GeoDBObject embedded(DBObject object) {
     return new GeoUtil.GeoDBObject(object, geoIndex); // Important : do not clone, indexes share objects between them.
   }
 
   public List<DBObject> geoNear(DBObject query, Geometry geometry, int limit, boolean spherical) {
-    lookupCount++;
+    lookupCount.incrementAndGet();
 
     LOG.info("geoNear() query:{}, geometry:{}, limit:{}, spherical:{} (mapValues size:{})", query, geometry, limit, spherical, mapValues.size());
     // Filter values
@@ -1,31 +1,62 @@
 package com.github.fakemongo.impl.index;
 
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 
 /**
- * An index for the MongoDB.
+ * A hashed index : the value of the field is hashed to 64 bits, the table gives the objects by hash.
+ * <p/>
+ * Like MongoDB, numbers are hashed as their 64-bit integer value : 2, 2L and 2.3 have the same hash. The objects
+ * under a hash are always filtered, so collisions only cost a filter.
+ * Only equalities (and $in) can be answered.
  */
 public class HashedIndex extends IndexAbstract<DBObject> {
-  private static final Logger LOG = LoggerFactory.getLogger(HashedIndex.class);
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final List<String> path;
 
   HashedIndex(String name, DBObject keys, boolean unique, String hashed, boolean sparse) {
     super(name, keys, unique, new LinkedHashMap<DBObject, IndexedList<DBObject>>(), hashed, sparse);
+    this.path = Util.split(hashed);
   }
 
   /**
-   * Create the key for the hashmap.
-   *
-   * @param object
-   * @return
+   * Create the key for the hashmap : the hash of the value, under the path of the field. A missing field is hashed like
+   * null, but the key stays empty so a sparse index skips the object.
    */
   @Override
   protected DBObject getKeyFor(DBObject object) {
-    return object;
+    Object value = object;
+    for (String part : path) {
+      if (!ExpressionParser.isDbObject(value) || value instanceof List || !ExpressionParser.toDbObject(value).containsField(part)) {
+        return new HashKey(hash(null));
+      }
+      value = ExpressionParser.toDbObject(value).get(part);
+    }
+    final HashKey key = new HashKey(hash(value));
+    putPath(key, path, key.hash);
+    return key;
+  }
+
+  @Override
+  List<DBObject> getKeysFor(DBObject object) {
+    return Collections.singletonList(getKeyFor(object));
   }
 
   @Override
@@ -34,10 +65,203 @@ public class HashedIndex extends IndexAbstract<DBObject> {
   }
 
   @Override
-  public List<List<Object>> addOrUpdate(DBObject object, DBObject oldObject) {
+  public List<List<Object>> addOrUpdate(DBObject object, DBObject oldObject, IndexUndoLog undo) {
     if (object.get(this.geoIndex) instanceof List) {
       throw new MongoException(16766, "Error: hashed indexes do not currently support array values");
     }
-    return super.addOrUpdate(object, oldObject);
+    return super.addOrUpdate(object, oldObject, undo);
+  }
+
+  /**
+   * One lookup by value of the equality or of the $in.
+   *
+   * @return matching objects, or null if the query is not an equality on the hashed field.
+   */
+  @Override
+  public Collection<DBObject> retrieveObjects(DBObject query, boolean reverse, ExecutionStats stats) {
+    final List<Object> values = equalityValues(query);
+    if (values == null) {
+      return null;
+    }
+    lookupCount.incrementAndGet();
+
+    final Filter filter = expressionParser.buildFilter(query);
+    final Set<DBObject> seen = values.size() > 1 ? Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>()) : null;
+    final List<DBObject> result = new ArrayList<DBObject>();
+    for (Object value : values) {
+      stats.keyExamined();
+      final IndexedList<DBObject> objects = mapValues.get(new HashKey(hash(value)));
+      if (objects == null) {
+        continue;
+      }
+      for (DBObject object : objects.getElements()) {
+        stats.docExamined();
+        if (filter.apply(object) && (seen == null || seen.add(object))) {
+          result.add(object);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * One key by value : ranges can't use the hashes.
+   */
+  @Override
+  public double estimateCost(DBObject query) {
+    final List<Object> values = equalityValues(query);
+    return values == null ? Double.POSITIVE_INFINITY : values.size() * getStatistics().getEntriesPerKey();
+  }
+
+  /**
+   * @return the values searched by an equality or a $in on the hashed field, null for another condition.
+   */
+  private List<Object> equalityValues(DBObject query) {
+    if (!query.containsField(geoIndex)) {
+      return null;
+    }
+    return equalityValues(query.get(geoIndex));
+  }
+
+  private static List<Object> equalityValues(Object condition) {
+    if (condition instanceof List || condition instanceof Pattern) {
+      return null;
+    }
+    if (!ExpressionParser.isDbObject(condition)) {
+      return Collections.singletonList(condition);
+    }
+    final DBObject operators = ExpressionParser.toDbObject(condition);
+    if (operators.keySet().size() == 1 && operators.containsField(ExpressionParser.EQ)) {
+      return equalityValues(operators.get(ExpressionParser.EQ));
+    }
+    if (operators.keySet().size() == 1 && operators.get(ExpressionParser.IN) instanceof List) {
+      final List<Object> values = new ArrayList<Object>();
+      for (Object value : (List<?>) operators.get(ExpressionParser.IN)) {
+        final List<Object> equality = equalityValues(value);
+        if (equality == null) {
+          return null;
+        }
+        values.addAll(equality);
+      }
+      return values;
+    }
+    for (String operator : operators.keySet()) {
+      if (operator.startsWith("$")) {
+        return null;
+      }
+    }
+    // An embedded document.
+    return Collections.singletonList(condition);
+  }
+
+  /**
+   * @return the 64-bit hash of a value.
+   */
+  static long hash(Object value) {
+    // Finalizer of MurmurHash3, to spread the bits of FNV-1a.
+    long hash = hash(FNV_OFFSET, value);
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  private static long hash(long hash, Object value) {
+    if (value == null) {
+      return update(hash, 0x0A);
+    }
+    if (value instanceof Double || value instanceof Float) {
+      final double number = ((Number) value).doubleValue();
+      return Double.isNaN(number) ? update(hash, 0x01) : updateLong(update(hash, 0x12), (long) number);
+    }
+    if (value instanceof Number) {
+      return updateLong(update(hash, 0x12), ((Number) value).longValue());
+    }
+    if (value instanceof String) {
+      return updateChars(update(hash, 0x02), (String) value);
+    }
+    if (value instanceof Boolean) {
+      return update(update(hash, 0x08), (Boolean) value ? 1 : 0);
+    }
+    if (value instanceof Date) {
+      return updateLong(update(hash, 0x09), ((Date) value).getTime());
+    }
+    if (value instanceof ObjectId) {
+      return updateBytes(update(hash, 0x07), ((ObjectId) value).toByteArray());
+    }
+    if (value instanceof Binary) {
+      return updateBytes(update(hash, 0x05), ((Binary) value).getData());
+    }
+    if (value instanceof byte[]) {
+      return updateBytes(update(hash, 0x05), (byte[]) value);
+    }
+    if (value instanceof List) {
+      long result = update(hash, 0x04);
+      for (Object element : (List<?>) value) {
+        result = hash(result, element);
+      }
+      return result;
+    }
+    if (ExpressionParser.isDbObject(value)) {
+      final DBObject dbObject = ExpressionParser.toDbObject(value);
+      long result = update(hash, 0x03);
+      for (String key : dbObject.keySet()) {
+        result = hash(updateChars(result, key), dbObject.get(key));
+      }
+      return result;
+    }
+    return updateLong(updateChars(update(hash, 0x7F), value.getClass().getName()), value.hashCode());
+  }
+
+  private static long update(long hash, int b) {
+    return (hash ^ (b & 0xFF)) * FNV_PRIME;
+  }
+
+  private static long updateLong(long hash, long value) {
+    long result = hash;
+    for (int shift = 0; shift < 64; shift += 8) {
+      result = update(result, (int) (value >>> shift));
+    }
+    return result;
+  }
+
+  private static long updateChars(long hash, String value) {
+    long result = hash;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      result = update(update(result, c), c >>> 8);
+    }
+    return update(result, 0);
+  }
+
+  private static long updateBytes(long hash, byte[] value) {
+    long result = hash;
+    for (byte b : value) {
+      result = update(result, b);
+    }
+    return result;
+  }
+
+  /**
+   * Key of the table : equality and hash code only use the hash of the value, not the content.
+   */
+  private static final class HashKey extends BasicDBObject {
+    private final long hash;
+
+    private HashKey(long hash) {
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof HashKey && ((HashKey) o).hash == hash;
+    }
   }
-}
\ No newline at end of file
+}
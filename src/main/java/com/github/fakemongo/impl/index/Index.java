@@ -25,8 +25,7 @@ public class Index extends IndexAbstract<DBObject> {
     if (keys.containsField(FongoDBCollection.ID_FIELD_NAME) && keys.toMap().size() == 1) {
       return new LinkedHashMap<DBObject, IndexedList<DBObject>>();
     } else {
-      //noinspection unchecked
-      return new TreeMap<DBObject, IndexedList<DBObject>>(new ExpressionParser().buildObjectComparator(isAsc(keys)));
+      return new TreeMap<DBObject, IndexedList<DBObject>>(new IndexBound.KeyComparator(new ExpressionParser(), isAsc(keys)));
     }
   }
 
@@ -41,7 +40,7 @@ public class Index extends IndexAbstract<DBObject> {
    * @param object The {@link DBObject} to insert.
    * @return The expanded {@link DBObject}.
    */
-  private DBObject expandObject(final DBObject object) {
+  public static DBObject expandObject(final DBObject object) {
     final List<String> keysToRemove = new ArrayList<String>();
     final List<DBObject> objectsToPut = new ArrayList<DBObject>();
 
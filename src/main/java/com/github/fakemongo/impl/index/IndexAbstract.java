@@ -1,25 +1,45 @@
 package com.github.fakemongo.impl.index;
 
+import com.github.fakemongo.FongoException;
 import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Filter;
 import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.FongoDBCollection;
 
 import static com.mongodb.FongoDBCollection.ID_FIELD_NAME;
 
 import com.mongodb.MongoException;
 import com.mongodb.QueryOperators;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.bson.types.Binary;
 
@@ -29,21 +49,55 @@ import org.bson.types.Binary;
  * NOT Thread Safe. The ThreadSafety must be done by the caller.
  */
 public abstract class IndexAbstract<T extends DBObject> {
+  // Part of the objects selected by a condition, when the statistics can't tell.
+  private static final double DEFAULT_SELECTIVITY = 1D / 3;
+  // Walking a key costs less than filtering an object.
+  static final double KEY_COST = 0.25D;
+  // Below this number of objects by thread, the keys of a bulk build are extracted by the calling thread only.
+  private static final int PARALLEL_BUILD_MIN_OBJECTS = 10000;
+  private static final int BUILD_THREADS = Runtime.getRuntime().availableProcessors();
+  // Shared by the bulk builds of all the indexes, created by the first large build.
+  private static ExecutorService buildExecutor;
+
   final String geoIndex;
   final ExpressionParser expressionParser = new ExpressionParser();
   // Contains all dbObject than field value can have
   final Map<T, IndexedList<T>> mapValues;
   private final String name;
   private final DBObject keys;
+  // Keys as given at the creation.
+  private final DBObject keyPattern;
+  private final KeyExtractor keyExtractor;
   private final Set<String> fields;
   private final boolean unique;
   private final boolean sparse;
-  int lookupCount = 0;
+  private final List<String> leadingPath;
+  // Direction of the first field, used for all the fields by the ordered map.
+  private final boolean ascending;
+  @SuppressWarnings("unchecked")
+  private final Comparator<Object> valueComparator = expressionParser.buildObjectComparator(true);
+  // Only the objects matching the filter are in a partial index, null for a full index. Set before any object is added.
+  private PartialFilterExpression partialFilter;
+  // Objects expire this number of seconds after the date of the field, null if not a TTL index.
+  private Long expireAfterSeconds;
+  // An array was found on an indexed field : keys only hold the elements of the arrays.
+  private boolean multiKey = false;
+  // Number of objects in the index, maintained on each add and remove.
+  private int size = 0;
+  // Number of adds and removes, to know when the statistics are out of date.
+  private long modifications = 0L;
+  private volatile IndexStatistics statistics;
+  // Incremented by concurrent readers.
+  final AtomicLong lookupCount = new AtomicLong();
 
   IndexAbstract(String name, DBObject keys, boolean unique, Map<T, IndexedList<T>> mapValues, String geoIndex, boolean sparse) throws MongoException {
     this.name = name;
     this.fields = Collections.unmodifiableSet(keys.keySet()); // Setup BEFORE keys.
+    this.leadingPath = Util.split(fields.iterator().next());
+    this.ascending = isAsc(keys);
     this.keys = prepareKeys(keys);
+    this.keyExtractor = new KeyExtractor(fields, this.keys);
+    this.keyPattern = Util.clone(keys);
     this.unique = unique;
     this.mapValues = mapValues;
     this.geoIndex = geoIndex;
@@ -110,6 +164,82 @@ public abstract class IndexAbstract<T extends DBObject> {
     return keys;
   }
 
+  public DBObject getKeyPattern() {
+    return keyPattern;
+  }
+
+  public boolean isMultiKey() {
+    return multiKey;
+  }
+
+  void setPartialFilterExpression(DBObject partialFilterExpression) {
+    this.partialFilter = partialFilterExpression == null ? null : new PartialFilterExpression(partialFilterExpression);
+  }
+
+  /**
+   * @return the filter of a partial index, null for a full index.
+   */
+  public DBObject getPartialFilterExpression() {
+    return partialFilter == null ? null : partialFilter.getExpression();
+  }
+
+  /**
+   * A partial index only holds the objects matching its filter : it can only answer the queries which imply the filter.
+   *
+   * @return true if all the objects matching the query are in the index.
+   */
+  public boolean hasAllObjectsFor(DBObject query) {
+    return partialFilter == null || partialFilter.isImpliedBy(query);
+  }
+
+  private boolean isExcluded(DBObject object) {
+    return partialFilter != null && !partialFilter.matches(object);
+  }
+
+  void setExpireAfterSeconds(Long expireAfterSeconds) {
+    this.expireAfterSeconds = expireAfterSeconds;
+  }
+
+  /**
+   * @return seconds after which the objects of a TTL index expire, null if not a TTL index.
+   */
+  public Long getExpireAfterSeconds() {
+    return expireAfterSeconds;
+  }
+
+  /**
+   * Objects of a TTL index expired at the given date, the oldest first : only the range of the dates which have expired
+   * is walked. An array of dates expires with its oldest date.
+   *
+   * @param max maximum number of objects to give.
+   * @return expired objects, empty if not a TTL index.
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> expired(Date now, int max) {
+    if (expireAfterSeconds == null || !(mapValues instanceof NavigableMap)) {
+      return Collections.emptyList();
+    }
+    final IndexBound lower = IndexBound.lower(leadingPath, new Date(Long.MIN_VALUE), true);
+    final IndexBound upper = IndexBound.upper(leadingPath, new Date(now.getTime() - expireAfterSeconds * 1000L), true);
+    final NavigableMap navigableMap = (NavigableMap) mapValues;
+    final NavigableMap<T, IndexedList<T>> dates = navigableMap.comparator().compare(lower, upper) > 0
+        ? navigableMap.subMap(upper, true, lower, true).descendingMap() : navigableMap.subMap(lower, true, upper, true);
+    final List<T> result = new ArrayList<T>();
+    // A multikey object is under each of its dates.
+    final Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    for (IndexedList<T> objects : dates.values()) {
+      for (T object : objects.getElements()) {
+        if (seen.add(object)) {
+          result.add(object);
+          if (result.size() >= max) {
+            return result;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
   public Set<String> getFields() {
     return fields;
   }
@@ -117,43 +247,97 @@ public abstract class IndexAbstract<T extends DBObject> {
   /**
    * @param object    new object to insert in the index.
    * @param oldObject in update, old objet to remove from index.
-   * @return keys in error if uniqueness is not respected, empty collection otherwise.
+   * @return keys in error if uniqueness is not respected (the index is unchanged), empty collection otherwise.
    */
   public List<List<Object>> addOrUpdate(T object, T oldObject) {
+    return addOrUpdate(object, oldObject, new IndexUndoLog());
+  }
+
+  /**
+   * Add an object, or replace the old one, computing the keys of each only once. A key of a unique index is probed
+   * once : the object is put under the key, and the previous entry is put back if the key was already used.
+   *
+   * @param object    new object to insert in the index.
+   * @param oldObject in update, old objet to remove from index.
+   * @param undo      log of the changes, to undo them if another index refuses the object.
+   * @return keys in error if uniqueness is not respected (the changes of this index are undone), empty collection
+   * otherwise.
+   */
+  public List<List<Object>> addOrUpdate(T object, T oldObject, IndexUndoLog undo) {
+    final int mark = undo.size();
     if (oldObject != null) {
-      remove(oldObject);
+      remove(oldObject, undo);
     }
-
-    T key = getKeyFor(object);
-    // In a sparse index, we only add to the index if the full key is there.
-    if (sparse && isPartialKey(key)) {
+    if (isExcluded(object)) {
       return Collections.emptyList();
     }
 
-    if (unique) {
-      // Unique must check if he's really unique.
-      if (mapValues.containsKey(key)) {
-        return extractFields(object, key.keySet());
+    final List<T> keys = getKeysFor(object);
+    T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
+    for (T key : keys) {
+      // In a sparse index, we only add to the index if the full key is there.
+      if (sparse && isPartialKey(key)) {
+        continue;
       }
-      T toAdd = embedded(object);
-      mapValues.put(key, new IndexedList<T>(Collections.singletonList(toAdd))); // DO NOT CLONE !
-    } else {
-      // Extract previous values
-      IndexedList<T> values = mapValues.get(key);
-      if (values == null) {
-        // Create if absent.
-        values = new IndexedList<T>(new ArrayList<T>());
-        mapValues.put(key, values);
+      if (unique) {
+        final IndexedList<T> previous = mapValues.put(key, new IndexedList<T>(Collections.singletonList(toAdd)));
+        if (previous != null) {
+          mapValues.put(key, previous);
+          undo.rollback(mark);
+          return extractFields(object, getFields());
+        }
+      } else {
+        // Extract previous values
+        IndexedList<T> values = mapValues.get(key);
+        if (values == null) {
+          // Create if absent.
+          values = new IndexedList<T>(new ArrayList<T>());
+          mapValues.put(key, values);
+        }
+        values.add(toAdd);
       }
-
-      // Add to values.
-      T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
-      values.add(toAdd);
+      size++;
+      modifications++;
+      undo.added(this, key, toAdd);
     }
     return Collections.emptyList();
   }
 
+  /**
+   * Put back an object removed by a write which is undone.
+   */
+  void indexKey(T key, T object) {
+    IndexedList<T> values = mapValues.get(key);
+    if (values == null) {
+      values = new IndexedList<T>(new ArrayList<T>());
+      mapValues.put(key, values);
+    }
+    values.add(object);
+    size++;
+    modifications++;
+  }
+
+  /**
+   * Remove an object added by a write which is undone.
+   */
+  void unindexKey(T key, T object) {
+    final IndexedList<T> values = mapValues.get(key);
+    if (values == null) {
+      return;
+    }
+    if (values.size() == 1) {
+      mapValues.remove(key);
+    } else {
+      values.remove(object);
+    }
+    size--;
+    modifications++;
+  }
+
   private boolean isPartialKey(T key) {
+    if (keyExtractor.isComplete(key)) {
+      return false;
+    }
     final Set<String> keyProjections = generateProjections(key, "");
     return !getFields().equals(keyProjections);
   }
@@ -190,12 +374,13 @@ public abstract class IndexAbstract<T extends DBObject> {
    * @return keys in error if uniqueness is not respected, empty collection otherwise.
    */
   public List<List<Object>> checkAddOrUpdate(T object, T oldObject) {
-    if (unique) {
-      DBObject key = getKeyFor(object);
-      IndexedList<T> objects = mapValues.get(key);
-      if (objects != null && !objects.contains(oldObject)) {
-        List<List<Object>> fieldsForIndex = extractFields(object, getFields());
-        return fieldsForIndex;
+    if (unique && !isExcluded(object)) {
+      for (T key : getKeysFor(object)) {
+        IndexedList<T> objects = mapValues.get(key);
+        if (objects != null && !objects.contains(oldObject)) {
+          List<List<Object>> fieldsForIndex = extractFields(object, getFields());
+          return fieldsForIndex;
+        }
       }
     }
     return Collections.emptyList();
@@ -207,15 +392,40 @@ public abstract class IndexAbstract<T extends DBObject> {
    * @param object to remove from the index.
    */
   public void remove(T object) {
-    T key = getKeyFor(object);
-    // Extract previous values
-    IndexedList<T> values = mapValues.get(key);
-    if (values != null) {
-      // Last entry ? or uniqueness ?
-      if (values.size() == 1) {
-        mapValues.remove(key);
-      } else {
-        values.remove(object);
+    remove(object, null);
+  }
+
+  /**
+   * Remove an object from the index.
+   *
+   * @param object to remove from the index.
+   * @param undo   log of the changes, null if the removal can't be undone.
+   */
+  public void remove(T object, IndexUndoLog undo) {
+    if (isExcluded(object)) {
+      // Never added.
+      return;
+    }
+    for (T key : getKeysFor(object)) {
+      // Extract previous values
+      IndexedList<T> values = mapValues.get(key);
+      if (values != null) {
+        final T removed;
+        // Last entry ? or uniqueness ?
+        if (values.size() == 1) {
+          removed = values.getElements().get(0);
+          mapValues.remove(key);
+          size--;
+          modifications++;
+        } else {
+          final int previousSize = values.size();
+          removed = values.remove(object);
+          size -= previousSize - values.size();
+          modifications++;
+        }
+        if (undo != null && removed != null) {
+          undo.removed(this, key, removed);
+        }
       }
     }
   }
@@ -227,6 +437,9 @@ public abstract class IndexAbstract<T extends DBObject> {
    * @return keys in error if uniqueness is not respected, empty collection otherwise.
    */
   public List<List<Object>> addAll(Iterable<T> objects) {
+    if (mapValues instanceof TreeMap && mapValues.isEmpty()) {
+      return bulkLoad(objects);
+    }
     for (T object : objects) {
       if (canHandle(object)) {
         List<List<Object>> nonUnique = addOrUpdate(object, null);
@@ -239,12 +452,207 @@ public abstract class IndexAbstract<T extends DBObject> {
     return Collections.emptyList();
   }
 
+  /**
+   * Build an empty ordered index : the keys of all the objects are extracted (by several threads for a large
+   * collection), sorted once, and the tree is built from the sorted keys in linear time instead of one insertion per
+   * object.
+   *
+   * @return keys in error if uniqueness is not respected (the index is then left empty), empty collection otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  private List<List<Object>> bulkLoad(Iterable<T> objects) {
+    final List<T> toIndex = new ArrayList<T>();
+    for (T object : objects) {
+      if (canHandle(object) && !isExcluded(object)) {
+        toIndex.add(object);
+      }
+    }
+    final List<KeyEntry<T>> entries = extractKeys(toIndex);
+    final Comparator<Object> keyComparator = ((TreeMap) mapValues).comparator();
+    // Stable : the objects of a key stay in insertion order.
+    Collections.sort(entries, new Comparator<KeyEntry<T>>() {
+      @Override
+      public int compare(KeyEntry<T> entry1, KeyEntry<T> entry2) {
+        return keyComparator.compare(entry1.key, entry2.key);
+      }
+    });
+
+    final List<Map.Entry<T, IndexedList<T>>> sorted = new ArrayList<Map.Entry<T, IndexedList<T>>>();
+    int start = 0;
+    while (start < entries.size()) {
+      final T key = entries.get(start).key;
+      int end = start + 1;
+      while (end < entries.size() && keyComparator.compare(entries.get(end).key, key) == 0) {
+        end++;
+      }
+      final IndexedList<T> values;
+      if (unique) {
+        if (end - start > 1) {
+          return extractFields(entries.get(start + 1).object, key.keySet());
+        }
+        values = new IndexedList<T>(Collections.singletonList(entries.get(start).object));
+      } else {
+        final List<T> objectsOfKey = new ArrayList<T>(end - start);
+        for (int i = start; i < end; i++) {
+          objectsOfKey.add(entries.get(i).object);
+        }
+        values = new IndexedList<T>(objectsOfKey);
+      }
+      sorted.add(new AbstractMap.SimpleImmutableEntry<T, IndexedList<T>>(key, values));
+      start = end;
+    }
+    // TreeMap builds itself bottom-up from a sorted map with the same comparator.
+    mapValues.putAll(new SortedEntries<T>(sorted, keyComparator));
+    size += entries.size();
+    modifications += entries.size();
+    return Collections.emptyList();
+  }
+
+  private List<KeyEntry<T>> extractKeys(final List<T> objects) {
+    final int threads = Math.min(BUILD_THREADS, objects.size() / PARALLEL_BUILD_MIN_OBJECTS);
+    if (threads <= 1) {
+      return extractKeys(objects, 0, objects.size());
+    }
+    final int chunk = (objects.size() + threads - 1) / threads;
+    final List<Future<List<KeyEntry<T>>>> futures = new ArrayList<Future<List<KeyEntry<T>>>>(threads);
+    for (int from = 0; from < objects.size(); from += chunk) {
+      final int start = from;
+      final int end = Math.min(objects.size(), from + chunk);
+      futures.add(buildExecutor().submit(new Callable<List<KeyEntry<T>>>() {
+        @Override
+        public List<KeyEntry<T>> call() {
+          return extractKeys(objects, start, end);
+        }
+      }));
+    }
+    final List<KeyEntry<T>> entries = new ArrayList<KeyEntry<T>>();
+    try {
+      for (Future<List<KeyEntry<T>>> future : futures) {
+        entries.addAll(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FongoException("index build of " + name + " interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw (RuntimeException) e.getCause();
+    }
+    return entries;
+  }
+
+  private List<KeyEntry<T>> extractKeys(List<T> objects, int start, int end) {
+    final List<KeyEntry<T>> entries = new ArrayList<KeyEntry<T>>(end - start);
+    for (int i = start; i < end; i++) {
+      final T object = objects.get(i);
+      final List<T> keys = getKeysFor(object);
+      final T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
+      for (T key : keys) {
+        // In a sparse index, we only add to the index if the full key is there.
+        if (!(sparse && isPartialKey(key))) {
+          entries.add(new KeyEntry<T>(key, toAdd));
+        }
+      }
+    }
+    return entries;
+  }
+
+  private static synchronized ExecutorService buildExecutor() {
+    if (buildExecutor == null) {
+      buildExecutor = Executors.newFixedThreadPool(BUILD_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "fongo-index-build-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return buildExecutor;
+  }
+
+  private static final class KeyEntry<T> {
+    private final T key;
+    private final T object;
+
+    private KeyEntry(T key, T object) {
+      this.key = key;
+      this.object = object;
+    }
+  }
+
+  /**
+   * Already sorted entries, seen as a {@link SortedMap} : only what {@link TreeMap#putAll} needs is implemented.
+   */
+  private static final class SortedEntries<T> extends AbstractMap<T, IndexedList<T>> implements SortedMap<T, IndexedList<T>> {
+    private final List<Map.Entry<T, IndexedList<T>>> entries;
+    private final Comparator<Object> comparator;
+
+    private SortedEntries(List<Map.Entry<T, IndexedList<T>>> entries, Comparator<Object> comparator) {
+      this.entries = entries;
+      this.comparator = comparator;
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+      return comparator;
+    }
+
+    @Override
+    public int size() {
+      return entries.size();
+    }
+
+    @Override
+    public Set<Map.Entry<T, IndexedList<T>>> entrySet() {
+      return new AbstractSet<Map.Entry<T, IndexedList<T>>>() {
+        @Override
+        public Iterator<Map.Entry<T, IndexedList<T>>> iterator() {
+          return Collections.unmodifiableList(entries).iterator();
+        }
+
+        @Override
+        public int size() {
+          return entries.size();
+        }
+      };
+    }
+
+    @Override
+    public SortedMap<T, IndexedList<T>> subMap(T fromKey, T toKey) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedMap<T, IndexedList<T>> headMap(T toKey) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedMap<T, IndexedList<T>> tailMap(T fromKey) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public T firstKey() {
+      return entries.get(0).getKey();
+    }
+
+    @Override
+    public T lastKey() {
+      return entries.get(entries.size() - 1).getKey();
+    }
+  }
+
   // Only for unique index and for query with values. ($in doesn't work by example.)
   public List<T> get(DBObject query) {
     if (!unique) {
       throw new IllegalStateException("get is only for unique index");
     }
-    lookupCount++;
+    lookupCount.incrementAndGet();
 
     T key = getKeyFor(query);
     IndexedList<T> result = mapValues.get(key);
@@ -256,54 +664,315 @@ public abstract class IndexAbstract<T extends DBObject> {
 
   // @Nonnull
   public Collection<T> retrieveObjects(DBObject query) {
+    return retrieveObjects(query, false);
+  }
+
+  /**
+   * @param reverse true to walk the index in reverse order (see {@link #sortOrder(DBObject, DBObject)}).
+   * @return matching objects in the order of the index, or null if the index can't answer the query.
+   */
+  public Collection<T> retrieveObjects(DBObject query, boolean reverse) {
+    return retrieveObjects(query, reverse, new ExecutionStats("find"));
+  }
+
+  /**
+   * @param reverse true to walk the index in reverse order (see {@link #sortOrder(DBObject, DBObject)}).
+   * @param stats   receive the keys and the objects examined.
+   * @return matching objects in the order of the index, or null if the index can't answer the query.
+   */
+  public Collection<T> retrieveObjects(DBObject query, boolean reverse, ExecutionStats stats) {
+    if (multiKey && !isElementWise(query)) {
+      // The keys only hold the elements of the arrays, the query needs the whole arrays.
+      return null;
+    }
     // Optimization
     if (unique && query.keySet().size() == 1) {
       Object key = query.toMap().values().iterator().next();
       if (!(ExpressionParser.isDbObject(key) || key instanceof Binary || key instanceof byte[])) {
         List<T> result = get(query);
+        stats.keyExamined();
         if (result != null) {
+          for (int i = result.size(); i > 0; i--) {
+            stats.docExamined();
+          }
           return result;
         }
       }
     }
 
-    lookupCount++;
+    lookupCount.incrementAndGet();
 
     // Filter for the key.
     Filter filterKey = expressionParser.buildFilter(query, getFields());
     // Filter for the data.
     Filter filter = expressionParser.buildFilter(query);
-    List<T> result = new ArrayList<T>();
-    for (Map.Entry<T, IndexedList<T>> entry : mapValues.entrySet()) {
+    List<T> result = retrieveObjectsByRange(query, filterKey, filter, reverse, stats);
+    if (result == null) {
+      result = new ArrayList<T>();
+      addMatchingObjects(reverse ? ((NavigableMap<T, IndexedList<T>>) mapValues).descendingMap() : mapValues, filterKey, filter, result, stats);
+    }
+    // An object of a multikey index can be found under several keys.
+    return multiKey ? distinct(result) : result;
+  }
+
+  /**
+   * Index intersection : the objects of this index which the other index also gives for the query, compared by
+   * identity. Only the objects left are examined.
+   *
+   * @param other   index on other fields of the query.
+   * @param reverse true to walk this index in reverse order, the other index only gives a set.
+   * @return matching objects in the order of this index, or null if this index can't answer the query.
+   */
+  public Collection<T> retrieveObjects(DBObject query, IndexAbstract<T> other, boolean reverse, ExecutionStats stats) {
+    final long docsExamined = stats.getDocsExamined();
+    final Collection<T> objects = retrieveObjects(query, reverse, stats);
+    if (objects == null) {
+      return null;
+    }
+    final Collection<T> others = other.retrieveObjects(query, false, stats);
+    if (others == null) {
+      return objects;
+    }
+    final Set<T> selected = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>(others.size()));
+    selected.addAll(others);
+    final List<T> result = new ArrayList<T>(Math.min(objects.size(), selected.size()));
+    for (T object : objects) {
+      if (selected.contains(object)) {
+        result.add(object);
+      }
+    }
+    stats.intersected(docsExamined, result.size());
+    return result;
+  }
+
+  /**
+   * Answer a covered query (see {@link #isCovering(DBObject, DBObject, DBObject)}) : the objects are not read, their
+   * keys are given instead, once per object.
+   *
+   * @param reverse true to walk the index in reverse order.
+   * @param stats   receive the keys examined.
+   * @return the keys of the matching objects, in the order of the index. Keys are shared by the index : they must be
+   * copied before being given away.
+   */
+  public List<T> retrieveKeys(DBObject query, boolean reverse, ExecutionStats stats) {
+    lookupCount.incrementAndGet();
+
+    Filter filterKey = expressionParser.buildFilter(query, getFields());
+    List<T> result = retrieveObjectsByRange(query, filterKey, null, reverse, stats);
+    if (result == null) {
+      result = new ArrayList<T>();
+      addMatchingObjects(reverse ? ((NavigableMap<T, IndexedList<T>>) mapValues).descendingMap() : mapValues, filterKey, null, result, stats);
+    }
+    return result;
+  }
+
+  /**
+   * A query is covered by the index when the keys hold everything needed : the query, the sort and the projection only
+   * use fields of the index, and the projection excludes _id (unless _id is in the index).
+   * Keys of a multikey index only hold one element of the arrays, they can't cover a query.
+   */
+  public boolean isCovering(DBObject query, DBObject projection, DBObject orderby) {
+    if (!isCovering(query) || projection == null) {
+      return false;
+    }
+    if (orderby != null && !fields.containsAll(orderby.keySet())) {
+      return false;
+    }
+    boolean idExcluded = fields.contains(ID_FIELD_NAME);
+    boolean included = false;
+    for (String field : projection.keySet()) {
+      final Object value = projection.get(field);
+      final boolean include = value instanceof Boolean ? (Boolean) value : value instanceof Number && ((Number) value).intValue() > 0;
+      if (!include && ID_FIELD_NAME.equals(field) && (value instanceof Boolean || value instanceof Number)) {
+        idExcluded = true;
+      } else if (include && fields.contains(field)) {
+        included = true;
+      } else {
+        return false;
+      }
+    }
+    return idExcluded && included;
+  }
+
+  /**
+   * The keys are enough to check a query when it only uses fields of the index (see
+   * {@link #isCovering(DBObject, DBObject, DBObject)}) : {@link #retrieveKeys} then gives one key by matching object.
+   */
+  public boolean isCovering(DBObject query) {
+    return !multiKey && geoIndex == null && mapValues instanceof NavigableMap && fields.containsAll(query.keySet());
+  }
+
+  /**
+   * Distinct values of the first field of the index, in ascending order, read from the keys : each key is read once
+   * for an empty query, once by matching object for a covered query (see {@link #isCovering(DBObject)}). Only a key
+   * without a simple value (missing, null or document) reads its objects, the key alone can't tell them apart.
+   *
+   * @param field field of the distinct.
+   * @param query null or empty for all the objects.
+   * @return the values, arrays are not flattened ; null if the index can't give them : not an ordered index on this
+   * field first, or some objects are not in the index (sparse, partial) or have arrays (multikey).
+   */
+  @SuppressWarnings("unchecked")
+  public List<Object> distinctValues(String field, DBObject query, ExecutionStats stats) {
+    final boolean all = query == null || query.keySet().isEmpty();
+    if (!field.equals(fields.iterator().next()) || sparse || partialFilter != null || !(all || isCovering(query))
+        || multiKey || geoIndex != null || !(mapValues instanceof NavigableMap)) {
+      return null;
+    }
+    final Iterable<T> matchingKeys = all
+        ? (ascending ? mapValues.keySet() : ((NavigableMap<T, IndexedList<T>>) mapValues).descendingMap().keySet())
+        : retrieveKeys(query, !ascending, stats);
+    final Filter filter = all ? null : expressionParser.buildFilter(query);
+    final List<Object> values = new ArrayList<Object>();
+    T previous = null;
+    for (T key : matchingKeys) {
+      if (key == previous) {
+        // Same key for the next matching object.
+        continue;
+      }
+      previous = key;
+      final List<Object> keyValues = expressionParser.getEmbeddedValues(leadingPath, 0, key);
+      if (keyValues.size() == 1 && keyValues.get(0) != null && !ExpressionParser.isDbObject(keyValues.get(0))) {
+        values.addAll(keyValues);
+        continue;
+      }
+      for (T object : mapValues.get(key).getElements()) {
+        stats.docExamined();
+        if (filter == null || filter.apply(object)) {
+          values.addAll(expressionParser.getEmbeddedValues(leadingPath, 0, object));
+        }
+      }
+    }
+    return values;
+  }
+
+  private List<T> distinct(List<T> objects) {
+    final Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    final List<T> result = new ArrayList<T>(objects.size());
+    for (T object : objects) {
+      if (seen.add(object)) {
+        result.add(object);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * A key of a multikey index only holds one element of an array : the index can answer the query only if each
+   * condition on the indexed fields can be checked against one element.
+   * Only one condition must be satisfied by "some element" ($eq, $in, bounds...) : two of them can be satisfied by
+   * different elements of the same array. Conditions satisfied by "all the elements" ($ne, $nin) can be added.
+   */
+  private boolean isElementWise(DBObject query) {
+    for (String field : fields) {
+      final Object condition = query.get(field);
+      if (condition == null || condition instanceof List) {
+        return false;
+      }
+      if (ExpressionParser.isDbObject(condition) && !isElementWiseOperators(ExpressionParser.toDbObject(condition))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isElementWiseOperators(DBObject operators) {
+    int someElement = 0;
+    for (String operator : operators.keySet()) {
+      if (!operator.startsWith("$")) {
+        // Embedded document : compared to each element.
+        continue;
+      }
+      final Object value = operators.get(operator);
+      if (ExpressionParser.NE.equals(operator) || ExpressionParser.NIN.equals(operator) || ExpressionParser.REGEX_OPTIONS.equals(operator)) {
+        continue;
+      }
+      if (ExpressionParser.EQ.equals(operator) || ExpressionParser.GT.equals(operator) || ExpressionParser.GTE.equals(operator)
+          || ExpressionParser.LT.equals(operator) || ExpressionParser.LTE.equals(operator) || ExpressionParser.REGEX.equals(operator)) {
+        if (value instanceof List) {
+          return false;
+        }
+      } else if (ExpressionParser.IN.equals(operator)) {
+        if (!(value instanceof Collection)) {
+          return false;
+        }
+        for (Object element : (Collection<?>) value) {
+          if (element instanceof List) {
+            return false;
+          }
+        }
+      } else {
+        return false;
+      }
+      someElement++;
+    }
+    return someElement <= 1;
+  }
+
+  /**
+   * Walk only the ranges of the leading field which can match the query, instead of all the index.
+   *
+   * @return matching objects, or null if the index can't be walked by range for this query.
+   */
+  @SuppressWarnings("unchecked")
+  private List<T> retrieveObjectsByRange(DBObject query, Filter filterKey, Filter filter, boolean reverse, ExecutionStats stats) {
+    if (!(mapValues instanceof NavigableMap)) {
+      return null;
+    }
+    final List<IndexBound[]> ranges = IndexBound.ranges(leadingPath, query.get(fields.iterator().next()), valueComparator);
+    if (ranges == null) {
+      return null;
+    }
+    final NavigableMap navigableMap = (NavigableMap) mapValues;
+    final List<T> result = new ArrayList<T>();
+    try {
+      // Bounds are ascending, the map can be descending.
+      final boolean descending = !ranges.isEmpty() && navigableMap.comparator().compare(ranges.get(0)[0], ranges.get(0)[1]) > 0;
+      for (int i = 0; i < ranges.size(); i++) {
+        final IndexBound[] range = ranges.get(descending != reverse ? ranges.size() - 1 - i : i);
+        final NavigableMap<T, IndexedList<T>> subMap = descending ? navigableMap.subMap(range[1], true, range[0], true) : navigableMap.subMap(range[0], true, range[1], true);
+        addMatchingObjects(reverse ? subMap.descendingMap() : subMap, filterKey, filter, result, stats);
+      }
+    } catch (FongoException e) {
+      // Some stored values can't be ordered against the bounds.
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * @param filter filter of the objects, null to add the key once per object instead of the objects (covered query).
+   */
+  private void addMatchingObjects(Map<T, IndexedList<T>> values, Filter filterKey, Filter filter, List<T> result, ExecutionStats stats) {
+    for (Map.Entry<T, IndexedList<T>> entry : values.entrySet()) {
+      stats.keyExamined();
       if (filterKey.apply(entry.getKey())) {
+        if (filter == null) {
+          for (int i = entry.getValue().size(); i > 0; i--) {
+            result.add(entry.getKey());
+          }
+          continue;
+        }
         for (T object : entry.getValue().getElements()) {
+          stats.docExamined();
           if (filter.apply(object)) {
             result.add(object); // DO NOT CLONE ! need for update.
           }
         }
       }
     }
-    return result;
   }
 
   public long getLookupCount() {
-    return lookupCount;
+    return lookupCount.get();
   }
 
   public int size() {
-    int size = 0;
-    if (unique) {
-      size = mapValues.size();
-    } else {
-      for (Map.Entry<T, IndexedList<T>> entry : mapValues.entrySet()) {
-        size += entry.getValue().size();
-      }
-    }
     return size;
   }
 
   public List<DBObject> values() {
-    List<DBObject> values = new ArrayList<DBObject>(mapValues.size() * 10);
+    List<DBObject> values = new ArrayList<DBObject>(size);
     for (IndexedList<T> objects : mapValues.values()) {
       values.addAll(objects.getElements());
     }
@@ -312,32 +981,215 @@ public abstract class IndexAbstract<T extends DBObject> {
 
   public void clear() {
     mapValues.clear();
+    size = 0;
+    modifications++;
+    multiKey = false;
   }
 
   /**
-   * Return true if index can handle this query.
+   * Return true if index can handle this query : the leading fields of the index must be in the query.
+   * A compound index can be used by left prefix, unless it is sparse (objects without all the fields are not indexed).
+   * Also tells if an object must be added to the index.
    *
    * @param queryFields fields of the query.
    * @return true if index can be used.
    */
   public boolean canHandle(final DBObject queryFields) {
+    final int prefixLength = prefixLength(queryFields);
+    if (sparse || geoIndex != null) {
+      return prefixLength == fields.size();
+    }
+    return prefixLength > 0;
+  }
+
+  /**
+   * @return the number of fields of the index, from the leading one, which are in the query.
+   */
+  public int prefixLength(final DBObject queryFields) {
     if (queryFields == null) {
-      return false;
+      return 0;
     }
 
     //get keys including embedded indexes
+    int prefixLength = 0;
     for (String field : fields) {
       final Object o = queryFields.get(field);
       if (o == null && !keyEmbeddedFieldMatch(field, queryFields)) {
-        return false;
+        break;
       }
       if (ExpressionParser.isDbObject(o) && ExpressionParser.toDbObject(o).containsField(QueryOperators.EXISTS)) {
+        break;
+      }
+      prefixLength++;
+    }
+    return prefixLength;
+  }
+
+  /**
+   * @return the fields of the index used by the query (see {@link #prefixLength(DBObject)}).
+   */
+  List<String> prefixFields(final DBObject queryFields) {
+    return new ArrayList<String>(fields).subList(0, prefixLength(queryFields));
+  }
+
+  /**
+   * Tell if the objects retrieved for a query are already in the order of the sort. The leading fields with an equality
+   * in the query can be skipped by the sort : {a:1, b:1} gives the order of {b:1} for {a:5}.
+   * The sort must reach the last field of the index, so ties keep the natural order like a sort would.
+   *
+   * @return 1 if the objects are sorted, -1 if they are sorted when the index is walked in reverse order, 0 if they must
+   * be sorted.
+   */
+  public int sortOrder(DBObject query, DBObject orderby) {
+    if (multiKey || !(mapValues instanceof NavigableMap) || orderby == null || orderby.keySet().isEmpty()) {
+      return 0;
+    }
+    final List<String> indexFields = new ArrayList<String>(fields);
+    int position = 0;
+    while (position < indexFields.size() && !orderby.containsField(indexFields.get(position))
+        && isEquality(query.get(indexFields.get(position)))) {
+      position++;
+    }
+    int order = 0;
+    for (String sortField : orderby.keySet()) {
+      final Object direction = orderby.get(sortField);
+      if (position >= indexFields.size() || !indexFields.get(position).equals(sortField) || !(direction instanceof Number)) {
+        return 0;
+      }
+      final int fieldOrder = (((Number) direction).intValue() >= 0) == ascending ? 1 : -1;
+      if (order != 0 && order != fieldOrder) {
+        return 0;
+      }
+      order = fieldOrder;
+      position++;
+    }
+    return position == indexFields.size() ? order : 0;
+  }
+
+  /**
+   * Gather the statistics again once a tenth of the index has changed.
+   *
+   * @return statistics of the index.
+   */
+  public IndexStatistics getStatistics() {
+    IndexStatistics current = statistics;
+    if (current == null || modifications - current.modifications > current.getEntries() / 10) {
+      current = gatherStatistics();
+      statistics = current;
+    }
+    return current;
+  }
+
+  private IndexStatistics gatherStatistics() {
+    if (!(mapValues instanceof NavigableMap) || mapValues.isEmpty()) {
+      return new IndexStatistics(mapValues.size(), size, mapValues.size(), null, null, modifications);
+    }
+    int leadingValues = 0;
+    Object first = null;
+    Object previous = null;
+    for (T key : mapValues.keySet()) {
+      final Object value = leadingValue(key);
+      if (leadingValues == 0) {
+        first = value;
+        leadingValues++;
+      } else if (valueComparator.compare(previous, value) != 0) {
+        leadingValues++;
+      }
+      previous = value;
+    }
+    return new IndexStatistics(mapValues.size(), size, leadingValues, ascending ? first : previous, ascending ? previous : first, modifications);
+  }
+
+  private Object leadingValue(T key) {
+    Object value = key;
+    for (String path : leadingPath) {
+      if (!ExpressionParser.isDbObject(value)) {
+        return null;
+      }
+      value = ExpressionParser.toDbObject(value).get(path);
+    }
+    return value;
+  }
+
+  /**
+   * Estimate the cost of answering the query with this index, from its statistics : the number of objects to filter,
+   * plus the keys to walk when the index can't be walked by range.
+   *
+   * @return the estimated cost, {@link Double#POSITIVE_INFINITY} if the index can't answer the query.
+   */
+  public double estimateCost(DBObject query) {
+    if (multiKey && !isElementWise(query)) {
+      return Double.POSITIVE_INFINITY;
+    }
+    final IndexStatistics statistics = getStatistics();
+    if (isEqualityOnAllFields(query)) {
+      // Only one key to read.
+      return statistics.getEntriesPerKey();
+    }
+    final Object condition = query.get(fields.iterator().next());
+    final List<IndexBound[]> ranges = mapValues instanceof NavigableMap ? IndexBound.ranges(leadingPath, condition, valueComparator) : null;
+    if (ranges == null) {
+      // All the keys are walked.
+      final double selectivity = isEquality(condition) ? 1D / Math.max(1, statistics.getLeadingValues()) : DEFAULT_SELECTIVITY;
+      return statistics.getKeys() * KEY_COST + statistics.getEntries() * selectivity;
+    }
+    double selectivity = 0D;
+    for (IndexBound[] range : ranges) {
+      selectivity += selectivity(range, statistics);
+    }
+    return statistics.getEntries() * Math.min(1D, selectivity);
+  }
+
+  private boolean isEqualityOnAllFields(DBObject query) {
+    for (String field : fields) {
+      if (!isEquality(query.get(field))) {
         return false;
       }
     }
     return true;
   }
 
+  /**
+   * A single value selects its share of the distinct values, an interval is interpolated between the lowest and the
+   * highest values.
+   */
+  private double selectivity(IndexBound[] range, IndexStatistics statistics) {
+    final Object lower = range[0].value() == null ? statistics.getMin() : range[0].value();
+    final Object upper = range[1].value() == null ? statistics.getMax() : range[1].value();
+    if (lower != null && upper != null && valueComparator.compare(lower, upper) == 0) {
+      return 1D / Math.max(1, statistics.getLeadingValues());
+    }
+    final Double low = toDouble(lower);
+    final Double high = toDouble(upper);
+    final Double min = toDouble(statistics.getMin());
+    final Double max = toDouble(statistics.getMax());
+    if (low == null || high == null || min == null || max == null) {
+      return DEFAULT_SELECTIVITY;
+    }
+    if (max <= min) {
+      return low <= min && min <= high ? 1D : 0D;
+    }
+    return Math.max(0D, Math.min(high, max) - Math.max(low, min)) / (max - min);
+  }
+
+  private static Double toDouble(Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof Date) {
+      return (double) ((Date) value).getTime();
+    }
+    return null;
+  }
+
+  private static boolean isEquality(Object condition) {
+    if (ExpressionParser.isDbObject(condition)) {
+      final DBObject operators = ExpressionParser.toDbObject(condition);
+      return operators.keySet().size() == 1 && operators.containsField(ExpressionParser.EQ) && isEquality(operators.get(ExpressionParser.EQ));
+    }
+    return condition != null && !(condition instanceof List) && !(condition instanceof Pattern);
+  }
+
   private boolean keyEmbeddedFieldMatch(String field, DBObject queryFields) {
     //if field embedded field type
     String[] fieldParts = field.split("\\.");
@@ -371,49 +1223,113 @@ public abstract class IndexAbstract<T extends DBObject> {
 
   /**
    * Create the key for the hashmap.
-   * TODO: This is actually an invalid key model. If a field within a list is indexed, one document produces multiple keys
    */
   T getKeyFor(DBObject object) {
-    DBObject applyProjections = FongoDBCollection.applyProjections(object, keys);
-    return (T) pruneEmptyListObjects(applyProjections);
-  }
-
-  // Applying the projection may leave some empty objects within lists.
-  // For example, if our full document is: { _id: 1, list: [ {foo: 7}, {foo: 8}, {bar: 6}, {baz: 3} ] }
-  // Then a projection of { "list.foo": 1 } will result in: { list: [ {foo: 7}, {foo: 8}, {}, {} ] }
-  // This poses a problem for unique indexes, because the same values for indexed fields can have 
-  // different projections in the presence of list size variation. 
-  private DBObject pruneEmptyListObjects(DBObject projectedObject) {
-    BasicDBObject ret = new BasicDBObject();
-    for (String projectionKey : projectedObject.keySet()) {
-      final Object projectedValue = projectedObject.get(projectionKey);
-      if (projectedValue instanceof List) {
-        BasicDBList prunedList = pruneList((List) projectedValue);
-        ret.put(projectionKey, prunedList);
-      } else if (ExpressionParser.isDbObject(projectedValue)) {
-        ret.put(projectionKey, pruneEmptyListObjects((DBObject) projectedValue));
-      } else {
-        ret.put(projectionKey, projectedValue);
+    return (T) keyExtractor.keyFor(object);
+  }
+
+  /**
+   * Create the keys for the hashmap : if an indexed field is an array, one document produces one key per element
+   * (multikey index).
+   */
+  @SuppressWarnings("unchecked")
+  List<T> getKeysFor(DBObject object) {
+    if (!hasArrayOnFields(object)) {
+      return Collections.singletonList(getKeyFor(object));
+    }
+    multiKey = true;
+    List<DBObject> keys = Collections.<DBObject>singletonList(new BasicDBObject());
+    for (String field : fields) {
+      final List<String> path = Util.split(field);
+      final Set<Object> values = new LinkedHashSet<Object>();
+      collectValues(object, path, 0, values);
+      if (values.isEmpty()) {
+        continue;
+      }
+      // Several arrays : all the combinations.
+      final List<DBObject> expandedKeys = new ArrayList<DBObject>(keys.size() * values.size());
+      for (DBObject key : keys) {
+        for (Object value : values) {
+          final DBObject expandedKey = Util.clone(key);
+          putPath(expandedKey, path, value);
+          expandedKeys.add(expandedKey);
+        }
+      }
+      keys = expandedKeys;
+    }
+    // Equal values for the map (like 1 and 1.0) give the same key once.
+    final Set<DBObject> distinctKeys = mapValues instanceof SortedMap
+        ? new TreeSet<DBObject>(((SortedMap) mapValues).comparator()) : new HashSet<DBObject>();
+    final List<DBObject> frozenKeys = new ArrayList<DBObject>(keys.size());
+    for (DBObject key : keys) {
+      final DBObject frozenKey = IndexKey.copyOf(key);
+      if (distinctKeys.add(frozenKey)) {
+        frozenKeys.add(frozenKey);
       }
     }
-    return ret;
+    return (List<T>) frozenKeys;
   }
 
-  private BasicDBList pruneList(List inList) {
-    BasicDBList ret = new BasicDBList();
+  private boolean hasArrayOnFields(DBObject object) {
+    for (String field : fields) {
+      Object value = object;
+      for (String part : Util.split(field)) {
+        if (value instanceof List) {
+          return true;
+        }
+        if (!ExpressionParser.isDbObject(value)) {
+          break;
+        }
+        value = ExpressionParser.toDbObject(value).get(part);
+      }
+      if (value instanceof List) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    for (Object listItem : inList) {
-      if (listItem instanceof List) {
-        ret.add((List) listItem);
-      } else if (listItem instanceof DBObject){
-        if (!((DBObject) listItem).keySet().isEmpty()) {
-          ret.add(listItem);
+  /**
+   * Collect the values of a path, one per element when the path goes through arrays.
+   * Like MongoDB, arrays of arrays are not flattened.
+   */
+  private void collectValues(Object value, List<String> path, int position, Set<Object> values) {
+    if (value instanceof List) {
+      final List<?> list = (List<?>) value;
+      if (position == path.size()) {
+        if (list.isEmpty()) {
+          values.add(list);
+        } else {
+          values.addAll(list);
         }
       } else {
-        ret.add(listItem);
+        for (Object element : list) {
+          if (ExpressionParser.isDbObject(element) && !(element instanceof List)) {
+            collectValues(element, path, position, values);
+          }
+        }
+      }
+    } else if (position == path.size()) {
+      values.add(value);
+    } else if (ExpressionParser.isDbObject(value)) {
+      final DBObject dbObject = ExpressionParser.toDbObject(value);
+      if (dbObject.containsField(path.get(position))) {
+        collectValues(dbObject.get(path.get(position)), path, position + 1, values);
+      }
+    }
+  }
+
+  static void putPath(DBObject key, List<String> path, Object value) {
+    DBObject level = key;
+    for (int i = 0; i < path.size() - 1; i++) {
+      Object next = level.get(path.get(i));
+      if (!(next instanceof DBObject)) {
+        next = new BasicDBObject();
+        level.put(path.get(i), next);
       }
+      level = (DBObject) next;
     }
-    return ret;
+    level.put(path.get(path.size() - 1), value);
   }
 
   private List<List<Object>> extractFields(DBObject dbObject, Collection<String> fields) {
@@ -0,0 +1,234 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import org.bson.types.ObjectId;
+
+/**
+ * A bound on the leading field of an ordered index.
+ * <p/>
+ * A bound never equals a key of the index : it sorts just before (or just after) all the keys having the same leading
+ * value. Bounds can therefore be given to {@link java.util.NavigableMap#subMap} to walk only a range of the index.
+ */
+final class IndexBound {
+  private final List<String> path;
+  // null for an unbounded side.
+  private final Object value;
+  // -1 : before the keys with the same value, +1 : after.
+  private final int side;
+
+  private IndexBound(List<String> path, Object value, int side) {
+    this.path = path;
+    this.value = value;
+    this.side = side;
+  }
+
+  static IndexBound lower(List<String> path, Object value, boolean inclusive) {
+    return new IndexBound(path, value, inclusive ? -1 : 1);
+  }
+
+  static IndexBound upper(List<String> path, Object value, boolean inclusive) {
+    return new IndexBound(path, value, inclusive ? 1 : -1);
+  }
+
+  static IndexBound[] point(List<String> path, Object value) {
+    return new IndexBound[]{lower(path, value, true), upper(path, value, true)};
+  }
+
+  /**
+   * @return the value of the bound, null for an unbounded side.
+   */
+  Object value() {
+    return value;
+  }
+
+  /**
+   * Compute the ranges of the leading field which can match the query expression.
+   * Other operators ($ne, $regex...) don't restrict the ranges, they are handled by the filter.
+   *
+   * @param path       path of the leading field.
+   * @param expression query expression on the leading field.
+   * @param comparator ascending comparator of values.
+   * @return ordered and disjoint ranges (lower, upper), or null if the expression can't be turned into ranges.
+   */
+  static List<IndexBound[]> ranges(List<String> path, Object expression, Comparator<Object> comparator) {
+    if (isBoundValue(expression)) {
+      return Collections.singletonList(point(path, expression));
+    }
+    if (!ExpressionParser.isDbObject(expression) || expression instanceof List) {
+      return null;
+    }
+    final DBObject operators = ExpressionParser.toDbObject(expression);
+    IndexBound lower = new IndexBound(path, null, -1);
+    IndexBound upper = new IndexBound(path, null, 1);
+    List<Object> points = null;
+    boolean constrained = false;
+    for (String operator : operators.keySet()) {
+      final Object value = operators.get(operator);
+      if (!operator.startsWith("$")) {
+        // Embedded document.
+        return null;
+      }
+      if (ExpressionParser.IN.equals(operator)) {
+        final List<Object> inPoints = inPoints(value);
+        if (inPoints != null) {
+          points = inPoints;
+          constrained = true;
+        }
+      } else if (isBoundValue(value)) {
+        if (ExpressionParser.GT.equals(operator) || ExpressionParser.GTE.equals(operator)) {
+          lower = max(lower, lower(path, value, ExpressionParser.GTE.equals(operator)), comparator);
+          constrained = true;
+        } else if (ExpressionParser.LT.equals(operator) || ExpressionParser.LTE.equals(operator)) {
+          upper = min(upper, upper(path, value, ExpressionParser.LTE.equals(operator)), comparator);
+          constrained = true;
+        } else if (ExpressionParser.EQ.equals(operator)) {
+          points = new ArrayList<Object>(Collections.singletonList(value));
+          constrained = true;
+        }
+      }
+    }
+    if (!constrained) {
+      return null;
+    }
+
+    final List<IndexBound[]> ranges = new ArrayList<IndexBound[]>();
+    if (points == null) {
+      if (lower.compareTo(upper, comparator) <= 0) {
+        ranges.add(new IndexBound[]{lower, upper});
+      }
+      return ranges;
+    }
+    Collections.sort(points, comparator);
+    Object previous = null;
+    for (Object point : points) {
+      if (previous != null && comparator.compare(previous, point) == 0) {
+        continue;
+      }
+      previous = point;
+      final IndexBound[] range = point(path, point);
+      if (lower.compareTo(range[0], comparator) <= 0 && range[1].compareTo(upper, comparator) <= 0) {
+        ranges.add(range);
+      }
+    }
+    return ranges;
+  }
+
+  private static List<Object> inPoints(Object value) {
+    if (!(value instanceof Collection)) {
+      return null;
+    }
+    final List<Object> points = new ArrayList<Object>((Collection<?>) value);
+    for (Object point : points) {
+      if (!isBoundValue(point)) {
+        return null;
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Only values which are ordered the same way by the index and by the query filters can be used as bounds.
+   */
+  private static boolean isBoundValue(Object value) {
+    return value instanceof Number || value instanceof String || value instanceof Date || value instanceof ObjectId
+        || value instanceof Boolean;
+  }
+
+  private static IndexBound max(IndexBound bound1, IndexBound bound2, Comparator<Object> comparator) {
+    return bound1.compareTo(bound2, comparator) >= 0 ? bound1 : bound2;
+  }
+
+  private static IndexBound min(IndexBound bound1, IndexBound bound2, Comparator<Object> comparator) {
+    return bound1.compareTo(bound2, comparator) <= 0 ? bound1 : bound2;
+  }
+
+  /**
+   * Compare this bound with a key of the index (or another bound), in ascending order.
+   * Mimic the comparison of {@link DBObject} done by {@link ExpressionParser} : first the name of the fields, then the
+   * values.
+   */
+  int compareTo(Object other, Comparator<Object> comparator) {
+    if (other instanceof IndexBound) {
+      final IndexBound bound = (IndexBound) other;
+      if (value == null || bound.value == null) {
+        if (value == null && bound.value == null) {
+          return Integer.signum(side - bound.side);
+        }
+        return value == null ? side : -bound.side;
+      }
+      final int result = comparator.compare(value, bound.value);
+      return result != 0 ? result : Integer.signum(side - bound.side);
+    }
+
+    DBObject level = (DBObject) other;
+    for (int i = 0; i < path.size(); i++) {
+      final Iterator<String> keys = level.keySet().iterator();
+      final String first = keys.hasNext() ? keys.next() : null;
+      final int result = Util.compareToNullable(path.get(i), first);
+      if (result != 0) {
+        return result;
+      }
+      final Object keyValue = level.get(first);
+      if (i < path.size() - 1) {
+        if (!ExpressionParser.isDbObject(keyValue) || keyValue instanceof List) {
+          // Array on the path : the index is multikey and is not walked by range.
+          return -1;
+        }
+        level = ExpressionParser.toDbObject(keyValue);
+      } else {
+        if (value == null) {
+          return side;
+        }
+        final int compare = comparator.compare(value, keyValue);
+        return compare != 0 ? compare : side;
+      }
+    }
+    return side;
+  }
+
+  @Override
+  public String toString() {
+    return "IndexBound{" +
+        "path=" + path +
+        ", value=" + value +
+        ", side=" + side +
+        '}';
+  }
+
+  /**
+   * Comparator for the keys of an ordered index, which can also place an {@link IndexBound} between the keys.
+   */
+  static final class KeyComparator implements Comparator<Object> {
+    private final Comparator<Object> comparator;
+    private final int asc;
+
+    @SuppressWarnings("unchecked")
+    KeyComparator(ExpressionParser expressionParser, boolean asc) {
+      this.comparator = expressionParser.buildObjectComparator(true);
+      this.asc = asc ? 1 : -1;
+    }
+
+    @Override
+    public int compare(Object o1, Object o2) {
+      if (o1 instanceof IndexBound) {
+        return asc * ((IndexBound) o1).compareTo(o2, comparator);
+      }
+      if (o2 instanceof IndexBound) {
+        return -asc * ((IndexBound) o2).compareTo(o1, comparator);
+      }
+      if (o1 instanceof IndexKey && o2 instanceof IndexKey && ((IndexKey) o1).isFrozen() && ((IndexKey) o2).isFrozen()) {
+        return asc * ((IndexKey) o1).compareTo((IndexKey) o2, comparator);
+      }
+      return asc * comparator.compare(o1, o2);
+    }
+  }
+}
@@ -13,6 +13,29 @@ public final class IndexFactory {
   }
 
   public static IndexAbstract create(String name, DBObject keys, boolean unique, boolean sparse) throws MongoException {
+    return create(name, keys, unique, sparse, null);
+  }
+
+  /**
+   * @param partialFilterExpression only the objects matching this filter are in the index, null for a full index.
+   */
+  public static IndexAbstract create(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression) throws MongoException {
+    return create(name, keys, unique, sparse, partialFilterExpression, null);
+  }
+
+  /**
+   * @param partialFilterExpression only the objects matching this filter are in the index, null for a full index.
+   * @param expireAfterSeconds      objects expire this number of seconds after the date of the field, null if not a
+   *                                TTL index.
+   */
+  public static IndexAbstract create(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, Long expireAfterSeconds) throws MongoException {
+    final IndexAbstract index = createIndex(name, keys, unique, sparse);
+    index.setPartialFilterExpression(partialFilterExpression);
+    index.setExpireAfterSeconds(expireAfterSeconds);
+    return index;
+  }
+
+  private static IndexAbstract createIndex(String name, DBObject keys, boolean unique, boolean sparse) throws MongoException {
     String geoIndex = getGeoKey(keys);
     if (geoIndex != null) {
       return new GeoIndex(name, keys, unique, geoIndex, sparse);
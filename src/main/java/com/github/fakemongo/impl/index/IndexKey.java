@@ -0,0 +1,131 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * Key of an ordered or hashed index, built by a {@link KeyExtractor}.
+ * <p/>
+ * Once frozen, the fields of the key are also held in two arrays with a precomputed hash : the maps of the index hash,
+ * compare and check equality without walking the fields by name or encoding the key in BSON (like
+ * {@link BasicDBObject#hashCode()} and {@link BasicDBObject#equals(Object)} do).
+ * <p/>
+ * A frozen key must not be modified : it is shared by the index and its lookups.
+ */
+final class IndexKey extends BasicDBObject {
+  private String[] names;
+  private Object[] values;
+  private int hash;
+
+  /**
+   * @return a frozen key with the fields of the object.
+   */
+  static IndexKey copyOf(DBObject object) {
+    final IndexKey key = new IndexKey();
+    key.putAll(object);
+    return key.freeze();
+  }
+
+  IndexKey freeze() {
+    final String[] frozenNames = keySet().toArray(new String[size()]);
+    final Object[] frozenValues = new Object[frozenNames.length];
+    int frozenHash = 1;
+    for (int i = 0; i < frozenNames.length; i++) {
+      frozenValues[i] = get(frozenNames[i]);
+      frozenHash = 31 * frozenHash + (frozenNames[i].hashCode() ^ hashOf(frozenValues[i]));
+    }
+    this.values = frozenValues;
+    this.hash = frozenHash;
+    this.names = frozenNames;
+    return this;
+  }
+
+  /**
+   * Same order than {@link com.github.fakemongo.impl.ExpressionParser} gives to two documents : the names of the fields
+   * first, then the values.
+   *
+   * @param comparator ascending comparator of the values.
+   */
+  int compareTo(IndexKey other, Comparator<Object> comparator) {
+    final int length = Math.max(names.length, other.names.length);
+    for (int i = 0; i < length; i++) {
+      final String name0 = i < names.length ? names[i] : null;
+      final String name1 = i < other.names.length ? other.names[i] : null;
+      final int nameComparison = Util.compareToNullable(name0, name1);
+      if (nameComparison != 0) {
+        return nameComparison;
+      }
+      final int valueComparison = comparator.compare(name0 == null ? null : values[i], name1 == null ? null : other.values[i]);
+      if (valueComparison != 0) {
+        return valueComparison;
+      }
+    }
+    return 0;
+  }
+
+  boolean isFrozen() {
+    return names != null;
+  }
+
+  @Override
+  public int hashCode() {
+    return names == null ? super.hashCode() : hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (names == null || !(o instanceof IndexKey) || !((IndexKey) o).isFrozen()) {
+      return super.equals(o);
+    }
+    final IndexKey other = (IndexKey) o;
+    if (hash != other.hash || names.length != other.names.length) {
+      return false;
+    }
+    for (int i = 0; i < names.length; i++) {
+      if (!names[i].equals(other.names[i]) || !valueEquals(values[i], other.values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hashOf(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof byte[]) {
+      return Arrays.hashCode((byte[]) value);
+    }
+    if (value instanceof Pattern) {
+      return ((Pattern) value).pattern().hashCode();
+    }
+    return value.hashCode();
+  }
+
+  /**
+   * Like BSON : binaries and regular expressions are equal by content.
+   */
+  private static boolean valueEquals(Object value0, Object value1) {
+    if (value0 == value1) {
+      return true;
+    }
+    if (value0 == null || value1 == null) {
+      return false;
+    }
+    if (value0 instanceof byte[] && value1 instanceof byte[]) {
+      return Arrays.equals((byte[]) value0, (byte[]) value1);
+    }
+    if (value0 instanceof Pattern && value1 instanceof Pattern) {
+      return ((Pattern) value0).pattern().equals(((Pattern) value1).pattern())
+          && ((Pattern) value0).flags() == ((Pattern) value1).flags();
+    }
+    return value0.equals(value1);
+  }
+}
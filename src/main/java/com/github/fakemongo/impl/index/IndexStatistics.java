@@ -0,0 +1,73 @@
+package com.github.fakemongo.impl.index;
+
+/**
+ * Statistics of an index, used by the {@link QueryPlanner} to estimate the cost of a query.
+ * <p/>
+ * Statistics are a snapshot : they are gathered again once the index has changed enough.
+ */
+public final class IndexStatistics {
+  private final int keys;
+  private final int entries;
+  private final int leadingValues;
+  // Lowest and highest values of the leading field, null if the index is not ordered.
+  private final Object min;
+  private final Object max;
+  // Modifications of the index when the statistics were gathered.
+  final long modifications;
+
+  IndexStatistics(int keys, int entries, int leadingValues, Object min, Object max, long modifications) {
+    this.keys = keys;
+    this.entries = entries;
+    this.leadingValues = leadingValues;
+    this.min = min;
+    this.max = max;
+    this.modifications = modifications;
+  }
+
+  /**
+   * @return number of distinct keys.
+   */
+  public int getKeys() {
+    return keys;
+  }
+
+  /**
+   * @return number of objects in the index (an object of a multikey index is counted once per key).
+   */
+  public int getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return average number of objects under a key.
+   */
+  public double getEntriesPerKey() {
+    return keys == 0 ? 0D : (double) entries / keys;
+  }
+
+  /**
+   * @return number of distinct values of the leading field.
+   */
+  public int getLeadingValues() {
+    return leadingValues;
+  }
+
+  public Object getMin() {
+    return min;
+  }
+
+  public Object getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return "IndexStatistics{" +
+        "keys=" + keys +
+        ", entries=" + entries +
+        ", leadingValues=" + leadingValues +
+        ", min=" + min +
+        ", max=" + max +
+        '}';
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.fakemongo.impl.index;
+
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes done to the indexes by one write, so they can be undone when an index refuses the object (duplicate key,
+ * unsupported value...) : the indexes are then left as they were before the write.
+ * <p/>
+ * NOT Thread Safe : one instance by write, under the write lock of the collection.
+ */
+public final class IndexUndoLog {
+  private final List<Change> changes = new ArrayList<Change>();
+
+  void added(IndexAbstract index, DBObject key, DBObject object) {
+    changes.add(new Change(index, key, object, true));
+  }
+
+  void removed(IndexAbstract index, DBObject key, DBObject object) {
+    changes.add(new Change(index, key, object, false));
+  }
+
+  int size() {
+    return changes.size();
+  }
+
+  /**
+   * Undo all the changes, the last one first.
+   */
+  public void rollback() {
+    rollback(0);
+  }
+
+  /**
+   * Undo the changes done since the mark, the last one first.
+   *
+   * @param mark number of changes to keep.
+   */
+  @SuppressWarnings("unchecked")
+  void rollback(int mark) {
+    for (int i = changes.size() - 1; i >= mark; i--) {
+      final Change change = changes.remove(i);
+      if (change.added) {
+        change.index.unindexKey(change.key, change.object);
+      } else {
+        change.index.indexKey(change.key, change.object);
+      }
+    }
+  }
+
+  private static final class Change {
+    private final IndexAbstract index;
+    private final DBObject key;
+    private final DBObject object;
+    private final boolean added;
+
+    private Change(IndexAbstract index, DBObject key, DBObject object, boolean added) {
+      this.index = index;
+      this.key = key;
+      this.object = object;
+      this.added = added;
+    }
+  }
+}
@@ -3,13 +3,26 @@ package com.github.fakemongo.impl.index;
 import java.util.*;
 
 
+/**
+ * Postings of an index key : keeps the insertion order, and allows duplicates.
+ * <p/>
+ * Add, remove and contains are O(1) : a removed element leaves a hole in the slots, holes are compacted once they
+ * outnumber the elements.
+ */
 public class IndexedList<Е> {
-  private Map<Е, List<Integer>> indexes;
+  private static final int MIN_HOLES_TO_COMPACT = 16;
 
-  private final List<Е> elements;
+  // Position of each element in the slots : an Integer, or an ArrayDeque<Integer> for duplicates.
+  private Map<Е, Object> indexes;
+
+  private List<Е> elements;
+
+  private final List<Е> view = new ElementsView();
 
   private boolean isSingle = true;
 
+  private int holes = 0;
+
   public IndexedList(List<Е> elements) {
     this.elements = elements;
 
@@ -19,23 +32,28 @@ public class IndexedList<Е> {
   }
 
   private void initIndex(List<Е> newElements) {
-    indexes = new HashMap<Е, List<Integer>>();
+    indexes = new HashMap<Е, Object>();
 
     isSingle = false;
 
     int count = 0;
     for (Е el : newElements) {
-      addIndex(el, count);
+      if (el != null) {
+        addIndex(el, count);
+      }
       count += 1;
     }
   }
 
+  /**
+   * @return a read-only view of the elements, in insertion order.
+   */
   public List<Е> getElements() {
-    return elements;
+    return holes == 0 ? elements : view;
   }
 
   public int size() {
-    return elements.size();
+    return elements.size() - holes;
   }
 
   public boolean contains(Е element) {
@@ -46,58 +64,141 @@ public class IndexedList<Е> {
   }
 
   public void add(Е element) {
-    if (elements.size() == 1) {
+    if (isSingle && elements.size() == 1) {
       initIndex(elements);
     }
 
     elements.add(element);
 
-    if (elements.size() > 1)
-      addIndex(element, elements.size()-1);
+    if (!isSingle)
+      addIndex(element, elements.size() - 1);
   }
 
+  @SuppressWarnings("unchecked")
   private void addIndex(Е element, int position) {
-    final List<Integer> list;
-    if (!indexes.containsKey(element)) {
-      list = new ArrayList<Integer>();
-      indexes.put(element, list);
+    final Object index = indexes.get(element);
+    if (index == null) {
+      indexes.put(element, position);
+    } else if (index instanceof Integer) {
+      final ArrayDeque<Integer> positions = new ArrayDeque<Integer>(2);
+      positions.add((Integer) index);
+      positions.add(position);
+      indexes.put(element, positions);
+    } else {
+      ((ArrayDeque<Integer>) index).add(position);
     }
-    else
-      list = indexes.get(element);
-
-    list.add(position);
   }
 
-  public void remove(Е element) {
+  /**
+   * Remove the first occurrence of the element.
+   *
+   * @return the removed element, null if not found.
+   */
+  @SuppressWarnings("unchecked")
+  public Е remove(Е element) {
     if (isSingle) {
-      elements.remove(element);
-      return;
+      final int pos = elements.indexOf(element);
+      return pos < 0 ? null : elements.remove(pos);
     }
 
-    List<Integer> index = indexes.get(element);
+    final Object index = indexes.get(element);
 
     if (index == null)
-      return;
+      return null;
 
-    if (index.size() != 0) {
-      int pos = index.get(0);
-      elements.remove(pos);
-      index.remove(0);
-
-      for(int i=pos; i<elements.size(); i++) {
-        Е key = elements.get(i);
-        decrementIndexes(indexes.get(key));
+    final int pos;
+    if (index instanceof Integer) {
+      pos = (Integer) index;
+      indexes.remove(element);
+    } else {
+      final ArrayDeque<Integer> positions = (ArrayDeque<Integer>) index;
+      pos = positions.poll();
+      if (positions.size() == 1) {
+        indexes.put(element, positions.peek());
       }
     }
 
-    if (index.size() == 0) {
-      indexes.remove(element);
+    final Е removed = elements.set(pos, null);
+    holes++;
+
+    if (holes == elements.size()) {
+      elements.clear();
+      holes = 0;
+    } else if (holes >= MIN_HOLES_TO_COMPACT && holes > elements.size() - holes) {
+      compact();
     }
+    return removed;
   }
 
-  private void decrementIndexes(List<Integer> index) {
-    for (int i = 0; i < index.size(); i++) {
-      index.set(i, index.get(i) - 1);
+  private void compact() {
+    final List<Е> newElements = new ArrayList<Е>(elements.size() - holes);
+    for (Е el : elements) {
+      if (el != null) {
+        newElements.add(el);
+      }
+    }
+    elements = newElements;
+    holes = 0;
+    initIndex(newElements);
+  }
+
+  /**
+   * Elements without the holes, only used while there are holes.
+   */
+  private final class ElementsView extends AbstractSequentialList<Е> {
+
+    @Override
+    public int size() {
+      return IndexedList.this.size();
+    }
+
+    @Override
+    public ListIterator<Е> listIterator(int index) {
+      final List<Е> live = new ArrayList<Е>(size());
+      for (Е el : elements) {
+        if (el != null) {
+          live.add(el);
+        }
+      }
+      return Collections.unmodifiableList(live).listIterator(index);
+    }
+
+    @Override
+    public Iterator<Е> iterator() {
+      final Iterator<Е> iterator = elements.iterator();
+      return new Iterator<Е>() {
+        private Е next = advance();
+
+        private Е advance() {
+          while (iterator.hasNext()) {
+            final Е el = iterator.next();
+            if (el != null) {
+              return el;
+            }
+          }
+          return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public Е next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          final Е current = next;
+          next = advance();
+          return current;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
     }
   }
 }
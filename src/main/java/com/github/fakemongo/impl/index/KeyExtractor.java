@@ -0,0 +1,155 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import static com.mongodb.FongoDBCollection.ID_FIELD_NAME;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Key pattern of an index, compiled once : the key of an object without arrays on the indexed paths is built by walking
+ * only these paths, instead of projecting the whole object with {@link FongoDBCollection#applyProjections}.
+ * <p/>
+ * The key is the same as the one of the projection. Patterns where they would differ (a field prefix of another, a
+ * field starting with _id without being _id) are still projected.
+ */
+final class KeyExtractor {
+  // Projection of the index, for the patterns which are not compiled.
+  private final DBObject projection;
+  private final List<List<String>> paths = new ArrayList<List<String>>();
+  // _id comes first in the key, like in a projection.
+  private final boolean withId;
+  private final boolean compiled;
+
+  /**
+   * @param fields     fields of the index.
+   * @param projection projection giving the key, for the patterns which are not compiled.
+   */
+  KeyExtractor(Collection<String> fields, DBObject projection) {
+    this.projection = projection;
+    boolean id = false;
+    boolean compilable = true;
+    for (String field : fields) {
+      if (ID_FIELD_NAME.equals(field)) {
+        id = true;
+      } else if (field.startsWith(ID_FIELD_NAME)) {
+        compilable = false;
+      }
+      for (String other : fields) {
+        if (other.startsWith(field + ".")) {
+          compilable = false;
+        }
+      }
+      paths.add(Util.split(field));
+    }
+    this.withId = id;
+    this.compiled = compilable;
+  }
+
+  /**
+   * @return the key of an object which has no array on the indexed paths.
+   */
+  IndexKey keyFor(DBObject object) {
+    if (!compiled) {
+      return IndexKey.copyOf(pruneEmptyListObjects(FongoDBCollection.applyProjections(object, projection)));
+    }
+    final IndexKey key = new IndexKey();
+    if (withId) {
+      key.put(ID_FIELD_NAME, object.get(ID_FIELD_NAME));
+    }
+    for (List<String> path : paths) {
+      addPath(key, object, path);
+    }
+    return key.freeze();
+  }
+
+  /**
+   * Like the projection : the embedded documents on the path are created even when the last field is missing, a null
+   * value is left out.
+   */
+  private static void addPath(DBObject key, DBObject object, List<String> path) {
+    DBObject level = key;
+    DBObject current = object;
+    final int last = path.size() - 1;
+    for (int i = 0; i < last; i++) {
+      final Object next = current.get(path.get(i));
+      if (!ExpressionParser.isDbObject(next) || next instanceof List) {
+        return;
+      }
+      DBObject nested = (DBObject) level.get(path.get(i));
+      if (nested == null) {
+        nested = new BasicDBObject();
+        level.put(path.get(i), nested);
+      }
+      level = nested;
+      current = ExpressionParser.toDbObject(next);
+    }
+    final Object value = current.get(path.get(last));
+    if (value != null) {
+      level.put(path.get(last), ExpressionParser.isDbObject(value) && !(value instanceof List)
+          ? pruneEmptyListObjects(ExpressionParser.toDbObject(value)) : value);
+    }
+  }
+
+  /**
+   * @return true if the key has a value, which is not a document or an array, for each field.
+   */
+  boolean isComplete(DBObject key) {
+    for (List<String> path : paths) {
+      Object value = key;
+      for (String part : path) {
+        if (!ExpressionParser.isDbObject(value) || value instanceof List) {
+          return false;
+        }
+        value = ExpressionParser.toDbObject(value).get(part);
+      }
+      if (value == null || ExpressionParser.isDbObject(value) || value instanceof List) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Applying the projection may leave some empty objects within lists.
+  // For example, if our full document is: { _id: 1, list: [ {foo: 7}, {foo: 8}, {bar: 6}, {baz: 3} ] }
+  // Then a projection of { "list.foo": 1 } will result in: { list: [ {foo: 7}, {foo: 8}, {}, {} ] }
+  // This poses a problem for unique indexes, because the same values for indexed fields can have
+  // different projections in the presence of list size variation.
+  static DBObject pruneEmptyListObjects(DBObject projectedObject) {
+    BasicDBObject ret = new BasicDBObject();
+    for (String projectionKey : projectedObject.keySet()) {
+      final Object projectedValue = projectedObject.get(projectionKey);
+      if (projectedValue instanceof List) {
+        BasicDBList prunedList = pruneList((List) projectedValue);
+        ret.put(projectionKey, prunedList);
+      } else if (ExpressionParser.isDbObject(projectedValue)) {
+        ret.put(projectionKey, pruneEmptyListObjects(ExpressionParser.toDbObject(projectedValue)));
+      } else {
+        ret.put(projectionKey, projectedValue);
+      }
+    }
+    return ret;
+  }
+
+  private static BasicDBList pruneList(List inList) {
+    BasicDBList ret = new BasicDBList();
+
+    for (Object listItem : inList) {
+      if (listItem instanceof List) {
+        ret.add((List) listItem);
+      } else if (listItem instanceof DBObject) {
+        if (!((DBObject) listItem).keySet().isEmpty()) {
+          ret.add(listItem);
+        }
+      } else {
+        ret.add(listItem);
+      }
+    }
+    return ret;
+  }
+}
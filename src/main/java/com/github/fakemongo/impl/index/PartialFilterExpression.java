@@ -0,0 +1,228 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The filter of a partial index : only the objects matching it are in the index.
+ * <p/>
+ * The index can answer a query only if every object matching the query matches the filter. Like MongoDB, the
+ * implication is conservative : equalities, $exists:true, ranges ($gt, $gte, $lt, $lte) and $and are understood,
+ * any other condition must be repeated as is in the query.
+ */
+public final class PartialFilterExpression {
+  private final ExpressionParser expressionParser = new ExpressionParser();
+  private final Comparator<Object> comparator = expressionParser.buildObjectComparator(true);
+  private final DBObject expression;
+  private final Filter filter;
+
+  PartialFilterExpression(DBObject expression) {
+    this.expression = expression;
+    this.filter = expressionParser.buildFilter(expression);
+  }
+
+  public DBObject getExpression() {
+    return expression;
+  }
+
+  /**
+   * @return true if the object must be in the index.
+   */
+  public boolean matches(DBObject object) {
+    return filter.apply(object);
+  }
+
+  /**
+   * @return true if every object matching the query matches the filter.
+   */
+  public boolean isImpliedBy(DBObject query) {
+    final Map<String, List<Object>> conditions = new HashMap<String, List<Object>>();
+    collectConditions(query, conditions);
+    return isImpliedBy(conditions, expression);
+  }
+
+  /**
+   * Conditions of the query by field : the top level ones, and the ones of the $and.
+   */
+  private static void collectConditions(DBObject query, Map<String, List<Object>> conditions) {
+    for (String field : query.keySet()) {
+      final Object condition = query.get(field);
+      if (ExpressionParser.AND.equals(field) && condition instanceof List) {
+        for (Object element : (List<?>) condition) {
+          if (ExpressionParser.isDbObject(element)) {
+            collectConditions(ExpressionParser.toDbObject(element), conditions);
+          }
+        }
+      } else if (!field.startsWith("$")) {
+        List<Object> fieldConditions = conditions.get(field);
+        if (fieldConditions == null) {
+          fieldConditions = new ArrayList<Object>();
+          conditions.put(field, fieldConditions);
+        }
+        fieldConditions.add(condition);
+      }
+    }
+  }
+
+  private boolean isImpliedBy(Map<String, List<Object>> conditions, DBObject expression) {
+    for (String field : expression.keySet()) {
+      final Object condition = expression.get(field);
+      if (ExpressionParser.AND.equals(field) && condition instanceof List) {
+        for (Object element : (List<?>) condition) {
+          if (!ExpressionParser.isDbObject(element) || !isImpliedBy(conditions, ExpressionParser.toDbObject(element))) {
+            return false;
+          }
+        }
+      } else if (!isImpliedBy(conditions.get(field), condition)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isImpliedBy(List<Object> queryConditions, Object condition) {
+    if (queryConditions == null) {
+      return false;
+    }
+    if (!isOperators(condition)) {
+      for (Object queryCondition : queryConditions) {
+        final Object value = equalityValue(queryCondition);
+        if ((value != null && isComparable(value, condition) && comparator.compare(value, condition) == 0)
+            || (condition != null && condition.equals(queryCondition))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final DBObject operators = ExpressionParser.toDbObject(condition);
+    for (String operator : operators.keySet()) {
+      boolean implied = false;
+      for (Object queryCondition : queryConditions) {
+        if (implies(queryCondition, operator, operators.get(operator))) {
+          implied = true;
+          break;
+        }
+      }
+      if (!implied) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the condition of the query implies {operator: value}.
+   */
+  private boolean implies(Object queryCondition, String operator, Object value) {
+    if (isOperators(queryCondition)) {
+      final DBObject queryOperators = ExpressionParser.toDbObject(queryCondition);
+      if (queryOperators.containsField(operator) && value != null && value.equals(queryOperators.get(operator))) {
+        return true;
+      }
+      if (queryOperators.get(ExpressionParser.IN) instanceof List && queryOperators.keySet().size() == 1) {
+        // Each value of the $in must imply the condition.
+        final List<?> values = (List<?>) queryOperators.get(ExpressionParser.IN);
+        for (Object inValue : values) {
+          if (ExpressionParser.isDbObject(inValue) || !implies(inValue, operator, value)) {
+            return false;
+          }
+        }
+        return !values.isEmpty();
+      }
+    }
+    if (ExpressionParser.EXISTS.equals(operator)) {
+      return isTrue(value) && (equalityValue(queryCondition) != null || hasRange(queryCondition)
+          || (isOperators(queryCondition) && isTrue(ExpressionParser.toDbObject(queryCondition).get(ExpressionParser.EXISTS))));
+    }
+    final int sign;
+    if (ExpressionParser.GT.equals(operator) || ExpressionParser.GTE.equals(operator)) {
+      sign = 1;
+    } else if (ExpressionParser.LT.equals(operator) || ExpressionParser.LTE.equals(operator)) {
+      sign = -1;
+    } else if (ExpressionParser.EQ.equals(operator)) {
+      final Object equality = equalityValue(queryCondition);
+      return equality != null && isComparable(equality, value) && comparator.compare(equality, value) == 0;
+    } else {
+      return false;
+    }
+    final boolean strict = ExpressionParser.GT.equals(operator) || ExpressionParser.LT.equals(operator);
+    final Object equality = equalityValue(queryCondition);
+    if (equality != null) {
+      return isComparable(equality, value) && isBeyond(equality, value, sign, strict);
+    }
+    if (!isOperators(queryCondition)) {
+      return false;
+    }
+    // A bound of the query on the same side, at least as restrictive.
+    final DBObject queryOperators = ExpressionParser.toDbObject(queryCondition);
+    final String strictOperator = sign > 0 ? ExpressionParser.GT : ExpressionParser.LT;
+    final String largeOperator = sign > 0 ? ExpressionParser.GTE : ExpressionParser.LTE;
+    final Object strictBound = queryOperators.get(strictOperator);
+    final Object largeBound = queryOperators.get(largeOperator);
+    return (strictBound != null && isComparable(strictBound, value) && isBeyond(strictBound, value, sign, false))
+        || (largeBound != null && isComparable(largeBound, value) && isBeyond(largeBound, value, sign, strict));
+  }
+
+  /**
+   * @return true if bound is after value (sign 1) or before value (sign -1), strictly or not.
+   */
+  private boolean isBeyond(Object bound, Object value, int sign, boolean strict) {
+    final int compare = comparator.compare(bound, value) * sign;
+    return strict ? compare > 0 : compare >= 0;
+  }
+
+  private static boolean hasRange(Object condition) {
+    if (!isOperators(condition)) {
+      return false;
+    }
+    final DBObject operators = ExpressionParser.toDbObject(condition);
+    return operators.get(ExpressionParser.GT) != null || operators.get(ExpressionParser.GTE) != null
+        || operators.get(ExpressionParser.LT) != null || operators.get(ExpressionParser.LTE) != null;
+  }
+
+  /**
+   * @return the value of an equality (plain value or $eq), null for another condition.
+   */
+  private static Object equalityValue(Object condition) {
+    if (isOperators(condition)) {
+      final DBObject operators = ExpressionParser.toDbObject(condition);
+      return operators.keySet().size() == 1 ? equalityValue(operators.get(ExpressionParser.EQ)) : null;
+    }
+    if (condition instanceof List || condition instanceof Pattern || ExpressionParser.isDbObject(condition)) {
+      return null;
+    }
+    return condition;
+  }
+
+  private static boolean isOperators(Object condition) {
+    if (!ExpressionParser.isDbObject(condition) || condition instanceof List) {
+      return false;
+    }
+    final DBObject dbObject = ExpressionParser.toDbObject(condition);
+    return !dbObject.keySet().isEmpty() && dbObject.keySet().iterator().next().startsWith("$");
+  }
+
+  /**
+   * Range operators only match values of the same type : 5 is not after "a".
+   */
+  private static boolean isComparable(Object value, Object bound) {
+    return (value instanceof Number && bound instanceof Number)
+        || (value != null && bound != null && value.getClass() == bound.getClass());
+  }
+
+  private static boolean isTrue(Object value) {
+    return Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).intValue() != 0);
+  }
+
+  @Override
+  public String toString() {
+    return "PartialFilterExpression{" + expression + '}';
+  }
+}
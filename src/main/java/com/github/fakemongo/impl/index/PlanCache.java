@@ -0,0 +1,135 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Plans chosen by the {@link QueryPlanner}, by shape of query : the fields and the operators, with the types of the
+ * values but not the values themselves.
+ * <p/>
+ * A plan is chosen again when the size of the collection has changed by more than a tenth. The cache must be cleared
+ * when an index is created or dropped. A cached plan is also chosen again when it can't answer the values of the query
+ * (see {@link QueryPlan#canAnswer(DBObject)}) : a partial index only answers the queries implying its filter.
+ * <p/>
+ * Thread safe : plans are added by concurrent readers.
+ */
+public class PlanCache {
+  // Generated queries can have an unbounded number of shapes.
+  private static final int MAX_SHAPES = 5000;
+
+  private final ConcurrentMap<String, CachedPlan> plans = new ConcurrentHashMap<String, CachedPlan>();
+
+  /**
+   * @return the cached plan for the shape of the query, or a new plan.
+   */
+  public QueryPlan plan(Collection<IndexAbstract> indexes, DBObject query, int collectionSize) {
+    final DBObject shape = shape(query);
+    final String key = shape.toString();
+    final CachedPlan cached = plans.get(key);
+    if (cached != null && !cached.isStale(collectionSize) && cached.plan.canAnswer(query)) {
+      return cached.plan;
+    }
+    final QueryPlan plan = QueryPlanner.plan(indexes, query, collectionSize);
+    if (plans.size() >= MAX_SHAPES) {
+      plans.clear();
+    }
+    plans.put(key, new CachedPlan(shape, plan, collectionSize));
+    return plan;
+  }
+
+  /**
+   * @param query only the plan of the shape of this query, or all the plans if null.
+   * @return the cached plans.
+   */
+  public List<DBObject> list(DBObject query) {
+    final List<DBObject> result = new ArrayList<DBObject>();
+    if (query != null) {
+      final CachedPlan cached = plans.get(shape(query).toString());
+      if (cached != null) {
+        result.add(cached.toDBObject());
+      }
+      return result;
+    }
+    for (CachedPlan cached : plans.values()) {
+      result.add(cached.toDBObject());
+    }
+    return result;
+  }
+
+  /**
+   * @param query only the plan of the shape of this query, or all the plans if null.
+   */
+  public void clear(DBObject query) {
+    if (query == null) {
+      plans.clear();
+    } else {
+      plans.remove(shape(query).toString());
+    }
+  }
+
+  public int size() {
+    return plans.size();
+  }
+
+  /**
+   * Shape of a query : the same document, where values are replaced by their type. Lists keep the distinct shapes of
+   * their elements.
+   */
+  public static DBObject shape(DBObject query) {
+    final BasicDBObject shape = new BasicDBObject();
+    if (query != null) {
+      for (String key : query.keySet()) {
+        shape.put(key, shapeOf(query.get(key)));
+      }
+    }
+    return shape;
+  }
+
+  private static Object shapeOf(Object value) {
+    if (value instanceof List) {
+      final Set<Object> elements = new LinkedHashSet<Object>();
+      for (Object element : (List<?>) value) {
+        elements.add(shapeOf(element));
+      }
+      final BasicDBList shape = new BasicDBList();
+      shape.addAll(elements);
+      return shape;
+    }
+    if (ExpressionParser.isDbObject(value)) {
+      return shape(ExpressionParser.toDbObject(value));
+    }
+    return value == null ? "null" : value.getClass().getSimpleName();
+  }
+
+  private static final class CachedPlan {
+    private final DBObject shape;
+    private final QueryPlan plan;
+    private final int collectionSize;
+
+    private CachedPlan(DBObject shape, QueryPlan plan, int collectionSize) {
+      this.shape = shape;
+      this.plan = plan;
+      this.collectionSize = collectionSize;
+    }
+
+    private boolean isStale(int size) {
+      return Math.abs(size - collectionSize) > collectionSize / 10;
+    }
+
+    private DBObject toDBObject() {
+      return new BasicDBObject("query", shape)
+          .append("details", new BasicDBObject("solution", plan.getSolution()))
+          .append("reason", new BasicDBObject("score", plan.getCost()))
+          .append("filterSet", false);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The way chosen by the {@link QueryPlanner} to answer a query : an index, the intersection of two indexes, the union
+ * of the plans of the branches of a $or, or a scan of the whole collection.
+ */
+public final class QueryPlan {
+  private final IndexAbstract index;
+  private final IndexAbstract intersectedIndex;
+  // Plans of the branches of a $or, by shape of branch.
+  private final Map<String, QueryPlan> branches;
+  private final double cost;
+  private final List<QueryPlan> rejectedPlans;
+
+  QueryPlan(IndexAbstract index, double cost) {
+    this(index, null, cost);
+  }
+
+  QueryPlan(IndexAbstract index, IndexAbstract intersectedIndex, double cost) {
+    this(index, intersectedIndex, Collections.<String, QueryPlan>emptyMap(), cost, Collections.<QueryPlan>emptyList());
+  }
+
+  /**
+   * @param branches plans of the branches of a $or, by shape of branch.
+   */
+  static QueryPlan union(Map<String, QueryPlan> branches, double cost) {
+    return new QueryPlan(null, null, branches, cost, Collections.<QueryPlan>emptyList());
+  }
+
+  private QueryPlan(IndexAbstract index, IndexAbstract intersectedIndex, Map<String, QueryPlan> branches, double cost,
+                    List<QueryPlan> rejectedPlans) {
+    this.index = index;
+    this.intersectedIndex = intersectedIndex;
+    this.branches = Collections.unmodifiableMap(branches);
+    this.cost = cost;
+    this.rejectedPlans = Collections.unmodifiableList(rejectedPlans);
+  }
+
+  /**
+   * @return the same plan, with the other candidates considered by the planner.
+   */
+  QueryPlan withRejectedPlans(List<QueryPlan> rejectedPlans) {
+    return new QueryPlan(index, intersectedIndex, branches, cost, rejectedPlans);
+  }
+
+  /**
+   * @return the index to use, null for a scan of the collection or a union.
+   */
+  public IndexAbstract getIndex() {
+    return index;
+  }
+
+  /**
+   * @return the index whose objects are intersected with the ones of {@link #getIndex()}, or null.
+   */
+  public IndexAbstract getIntersectedIndex() {
+    return intersectedIndex;
+  }
+
+  public boolean isCollectionScan() {
+    return index == null && branches.isEmpty();
+  }
+
+  public boolean isIntersection() {
+    return intersectedIndex != null;
+  }
+
+  /**
+   * @return true if the objects are the union of the objects of the branches of the $or.
+   */
+  public boolean isUnion() {
+    return !branches.isEmpty();
+  }
+
+  /**
+   * @return the plan of a branch of the $or, null if the branch has not been planned.
+   */
+  public QueryPlan getBranchPlan(DBObject branch) {
+    return branches.get(PlanCache.shape(branch).toString());
+  }
+
+  /**
+   * A plan is chosen for the shape of a query : with other values, a partial index may miss objects of the query.
+   *
+   * @return true if the indexes of the plan (and of its branches) have all the objects matching the query.
+   */
+  public boolean canAnswer(DBObject query) {
+    if (isUnion()) {
+      final Object or = query.get(QueryOperators.OR);
+      if (!(or instanceof List)) {
+        return false;
+      }
+      for (Object branch : (List<?>) or) {
+        if (!ExpressionParser.isDbObject(branch)) {
+          return false;
+        }
+        final DBObject branchQuery = ExpressionParser.toDbObject(branch);
+        final QueryPlan branchPlan = getBranchPlan(branchQuery);
+        if (branchPlan == null || !branchPlan.canAnswer(branchQuery)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return canAnswer(index, query) && canAnswer(intersectedIndex, query);
+  }
+
+  private static boolean canAnswer(IndexAbstract index, DBObject query) {
+    return index == null || (index.canHandle(query) && index.hasAllObjectsFor(query));
+  }
+
+  /**
+   * @return the plans of the branches of the $or, one by shape of branch.
+   */
+  public Collection<QueryPlan> getBranchPlans() {
+    return branches.values();
+  }
+
+  /**
+   * @return estimated number of objects to filter.
+   */
+  public double getCost() {
+    return cost;
+  }
+
+  /**
+   * @return the other candidates considered by the planner.
+   */
+  public List<QueryPlan> getRejectedPlans() {
+    return rejectedPlans;
+  }
+
+  /**
+   * @return "COLLSCAN", the name of the index, the names of the intersected indexes, or the solutions of the branches.
+   */
+  public String getSolution() {
+    if (isUnion()) {
+      final StringBuilder solution = new StringBuilder("OR(");
+      for (QueryPlan branch : branches.values()) {
+        if (solution.length() > 3) {
+          solution.append(", ");
+        }
+        solution.append(branch.getSolution());
+      }
+      return solution.append(')').toString();
+    }
+    if (index == null) {
+      return "COLLSCAN";
+    }
+    return intersectedIndex == null ? index.getName() : index.getName() + " AND " + intersectedIndex.getName();
+  }
+
+  @Override
+  public String toString() {
+    return "QueryPlan{" +
+        "index=" + getSolution() +
+        ", cost=" + cost +
+        '}';
+  }
+}
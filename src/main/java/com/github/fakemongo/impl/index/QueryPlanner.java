@@ -0,0 +1,143 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Choose the cheapest plan for a query, from the statistics of the indexes.
+ * <p/>
+ * A scan of the collection filters every object ; an index filters the objects its keys select, plus the cost of
+ * walking its keys (see {@link IndexAbstract#estimateCost(DBObject)}). Two indexes on different fields of the query
+ * can be intersected : only the objects selected by both are filtered. Each branch of a $or can have its own plan :
+ * the objects of the branches are united.
+ */
+public final class QueryPlanner {
+  // Preparing the lookup of a second index, and hashing its objects.
+  private static final double INTERSECTION_COST = 1D;
+
+  private QueryPlanner() {
+  }
+
+  /**
+   * @param indexes        indexes of the collection.
+   * @param query          the query.
+   * @param collectionSize number of objects of the collection.
+   * @return the cheapest plan. On a tie, an index is preferred to a scan, and the index with the most fields of the
+   * query (then a unique one) is preferred. An intersection or a union must be strictly cheaper than a single index.
+   */
+  public static QueryPlan plan(Collection<IndexAbstract> indexes, DBObject query, int collectionSize) {
+    final List<QueryPlan> candidates = new ArrayList<QueryPlan>();
+    QueryPlan best = new QueryPlan(null, collectionSize);
+    candidates.add(best);
+    int bestPrefix = 0;
+    for (IndexAbstract index : indexes) {
+      if (!index.canHandle(query) || !index.hasAllObjectsFor(query)) {
+        continue;
+      }
+      final QueryPlan candidate = new QueryPlan(index, index.estimateCost(query));
+      candidates.add(candidate);
+      if (candidate.getCost() > best.getCost()) {
+        continue;
+      }
+      final int prefix = index.prefixLength(query);
+      if (candidate.getCost() < best.getCost() || best.isCollectionScan() || prefix > bestPrefix
+          || (prefix == bestPrefix && !best.getIndex().isUnique() && index.isUnique())) {
+        best = candidate;
+        bestPrefix = prefix;
+      }
+    }
+    final QueryPlan intersection = intersection(candidates, query, collectionSize);
+    final QueryPlan union = union(indexes, query, collectionSize);
+    for (QueryPlan candidate : Arrays.asList(intersection, union)) {
+      if (candidate != null) {
+        candidates.add(candidate);
+        if (candidate.getCost() < best.getCost()) {
+          best = candidate;
+        }
+      }
+    }
+    candidates.remove(best);
+    return best.withRejectedPlans(candidates);
+  }
+
+  /**
+   * Plan each branch of a $or : the cost of the union is the sum of the costs of the branches. A branch without index
+   * needs a scan of the collection, which also answers the other branches : no union then.
+   *
+   * @return the union of the plans of the branches, or null if the query has no $or or a branch needs a scan.
+   */
+  private static QueryPlan union(Collection<IndexAbstract> indexes, DBObject query, int collectionSize) {
+    final Object or = query.get(QueryOperators.OR);
+    if (!(or instanceof List) || ((List<?>) or).isEmpty()) {
+      return null;
+    }
+    final Map<String, QueryPlan> branches = new LinkedHashMap<String, QueryPlan>();
+    double cost = 0D;
+    for (Object branch : (List<?>) or) {
+      if (!ExpressionParser.isDbObject(branch)) {
+        return null;
+      }
+      final DBObject branchQuery = ExpressionParser.toDbObject(branch);
+      final QueryPlan plan = plan(indexes, branchQuery, collectionSize);
+      if (plan.isCollectionScan()) {
+        return null;
+      }
+      cost += plan.getCost();
+      final String shape = PlanCache.shape(branchQuery).toString();
+      final QueryPlan sameShape = branches.get(shape);
+      if (sameShape == null) {
+        branches.put(shape, plan);
+      } else if (!sameShape.canAnswer(branchQuery)) {
+        // Branches of the same shape share a plan.
+        return null;
+      }
+    }
+    return QueryPlan.union(branches, cost);
+  }
+
+  /**
+   * The cheapest intersection of two indexes on different fields of the query. The objects of both indexes are walked,
+   * and only the objects of both are filtered : with independent fields, a part cost2 / collectionSize of the objects
+   * of the first index.
+   *
+   * @return the cheapest intersection, or null if no two indexes can be intersected.
+   */
+  private static QueryPlan intersection(List<QueryPlan> candidates, DBObject query, int collectionSize) {
+    QueryPlan best = null;
+    for (int i = 0; i < candidates.size(); i++) {
+      for (int j = i + 1; j < candidates.size(); j++) {
+        final QueryPlan first = candidates.get(i).getCost() <= candidates.get(j).getCost() ? candidates.get(i) : candidates.get(j);
+        final QueryPlan second = first == candidates.get(i) ? candidates.get(j) : candidates.get(i);
+        if (!canIntersect(first.getIndex(), second.getIndex(), query)
+            || Double.isInfinite(first.getCost()) || Double.isInfinite(second.getCost())) {
+          continue;
+        }
+        final double cost = INTERSECTION_COST + (first.getCost() + second.getCost()) * IndexAbstract.KEY_COST
+            + first.getCost() * second.getCost() / Math.max(1, collectionSize);
+        if (best == null || cost < best.getCost()) {
+          best = new QueryPlan(first.getIndex(), second.getIndex(), cost);
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Geo and hashed indexes don't give a plain set of objects. The indexes must use different fields of the query,
+   * otherwise one of them already selects what the other does.
+   */
+  private static boolean canIntersect(IndexAbstract first, IndexAbstract second, DBObject query) {
+    if (first == null || second == null || first.isGeoIndex() || second.isGeoIndex()) {
+      return false;
+    }
+    return Collections.disjoint(first.prefixFields(query), second.prefixFields(query));
+  }
+}
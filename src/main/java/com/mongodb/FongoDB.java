@@ -17,6 +17,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -267,6 +268,18 @@ public class FongoDB extends DB {
       return runFindAndModify(cmd, "findandmodify");
     } else if (cmd.containsField("ping")) {
       return okResult();
+    } else if (cmd.containsField("explain")) {
+      return runExplain(ExpressionParser.toDbObject(cmd.get("explain")));
+    } else if (cmd.containsField("planCacheListPlans")) {
+      final List<DBObject> plans = doGetCollection((String) cmd.get("planCacheListPlans")).planCacheListPlans(ExpressionParser.toDbObject(cmd.get("query")));
+      CommandResult okResult = okResult();
+      BasicDBList list = new BasicDBList();
+      list.addAll(plans);
+      okResult.put("plans", list);
+      return okResult;
+    } else if (cmd.containsField("planCacheClear")) {
+      doGetCollection((String) cmd.get("planCacheClear")).planCacheClear(ExpressionParser.toDbObject(cmd.get("query")));
+      return okResult();
     } else if (cmd.containsField("validate")) {
       return okResult();
     } else if (cmd.containsField("buildInfo") || cmd.containsField("buildinfo")) {
@@ -500,6 +513,19 @@ public class FongoDB extends DB {
     return "FongoDB." + this.getName();
   }
 
+  /**
+   * Remove the objects expired by the TTL indexes of all the collections.
+   *
+   * @return number of removed objects.
+   */
+  public int removeExpired(Date now, int batchSize) {
+    int removed = 0;
+    for (FongoDBCollection collection : new ArrayList<FongoDBCollection>(collMap.values())) {
+      removed += collection.removeExpired(now, batchSize);
+    }
+    return removed;
+  }
+
   synchronized void removeCollection(FongoDBCollection collection) {
     this.collMap.remove(collection.getName());
     this.getCollection(SYSTEM_NAMESPACES).remove(new BasicDBObject("name", collection.getFullName()));
@@ -539,6 +565,65 @@ public class FongoDB extends DB {
     return okResult;
   }
 
+  // http://docs.mongodb.org/manual/reference/command/explain/
+  private CommandResult runExplain(DBObject explained) {
+    final DBObject explain = explain(explained);
+    if (explain == null) {
+      return notOkErrorResult(null, "explain only handles find, count, update and delete");
+    }
+    CommandResult okResult = okResult();
+    okResult.putAll(explain);
+    return okResult;
+  }
+
+  /**
+   * @param command the explained command : find, count, update or delete.
+   * @return the output of explain, null if the command can't be explained.
+   */
+  public DBObject explain(DBObject command) {
+    if (command == null) {
+      return null;
+    }
+    if (command.containsField("find")) {
+      final DBObject filter = ExpressionParser.toDbObject(command.get("filter"));
+      final DBObject query = new BasicDBObject("$query", filter == null ? new BasicDBObject() : filter);
+      if (command.containsField("sort")) {
+        query.put("$orderby", command.get("sort"));
+      }
+      final Number skip = (Number) command.get("skip");
+      final Number limit = (Number) command.get("limit");
+      return doGetCollection((String) command.get("find")).explain(query,
+          ExpressionParser.toDbObject(command.get("projection")),
+          skip == null ? 0 : skip.intValue(),
+          limit == null ? 0 : limit.intValue());
+    } else if (command.containsField("count")) {
+      final Number skip = (Number) command.get("skip");
+      final Number limit = (Number) command.get("limit");
+      return doGetCollection((String) command.get("count")).explainCount(
+          ExpressionParser.toDbObject(command.get("query")),
+          limit == null ? 0L : limit.longValue(),
+          skip == null ? 0L : skip.longValue());
+    } else if (command.containsField("update")) {
+      final List<DBObject> updates = (List<DBObject>) command.get("updates");
+      if (updates == null || updates.isEmpty()) {
+        return null;
+      }
+      final DBObject update = updates.get(0);
+      return doGetCollection((String) command.get("update")).explainWrite("update",
+          ExpressionParser.toDbObject(update.get("q")), Boolean.TRUE.equals(update.get("multi")));
+    } else if (command.containsField("delete")) {
+      final List<DBObject> deletes = (List<DBObject>) command.get("deletes");
+      if (deletes == null || deletes.isEmpty()) {
+        return null;
+      }
+      final DBObject delete = deletes.get(0);
+      final Number limit = (Number) delete.get("limit");
+      return doGetCollection((String) command.get("delete")).explainWrite("remove",
+          ExpressionParser.toDbObject(delete.get("q")), limit == null || limit.intValue() < 1);
+    }
+    return null;
+  }
+
   private CommandResult runMapReduce(DBObject cmd, String key) {
     MapReduceOutput result = doMapReduce(
         (String) cmd.get(key),
@@ -2,16 +2,24 @@ package com.mongodb;
 
 import com.github.fakemongo.FongoException;
 import com.github.fakemongo.impl.Aggregator;
+import com.github.fakemongo.impl.CursorRegistry;
 import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Filter;
 import com.github.fakemongo.impl.MapReduce;
+import com.github.fakemongo.impl.ReadOnlyDBObject;
+import com.github.fakemongo.impl.RecordStore;
 import com.github.fakemongo.impl.Tuple2;
 import com.github.fakemongo.impl.UpdateEngine;
 import com.github.fakemongo.impl.Util;
 import com.github.fakemongo.impl.geo.GeoUtil;
+import com.github.fakemongo.impl.index.ExecutionStats;
 import com.github.fakemongo.impl.index.GeoIndex;
+import com.github.fakemongo.impl.index.Index;
 import com.github.fakemongo.impl.index.IndexAbstract;
 import com.github.fakemongo.impl.index.IndexFactory;
+import com.github.fakemongo.impl.index.IndexUndoLog;
+import com.github.fakemongo.impl.index.PlanCache;
+import com.github.fakemongo.impl.index.QueryPlan;
 import com.github.fakemongo.impl.text.TextSearch;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -20,13 +28,18 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.bson.BSON;
 import org.bson.BsonArray;
 import org.bson.BsonDocument;
@@ -70,8 +83,15 @@ public class FongoDBCollection extends DBCollection {
   private final ExpressionParser.ObjectComparator objectComparator;
   // Fields/Index
   private final List<IndexAbstract> indexes = new ArrayList<IndexAbstract>();
+  private final PlanCache planCache = new PlanCache();
   private final IndexAbstract _idIndex;
+  // Documents in natural order.
+  private final RecordStore records = new RecordStore();
+  // Readers share the lock, writers have an exclusive access.
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
   private final boolean validateOnInsert;
+  // Stored documents are read-only and given to readers without copy.
+  private final boolean immutableDocuments;
 
   private final String SYSTEM_ELEMENT = "system.";
 
@@ -83,6 +103,7 @@ public class FongoDBCollection extends DBCollection {
     super(db, name);
     this.fongoDb = db;
     this.validateOnInsert = validateOnInsert;
+    this.immutableDocuments = db.fongo.isImmutableDocuments();
     this.nonIdCollection = name.startsWith(SYSTEM_ELEMENT);
     this.expressionParser = new ExpressionParser();
     this.updateEngine = new UpdateEngine();
@@ -94,7 +115,7 @@ public class FongoDBCollection extends DBCollection {
     }
   }
 
-  private synchronized WriteResult updateResult(int updateCount, boolean updatedExisting, final Object upsertedId) {
+  private WriteResult updateResult(int updateCount, boolean updatedExisting, final Object upsertedId) {
     return new WriteResult(updateCount, updatedExisting, upsertedId);
   }
 
@@ -111,32 +132,37 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized WriteResult insert(final List<? extends DBObject> documents, final InsertOptions insertOptions) {
-    WriteConcern writeConcern = insertOptions.getWriteConcern() != null ? insertOptions.getWriteConcern() : getWriteConcern();
-    for (final DBObject obj : documents) {
-      DBObject cloned = filterLists(Util.cloneIdFirst(encodeDecode(obj, insertOptions.getDbEncoder())));
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("insert: " + cloned);
-      }
-      ObjectId id = putIdIfNotPresent(cloned);
-      // Save the id field in the caller.
-      if (!(obj instanceof LazyDBObject) && obj.get(ID_FIELD_NAME) == null) {
-        obj.put(ID_FIELD_NAME, Util.clone(id));
-      }
+  public WriteResult insert(final List<? extends DBObject> documents, final InsertOptions insertOptions) {
+    lock.writeLock().lock();
+    try {
+      WriteConcern writeConcern = insertOptions.getWriteConcern() != null ? insertOptions.getWriteConcern() : getWriteConcern();
+      for (final DBObject obj : documents) {
+        DBObject cloned = filterLists(Util.cloneIdFirst(encodeDecode(obj, insertOptions.getDbEncoder())));
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("insert: " + cloned);
+        }
+        ObjectId id = putIdIfNotPresent(cloned);
+        // Save the id field in the caller.
+        if (!(obj instanceof LazyDBObject) && !(obj instanceof ReadOnlyDBObject) && obj.get(ID_FIELD_NAME) == null) {
+          obj.put(ID_FIELD_NAME, Util.clone(id));
+        }
 
-      if (!this.getName().equalsIgnoreCase(SYSTEM_INDEXES_COLL_NAME) && validateOnInsert) {
-        // validate objects for regular collections (exclude system indexes which can support . their keys and possibly have other discrepancies)
-        _checkObject(obj, false, false);
-      }
+        if (!this.getName().equalsIgnoreCase(SYSTEM_INDEXES_COLL_NAME) && validateOnInsert) {
+          // validate objects for regular collections (exclude system indexes which can support . their keys and possibly have other discrepancies)
+          _checkObject(obj, false, false);
+        }
 
-      putSizeCheck(cloned, writeConcern);
-    }
+        putSizeCheck(cloned, writeConcern);
+      }
 //    Don't know why, but there is not more number of inserted results...
 //    return new WriteResult(insertResult(0), concern);
-    if (!writeConcern.isAcknowledged()) {
-      return WriteResult.unacknowledged();
+      if (!writeConcern.isAcknowledged()) {
+        return WriteResult.unacknowledged();
+      }
+      return new WriteResult(documents.size(), false, null);
+    } finally {
+      lock.writeLock().unlock();
     }
-    return new WriteResult(documents.size(), false, null);
   }
 
   boolean enforceDuplicates(WriteConcern concern) {
@@ -159,13 +185,41 @@ public class FongoDBCollection extends DBCollection {
   }
 
   public void putSizeCheck(DBObject obj, WriteConcern concern) {
-    if (_idIndex.size() > 100000) {
-      throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
+    if (!nonIdCollection) {
+      checkDocumentsLimit();
     }
-
     addToIndexes(obj, null, concern);
   }
 
+  // System collections (indexes...) are not limited.
+  private void checkDocumentsLimit() {
+    final long maxDocuments = fongoDb.fongo.getMaxDocumentsPerCollection();
+    if (maxDocuments > 0 && records.size() >= maxDocuments) {
+      throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  " + maxDocuments
+          + " items per collection max (see Fongo.setMaxDocumentsPerCollection)");
+    }
+  }
+
+  /**
+   * The size limit applies to inserts and updates : a write which makes the collection grow beyond it is refused.
+   * Sizes are only estimated when a limit is set, once by write.
+   *
+   * @return estimated size of the object, {@link RecordStore#UNKNOWN_SIZE} if there is no limit.
+   */
+  private long checkBytesLimit(DBObject object, DBObject storedOldObject) {
+    final long maxBytes = nonIdCollection ? 0L : fongoDb.fongo.getMaxBytesPerCollection();
+    if (maxBytes <= 0) {
+      return RecordStore.UNKNOWN_SIZE;
+    }
+    final long bytes = RecordStore.estimateSize(object);
+    final long oldBytes = storedOldObject == null ? 0L : records.bytesOf(storedOldObject);
+    if (bytes > oldBytes && records.bytes() - oldBytes + bytes > maxBytes) {
+      throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  " + maxBytes
+          + " bytes per collection max (see Fongo.setMaxBytesPerCollection)");
+    }
+    return bytes;
+  }
+
   public DBObject filterLists(DBObject dbo) {
     if (dbo == null) {
       return null;
@@ -240,34 +294,40 @@ public class FongoDBCollection extends DBCollection {
   }
 
 
-  protected synchronized void fInsert(DBObject obj, WriteConcern concern) {
-    putIdIfNotPresent(obj);
-    putSizeCheck(obj, concern);
+  protected void fInsert(DBObject obj, WriteConcern concern) {
+    lock.writeLock().lock();
+    try {
+      putIdIfNotPresent(obj);
+      putSizeCheck(obj, concern);
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
 
   @Override
-  public synchronized WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern,
-                                         DBEncoder encoder) throws MongoException {
-
-    q = filterLists(q);
-    o = filterLists(o);
+  public WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern,
+                            DBEncoder encoder) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      q = filterLists(q);
+      o = filterLists(o);
 
-    if (o == null) {
-      throw new IllegalArgumentException("update can not be null");
-    }
+      if (o == null) {
+        throw new IllegalArgumentException("update can not be null");
+      }
 
-    if (concern == null) {
-      throw new IllegalArgumentException("Write concern can not be null");
-    }
+      if (concern == null) {
+        throw new IllegalArgumentException("Write concern can not be null");
+      }
 
-    if (!o.keySet().isEmpty()) {
-      // if 1st key doesn't start with $, then object will be inserted as is, need to check it
-      String key = o.keySet().iterator().next();
-      if (!key.startsWith("$")) {
-        _checkObject(o, false, false);
+      if (!o.keySet().isEmpty()) {
+        // if 1st key doesn't start with $, then object will be inserted as is, need to check it
+        String key = o.keySet().iterator().next();
+        if (!key.startsWith("$")) {
+          _checkObject(o, false, false);
+        }
       }
-    }
 
 //    if (multi) {
 //      try {
@@ -277,59 +337,71 @@ public class FongoDBCollection extends DBCollection {
 //      }
 //    }
 
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("update(" + q + ", " + o + ", " + upsert + ", " + multi + ")");
-    }
-
-    if (o.containsField(ID_FIELD_NAME) && q.containsField(ID_FIELD_NAME) && objectComparator.compare(o.get(ID_FIELD_NAME), q.get(ID_FIELD_NAME)) != 0) {
-      LOG.warn("can not change _id of a document query={}, document={}", q, o);
-      throw fongoDb.writeConcernException(16837, "can not change _id of a document " + ID_FIELD_NAME);
-    }
-
-    int updatedDocuments = 0;
-    boolean idOnlyUpdate = q.containsField(ID_FIELD_NAME) && q.keySet().size() == 1;
-    boolean updatedExisting = false;
-    Object upsertedId = null;
-
-    if (idOnlyUpdate && isNotUpdateCommand(o)) {
-      if (!o.containsField(ID_FIELD_NAME)) {
-        o.put(ID_FIELD_NAME, Util.clone(q.get(ID_FIELD_NAME)));
-      } else {
-        o.put(ID_FIELD_NAME, Util.clone(o.get(ID_FIELD_NAME)));
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("update(" + q + ", " + o + ", " + upsert + ", " + multi + ")");
       }
-      @SuppressWarnings("unchecked") Iterator<DBObject> oldObjects = _idIndex.retrieveObjects(q).iterator();
-      if (oldObjects.hasNext()) {
-        addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
-        updatedDocuments++;
-        updatedExisting = true;
+
+      if (o.containsField(ID_FIELD_NAME) && q.containsField(ID_FIELD_NAME) && objectComparator.compare(o.get(ID_FIELD_NAME), q.get(ID_FIELD_NAME)) != 0) {
+        LOG.warn("can not change _id of a document query={}, document={}", q, o);
+        throw fongoDb.writeConcernException(16837, "can not change _id of a document " + ID_FIELD_NAME);
       }
-    } else {
-      Filter filter = buildFilter(q);
-      for (DBObject obj : filterByIndexes(q)) {
-        if (filter.apply(obj)) {
-          DBObject newObject = Util.clone(obj);
-          updateEngine.doUpdate(newObject, o, q, false);
-          // Check for uniqueness (throw MongoException if error)
-          addToIndexes(newObject, obj, concern);
 
+      int updatedDocuments = 0;
+      boolean idOnlyUpdate = q.containsField(ID_FIELD_NAME) && q.keySet().size() == 1;
+      boolean updatedExisting = false;
+      Object upsertedId = null;
+
+      if (idOnlyUpdate && isNotUpdateCommand(o)) {
+        if (!o.containsField(ID_FIELD_NAME)) {
+          o.put(ID_FIELD_NAME, Util.clone(q.get(ID_FIELD_NAME)));
+        } else {
+          o.put(ID_FIELD_NAME, Util.clone(o.get(ID_FIELD_NAME)));
+        }
+        @SuppressWarnings("unchecked") Iterator<DBObject> oldObjects = _idIndex.retrieveObjects(q).iterator();
+        if (oldObjects.hasNext()) {
+          addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
           updatedDocuments++;
           updatedExisting = true;
-
-          if (!multi) {
-            break;
+        }
+      } else {
+        final ExecutionStats stats = new ExecutionStats("update");
+        Filter filter = buildFilter(q);
+        long examined = 0;
+        for (DBObject obj : filterByIndexes(q, stats)) {
+          examined++;
+          if (filter.apply(obj)) {
+            stats.endStage(ExecutionStats.FILTER);
+            DBObject newObject = Util.clone(obj);
+            updateEngine.doUpdate(newObject, o, q, false);
+            // Check for uniqueness (throw MongoException if error)
+            addToIndexes(newObject, obj, concern);
+            stats.endStage(ExecutionStats.WRITE);
+
+            updatedDocuments++;
+            updatedExisting = true;
+
+            if (!multi) {
+              break;
+            }
           }
         }
+        stats.filtered(examined);
+        stats.setReturned(updatedDocuments);
+        stats.endStage(ExecutionStats.FILTER);
+        LOG.debug("update {} : {}", q, stats);
       }
-    }
-    if (updatedDocuments == 0 && upsert) {
-      BasicDBObject newObject = createUpsertObject(q);
-      fInsert(updateEngine.doUpdate(newObject, o, q, true), concern);
+      if (updatedDocuments == 0 && upsert) {
+        BasicDBObject newObject = createUpsertObject(q);
+        fInsert(updateEngine.doUpdate(newObject, o, q, true), concern);
 
-      updatedDocuments++;
-      updatedExisting = false;
-      upsertedId = newObject.get(ID_FIELD_NAME);
+        updatedDocuments++;
+        updatedExisting = false;
+        upsertedId = newObject.get(ID_FIELD_NAME);
+      }
+      return updateResult(updatedDocuments, updatedExisting, upsertedId);
+    } finally {
+      lock.writeLock().unlock();
     }
-    return updateResult(updatedDocuments, updatedExisting, upsertedId);
   }
 
   protected DBObject _checkObject(DBObject o, boolean canBeNull, boolean query) {
@@ -473,91 +545,125 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) throws MongoException {
-    o = filterLists(o);
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("remove: " + o);
-    }
-    int updatedDocuments = 0;
-    Collection<DBObject> objectsByIndex = filterByIndexes(o);
-    Filter filter = buildFilter(o);
-    List<DBObject> ids = new ArrayList<DBObject>();
-    // Double pass, objectsByIndex can be not "objects"
-    for (DBObject object : objectsByIndex) {
-      if (filter.apply(object)) {
-        ids.add(object);
+  public WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      o = filterLists(o);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("remove: " + o);
       }
+      int updatedDocuments = 0;
+      final ExecutionStats stats = new ExecutionStats("remove");
+      Collection<DBObject> objectsByIndex = filterByIndexes(o, stats);
+      Filter filter = buildFilter(o);
+      List<DBObject> ids = new ArrayList<DBObject>();
+      // Double pass, objectsByIndex can be not "objects"
+      for (DBObject object : objectsByIndex) {
+        if (filter.apply(object)) {
+          ids.add(object);
+        }
+      }
+      stats.filtered(objectsByIndex.size());
+      stats.endStage(ExecutionStats.FILTER);
+      // Real remove.
+      for (DBObject object : ids) {
+        LOG.debug("remove object : {}", object);
+        removeFromIndexes(object);
+        updatedDocuments++;
+      }
+      stats.setReturned(updatedDocuments);
+      stats.endStage(ExecutionStats.WRITE);
+      LOG.debug("remove {} : {}", o, stats);
+      return updateResult(updatedDocuments, true, null);
+    } finally {
+      lock.writeLock().unlock();
     }
-    // Real remove.
-    for (DBObject object : ids) {
-      LOG.debug("remove object : {}", object);
-      removeFromIndexes(object);
-      updatedDocuments++;
-    }
-    return updateResult(updatedDocuments, true, null);
   }
 
   @Override
-  public synchronized void createIndex(final DBObject keys, final DBObject options) {
-    DBCollection indexColl = fongoDb.getCollection(SYSTEM_INDEXES_COLL_NAME);
-    BasicDBObject rec = new BasicDBObject();
-    rec.append("v", 1);
-    rec.append("key", keys);
-    rec.append("ns", nsName());
-    if (options != null && options.containsField("name")) {
-      rec.append("name", options.get("name"));
-    } else {
-      StringBuilder sb = new StringBuilder();
-      boolean firstLoop = true;
-      for (String keyName : keys.keySet()) {
-        if (!firstLoop) {
-          sb.append("_");
+  public void createIndex(final DBObject keys, final DBObject options) {
+    lock.writeLock().lock();
+    try {
+      DBCollection indexColl = fongoDb.getCollection(SYSTEM_INDEXES_COLL_NAME);
+      BasicDBObject rec = new BasicDBObject();
+      rec.append("v", 1);
+      rec.append("key", keys);
+      rec.append("ns", nsName());
+      if (options != null && options.containsField("name")) {
+        rec.append("name", options.get("name"));
+      } else {
+        StringBuilder sb = new StringBuilder();
+        boolean firstLoop = true;
+        for (String keyName : keys.keySet()) {
+          if (!firstLoop) {
+            sb.append("_");
+          }
+          sb.append(keyName).append("_").append(keys.get(keyName));
+          firstLoop = false;
         }
-        sb.append(keyName).append("_").append(keys.get(keyName));
-        firstLoop = false;
+        rec.append("name", sb.toString());
       }
-      rec.append("name", sb.toString());
-    }
-    // Ensure index doesn't exist.
-    final DBObject oldIndex = indexColl.findOne(rec);
-    if (oldIndex != null) {
-      for (Map.Entry<String, Object> entry : Util.entrySet(options)) {
-        if (!entry.getValue().equals(oldIndex.get(entry.getKey()))) {
-          fongoDb.notOkErrorResult(85, String.format("Index with name: %s already exists with different options", nsName())).throwOnError();
+      // Ensure index doesn't exist.
+      final DBObject oldIndex = indexColl.findOne(rec);
+      if (oldIndex != null) {
+        for (Map.Entry<String, Object> entry : Util.entrySet(options)) {
+          if (!entry.getValue().equals(oldIndex.get(entry.getKey()))) {
+            fongoDb.notOkErrorResult(85, String.format("Index with name: %s already exists with different options", nsName())).throwOnError();
+          }
         }
+        return;
       }
-      return;
-    }
-
-    // Unique index must not be in previous find.
-    boolean unique = options != null && options.get("unique") != null && (Boolean.TRUE.equals(options.get("unique")) || "1".equals(options.get("unique")) || Integer.valueOf(1).equals(options.get("unique")));
-    if (unique) {
-      rec.append("unique", unique);
-    }
-    boolean sparse = options != null && options.get("sparse") != null && (Boolean.TRUE.equals(options.get("sparse")) || "1".equals(options.get("sparse")) || Integer.valueOf(1).equals(options.get("sparse")));
-    if (sparse) {
-      rec.append("sparse", sparse);
-    }
-
-    rec.putAll(options);
 
-    try {
-      IndexAbstract index = IndexFactory.create((String) rec.get("name"), keys, unique, sparse);
-      @SuppressWarnings("unchecked") List<List<Object>> notUnique = index.addAll(_idIndex.values());
-      if (!notUnique.isEmpty()) {
-        // Duplicate key.
-        if (enforceDuplicates(getWriteConcern())) {
-          fongoDb.notOkErrorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + rec.get("name") + "  dup key: { : " + notUnique + " }").throwOnError();
+      // Unique index must not be in previous find.
+      boolean unique = options != null && options.get("unique") != null && (Boolean.TRUE.equals(options.get("unique")) || "1".equals(options.get("unique")) || Integer.valueOf(1).equals(options.get("unique")));
+      if (unique) {
+        rec.append("unique", unique);
+      }
+      boolean sparse = options != null && options.get("sparse") != null && (Boolean.TRUE.equals(options.get("sparse")) || "1".equals(options.get("sparse")) || Integer.valueOf(1).equals(options.get("sparse")));
+      if (sparse) {
+        rec.append("sparse", sparse);
+      }
+      final Object partialFilterExpression = options == null ? null : options.get("partialFilterExpression");
+      if (partialFilterExpression != null && !ExpressionParser.isDbObject(partialFilterExpression)) {
+        fongoDb.notOkErrorResult(14, "partialFilterExpression for an index must be a document").throwOnError();
+      }
+      if (partialFilterExpression != null && sparse) {
+        fongoDb.notOkErrorResult(67, "cannot mix \"partialFilterExpression\" and \"sparse\" options").throwOnError();
+      }
+      final Object expireAfterSeconds = options == null ? null : options.get("expireAfterSeconds");
+      if (expireAfterSeconds != null && !(expireAfterSeconds instanceof Number)) {
+        fongoDb.notOkErrorResult(67, "TTL index 'expireAfterSeconds' option must be numeric").throwOnError();
+      }
+      // Like mongod, only a single field index on a date is a TTL index.
+      final boolean ttl = expireAfterSeconds != null && keys.keySet().size() == 1 && keys.toMap().values().iterator().next() instanceof Number;
+
+      rec.putAll(options);
+
+      try {
+        IndexAbstract index = IndexFactory.create((String) rec.get("name"), keys, unique, sparse, ExpressionParser.toDbObject(partialFilterExpression),
+            ttl ? Long.valueOf(((Number) expireAfterSeconds).longValue()) : null);
+        @SuppressWarnings("unchecked") List<List<Object>> notUnique = index.addAll(records.values());
+        if (!notUnique.isEmpty()) {
+          // Duplicate key.
+          if (enforceDuplicates(getWriteConcern())) {
+            fongoDb.notOkErrorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + rec.get("name") + "  dup key: { : " + notUnique + " }").throwOnError();
+          }
+          return;
         }
-        return;
+        indexes.add(index);
+        planCache.clear(null);
+        if (ttl) {
+          fongoDb.fongo.getTtlMonitor().start();
+        }
+      } catch (MongoException me) {
+        fongoDb.errorResult(me.getCode(), me.getMessage()).throwOnError();
       }
-      indexes.add(index);
-    } catch (MongoException me) {
-      fongoDb.errorResult(me.getCode(), me.getMessage()).throwOnError();
-    }
 
-    // Add index if all fine.
-    indexColl.insert(rec);
+      // Add index if all fine.
+      indexColl.insert(rec);
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   // @Override
@@ -602,101 +708,344 @@ public class FongoDBCollection extends DBCollection {
    * <p/>
    * note: decoder, readPref, options are ignored
    */
-  synchronized List<DBObject> __find(final DBObject pRef, DBObject fields, int numToSkip, int batchSize, int limit,
-                                     int options, ReadPreference readPref, DBDecoder decoder) throws MongoException {
-    DBObject ref = filterLists(pRef == null ? new BasicDBObject() : pRef);
-    long maxScan = Long.MAX_VALUE;
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("find({}, {}).skip({}).limit({})", ref, fields, numToSkip, limit);
-      LOG.debug("the db {} looks like {}", this.getDB().getName(), _idIndex.size());
-    }
+  List<DBObject> __find(final DBObject pRef, DBObject fields, int numToSkip, int batchSize, int limit,
+                        int options, ReadPreference readPref, DBDecoder decoder) throws MongoException {
+    final ExecutionStats stats = new ExecutionStats("find");
+    final List<DBObject> results = __find(pRef, fields, numToSkip, limit, stats);
+    LOG.debug("find {} : {}", pRef, stats);
+    return results;
+  }
 
-    DBObject orderby = null;
-    if (ref.containsField("$orderby")) {
-      orderby = ExpressionParser.toDbObject(ref.get("$orderby"));
-    }
-    if (ref.containsField("$maxScan")) {
-      maxScan = ((Number) ref.get("$maxScan")).longValue();
-    }
-    if (ref.containsField("$query")) {
-      ref = ExpressionParser.toDbObject(ref.get("$query"));
-    }
+  /**
+   * Explain a find : run it, and give the plan and the statistics of the execution.
+   *
+   * @param pRef query, can contain $query, $orderby and $maxScan.
+   */
+  public DBObject explain(final DBObject pRef, DBObject fields, int numToSkip, int limit) {
+    final ExecutionStats stats = new ExecutionStats("find");
+    __find(pRef, fields, numToSkip, limit, stats);
+    final Object query = pRef == null ? null : pRef.containsField("$query") ? pRef.get("$query") : pRef;
+    return stats.toExplain(getFullName(), ExpressionParser.toDbObject(query));
+  }
 
-    Filter filter = buildFilter(ref);
-    int foundCount = 0;
-    int upperLimit = Integer.MAX_VALUE;
-    if (limit > 0) {
-      upperLimit = limit;
+  private List<DBObject> __find(final DBObject pRef, DBObject fields, int numToSkip, int limit, ExecutionStats stats) {
+    final Lock queryLock = lockFor(pRef);
+    queryLock.lock();
+    try {
+      // All the results at once : the objects can't change between the opening and the batch.
+      return openFind(pRef, fields, numToSkip, limit, false, stats).nextBatch(Integer.MAX_VALUE);
+    } finally {
+      queryLock.unlock();
     }
+  }
+
+  /**
+   * Open a find : the plan is chosen and the candidates are selected (and sorted), the results are then produced by
+   * {@link FindCursor#nextBatch(int)}.
+   *
+   * @param pRef query, can contain $query, $orderby and $maxScan.
+   */
+  public FindCursor openFind(final DBObject pRef, DBObject fields, int numToSkip, int limit) {
+    return openFind(pRef, fields, numToSkip, limit, true, new ExecutionStats("find"));
+  }
+
+  /**
+   * @param batched true if the results are not all asked for at once, under the same lock.
+   */
+  private FindCursor openFind(final DBObject pRef, DBObject fields, int numToSkip, int limit, boolean batched,
+                              ExecutionStats stats) {
+    final Lock queryLock = lockFor(pRef);
+    queryLock.lock();
+    try {
+      DBObject ref = filterLists(pRef == null ? new BasicDBObject() : pRef);
+      long maxScan = Long.MAX_VALUE;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("find({}, {}).skip({}).limit({})", ref, fields, numToSkip, limit);
+        LOG.debug("the db {} looks like {}", this.getDB().getName(), records.size());
+      }
 
-    Collection<DBObject> objectsFromIndex = filterByIndexes(ref);
-    List<DBObject> results = new ArrayList<DBObject>();
-    List objects = idsIn(ref);
-    if (!objects.isEmpty()) {
+      DBObject orderby = null;
+      if (ref.containsField("$orderby")) {
+        orderby = ExpressionParser.toDbObject(ref.get("$orderby"));
+      }
+      if (ref.containsField("$maxScan")) {
+        maxScan = ((Number) ref.get("$maxScan")).longValue();
+      }
+      if (ref.containsField("$query")) {
+        ref = ExpressionParser.toDbObject(ref.get("$query"));
+      }
+
+      Filter filter = buildFilter(ref);
+      int upperLimit = Integer.MAX_VALUE;
+      if (limit > 0) {
+        upperLimit = limit;
+      }
+
+      final QueryPlan plan = ref == null ? null : searchIndex(ref, stats);
+      final IndexAbstract matchingIndex = plan == null ? null : plan.getIndex();
+      // The index can already give the order of the sort.
+      int indexOrder = matchingIndex == null ? 0 : matchingIndex.sortOrder(ref, orderby);
+      List objects = idsIn(ref);
+      // Covered query : the results are built from the keys of the index, the objects are not read.
+      final boolean covered = matchingIndex != null && !plan.isIntersection() && objects.isEmpty()
+          && matchingIndex.isCovering(ref, fields, indexOrder != 0 ? null : orderby);
+      Collection<DBObject> objectsFromIndex = plan == null || plan.isCollectionScan() ? null
+          : covered ? matchingIndex.retrieveKeys(ref, indexOrder < 0, stats) : retrieveObjects(plan, ref, indexOrder < 0, stats);
+      if (objectsFromIndex == null) {
+        indexOrder = 0;
+        objectsFromIndex = records.values();
+      } else {
+        stats.setUsed(plan, covered);
+      }
+      stats.endStage(ExecutionStats.INDEX);
+      if (!objects.isEmpty()) {
+        indexOrder = 0;
 //      if (!(ref.get(ID_FIELD_NAME) instanceof DBObject)) {
-      // Special case : find({id:<val}) doesn't handle skip...
-      // But : find({_id:{$in:[1,2,3]}).skip(3) will return empty list.
+        // Special case : find({id:<val}) doesn't handle skip...
+        // But : find({_id:{$in:[1,2,3]}).skip(3) will return empty list.
 //        numToSkip = 0;
 //      }
+        if (orderby == null) {
+          orderby = new BasicDBObject(ID_FIELD_NAME, 1);
+        } else {
+          // Special case : if order by is wrong (field doesn't exist), the sort must be directed by _id.
+          objectsFromIndex = sortObjects(new BasicDBObject(ID_FIELD_NAME, 1), objectsFromIndex);
+        }
+      }
       if (orderby == null) {
-        orderby = new BasicDBObject(ID_FIELD_NAME, 1);
-      } else {
-        // Special case : if order by is wrong (field doesn't exist), the sort must be directed by _id.
-        objectsFromIndex = sortObjects(new BasicDBObject(ID_FIELD_NAME, 1), objectsFromIndex);
-      }
-    }
-    int seen = 0;
-    Iterable<DBObject> objectsToSearch = sortObjects(orderby, objectsFromIndex);
-    for (Iterator<DBObject> iter = objectsToSearch.iterator();
-         iter.hasNext() && foundCount < upperLimit && maxScan-- > 0; ) {
-      DBObject dbo = iter.next();
-      if (filter.apply(dbo)) {
-        if (seen++ >= numToSkip) {
-          foundCount++;
-          DBObject clonedDbo = Util.clone(dbo);
-          if (nonIdCollection) {
-            clonedDbo.removeField(ID_FIELD_NAME);
+        orderby = naturalOrderBy(ref);
+      }
+      final boolean sorted = indexOrder == 0 && orderby != null && !orderby.keySet().isEmpty();
+      // With a limit, only the first skip + limit matching objects are needed : the others are not sorted.
+      final long kept = (long) Math.max(numToSkip, 0) + upperLimit;
+      final boolean topObjects = sorted && limit > 0 && maxScan == Long.MAX_VALUE && kept < objectsFromIndex.size();
+      final Collection<DBObject> objectsToSearch = topObjects ? topObjects(orderby, objectsFromIndex, covered ? null : filter, (int) kept)
+          : indexOrder != 0 ? objectsFromIndex : sortObjects(orderby, objectsFromIndex);
+      stats.setSorted(sorted);
+      stats.setSortLimit(topObjects ? (int) kept : 0);
+      stats.endStage(ExecutionStats.SORT);
+      // The top objects were selected by filtering all the objects.
+      if (topObjects) {
+        stats.filtered(objectsFromIndex.size());
+      }
+      // Collection scan in natural order : it is resumed after the last object examined, nothing is selected now.
+      final boolean scan = objectsToSearch == records.values();
+      // The objects given by an index can be a view of the index : a batched cursor walks its own copy.
+      final Collection<DBObject> candidates = scan ? null : batched && objectsToSearch == objectsFromIndex
+          ? new ArrayList<DBObject>(objectsToSearch) : objectsToSearch;
+      return new FindCursor(pRef, candidates == null ? null : candidates.iterator(), covered ? null : filter, fields,
+          numToSkip, upperLimit, maxScan, !topObjects, stats);
+    } finally {
+      queryLock.unlock();
+    }
+  }
+
+  /**
+   * Results of a find, produced batch by batch : the objects are filtered, cloned and projected only when a batch is
+   * asked for. The results don't have to be all in memory, and the first ones don't wait for the others.
+   * <p/>
+   * Each batch takes the lock of the collection. A collection scan resumes after the last object examined ; the other
+   * plans walk the candidates selected (and sorted) when the find was opened.
+   * <p/>
+   * NOT Thread Safe.
+   */
+  public final class FindCursor implements CursorRegistry.Batches {
+    private final DBObject query;
+    // Null for a collection scan.
+    private final Iterator<DBObject> candidates;
+    // Null for a covered query.
+    private final Filter filter;
+    private final DBObject fields;
+    private final int numToSkip;
+    private final int upperLimit;
+    private final boolean countExamined;
+    private final ExecutionStats stats;
+    private long maxScan;
+    // Sequence of the last object examined by a collection scan.
+    private long lastSequence = -1L;
+    // A collection scan stops at the last object when the cursor was opened : the objects inserted later are not given.
+    private final long lastScannedSequence;
+    private int seen = 0;
+    private int found = 0;
+    private boolean exhausted = false;
+
+    private FindCursor(DBObject query, Iterator<DBObject> candidates, Filter filter, DBObject fields, int numToSkip,
+                       int upperLimit, long maxScan, boolean countExamined, ExecutionStats stats) {
+      this.query = query;
+      this.candidates = candidates;
+      this.filter = filter;
+      this.fields = fields;
+      this.numToSkip = numToSkip;
+      this.upperLimit = upperLimit;
+      this.maxScan = maxScan;
+      this.countExamined = countExamined;
+      this.stats = stats;
+      this.lastScannedSequence = records.lastSequence();
+    }
+
+    @Override
+    public boolean hasMore() {
+      return !exhausted;
+    }
+
+    @Override
+    public List<DBObject> nextBatch(int size) {
+      List<DBObject> results = new ArrayList<DBObject>();
+      if (exhausted) {
+        return results;
+      }
+      final Lock queryLock = lockFor(query);
+      queryLock.lock();
+      try {
+        final Iterator<Map.Entry<Long, DBObject>> scan = candidates == null ? records.valuesBetween(lastSequence, lastScannedSequence).entrySet().iterator() : null;
+        final Iterator<DBObject> iter = candidates;
+        long examined = 0;
+        while (results.size() < size) {
+          if (found >= upperLimit || maxScan <= 0 || !(scan == null ? iter.hasNext() : scan.hasNext())) {
+            exhausted = true;
+            break;
+          }
+          final DBObject dbo;
+          if (scan == null) {
+            dbo = iter.next();
+          } else {
+            final Map.Entry<Long, DBObject> record = scan.next();
+            lastSequence = record.getKey();
+            dbo = record.getValue();
           }
-          clonedDbo.removeField(FONGO_SPECIAL_ORDER_BY);
-//          handleDBRef(clonedDbo);
-          results.add(clonedDbo);
+          maxScan--;
+          examined++;
+          if (filter == null || filter.apply(dbo)) {
+            if (seen++ >= numToSkip) {
+              found++;
+              if (filter == null) {
+                // The key is shared by the index : the projection makes a copy.
+                results.add(applyProjections(dbo, fields));
+                continue;
+              }
+              DBObject clonedDbo = readCopy(dbo);
+//            handleDBRef(clonedDbo);
+              results.add(clonedDbo);
+            }
+          }
+        }
+
+        if (found >= upperLimit) {
+          exhausted = true;
         }
+        if (countExamined) {
+          stats.filtered(examined);
+        }
+        stats.endStage(ExecutionStats.FILTER);
+      } finally {
+        queryLock.unlock();
       }
-    }
 
-    if (!Util.isDBObjectEmpty(fields)) {
-      results = applyProjections(results, fields);
-    }
+      if (filter != null && !Util.isDBObjectEmpty(fields)) {
+        results = applyProjections(results, fields);
+      }
+      stats.setProjected(!Util.isDBObjectEmpty(fields));
+      stats.setReturned(found);
+      stats.endStage(ExecutionStats.PROJECTION);
 
-    LOG.debug("found results {}", results);
+      LOG.debug("found results {}", results);
 
-    return replaceWithObjectClass(results);
+      return replaceWithObjectClass(results);
+    }
+  }
+
+  /**
+   * Copy of a stored object for the readers. Immutable documents are given as is, unless fongo must remove fields.
+   */
+  private DBObject readCopy(DBObject dbo) {
+    if (immutableDocuments && !nonIdCollection && !dbo.containsField(FONGO_SPECIAL_ORDER_BY)) {
+      return dbo;
+    }
+    final DBObject clonedDbo = Util.clone(dbo);
+    if (nonIdCollection) {
+      clonedDbo.removeField(ID_FIELD_NAME);
+    }
+    clonedDbo.removeField(FONGO_SPECIAL_ORDER_BY);
+    return clonedDbo;
   }
 
   /**
-   * Return "objects.values()" if no index found.
+   * Return "records.values()" if no index found.
    *
-   * @return objects from "_id" if no index found, elsewhere the restricted values from an index.
+   * @return all the objects in natural order if no index found, elsewhere the restricted values from an index.
    */
   private Collection<DBObject> filterByIndexes(DBObject ref) {
+    return filterByIndexes(ref, new ExecutionStats("query"));
+  }
+
+  private Collection<DBObject> filterByIndexes(DBObject ref, ExecutionStats stats) {
+    return filterByIndexes(ref, ref == null ? null : searchIndex(ref, stats), stats);
+  }
+
+  /**
+   * @param plan plan of the query, null if there is no query.
+   */
+  private Collection<DBObject> filterByIndexes(DBObject ref, QueryPlan plan, ExecutionStats stats) {
     Collection<DBObject> dbObjectIterable = null;
     if (ref != null) {
-      IndexAbstract matchingIndex = searchIndex(ref);
-      if (matchingIndex != null) {
-        //noinspection unchecked
-        dbObjectIterable = matchingIndex.retrieveObjects(ref);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("restrict with index {}, from {} to {} elements", matchingIndex.getName(), _idIndex.size(), dbObjectIterable == null ? 0 : dbObjectIterable.size());
+      if (!plan.isCollectionScan()) {
+        dbObjectIterable = retrieveObjects(plan, ref, false, stats);
+        if (dbObjectIterable != null) {
+          stats.setUsed(plan, false);
         }
       }
     }
     if (dbObjectIterable == null) {
-      //noinspection unchecked
-      dbObjectIterable = _idIndex.values();
+      dbObjectIterable = records.values();
+    }
+    stats.endStage(ExecutionStats.INDEX);
+    return dbObjectIterable;
+  }
+
+  /**
+   * @return the objects of the index (or of both indexes of an intersection, or of the branches of a union) for the
+   * query, or null if the index can't answer it.
+   */
+  @SuppressWarnings("unchecked")
+  private Collection<DBObject> retrieveObjects(QueryPlan plan, DBObject ref, boolean reverse, ExecutionStats stats) {
+    if (plan.isUnion()) {
+      return retrieveUnion(plan, ref, stats);
+    }
+    final IndexAbstract index = plan.getIndex();
+    final Collection<DBObject> dbObjectIterable = plan.isIntersection()
+        ? index.retrieveObjects(ref, plan.getIntersectedIndex(), reverse, stats)
+        : index.retrieveObjects(ref, reverse, stats);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("restrict with {}, from {} to {} elements", plan.getSolution(), records.size(), dbObjectIterable == null ? 0 : dbObjectIterable.size());
     }
     return dbObjectIterable;
   }
 
+  /**
+   * The objects of each branch of the $or, once, in the order of the branches.
+   *
+   * @return the objects, or null if a branch can't be answered by its plan.
+   */
+  private Collection<DBObject> retrieveUnion(QueryPlan plan, DBObject ref, ExecutionStats stats) {
+    final Set<DBObject> seen = Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+    final List<DBObject> result = new ArrayList<DBObject>();
+    for (Object branch : (List<?>) ref.get(QueryOperators.OR)) {
+      final DBObject branchQuery = ExpressionParser.toDbObject(branch);
+      final QueryPlan branchPlan = plan.getBranchPlan(branchQuery);
+      final Collection<DBObject> objects = branchPlan == null || !branchPlan.canAnswer(branchQuery)
+          ? null : retrieveObjects(branchPlan, branchQuery, false, stats);
+      if (objects == null) {
+        return null;
+      }
+      for (DBObject object : objects) {
+        if (seen.add(object)) {
+          result.add(object);
+        }
+      }
+    }
+    return result;
+  }
+
   private List<DBObject> applyProjections(List<DBObject> results, DBObject projection) {
     final List<DBObject> ret = new ArrayList<DBObject>(results.size());
 
@@ -1027,35 +1376,17 @@ public class FongoDBCollection extends DBCollection {
     return true;
   }
 
+  /**
+   * Sort the objects.
+   *
+   * @param orderby sort specification, null to keep the objects in the given order.
+   */
   public Collection<DBObject> sortObjects(final DBObject orderby, final Collection<DBObject> objects) {
     Collection<DBObject> objectsToSearch = objects;
-    if (orderby != null) {
-      final Set<String> orderbyKeySet = orderby.keySet();
-      if (!orderbyKeySet.isEmpty()) {
-        DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
-
-        Arrays.sort(objectsToSort, new Comparator<DBObject>() {
-          @Override
-          public int compare(DBObject o1, DBObject o2) {
-            for (String sortKey : orderbyKeySet) {
-              final List<String> path = Util.split(sortKey);
-              int sortDirection = (Integer) orderby.get(sortKey);
-
-              List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
-              List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
-
-              int compareValue = expressionParser.compareLists(o1list, o2list) * sortDirection;
-              if (compareValue != 0) {
-                return compareValue;
-              }
-            }
-            return 0;
-          }
-        });
-        objectsToSearch = Arrays.asList(objectsToSort);
-      }
-    } else {
-      objectsToSearch = sortObjects(new BasicDBObject(FONGO_SPECIAL_ORDER_BY, 1), objects);
+    if (orderby != null && !orderby.keySet().isEmpty()) {
+      DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
+      Arrays.sort(objectsToSort, sortComparator(orderby));
+      objectsToSearch = Arrays.asList(objectsToSort);
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug("sorted objectsToSearch " + objectsToSearch);
@@ -1063,97 +1394,326 @@ public class FongoDBCollection extends DBCollection {
     return objectsToSearch;
   }
 
-  // @Override
-  public synchronized long getCount(final DBObject pQuery, final DBObject projection, final long limit, final long skip,
-                                    final ReadPreference readPreference, final long maxTime, final TimeUnit maxTimeUnit,
-                                    final BsonValue hint) {
-    final DBObject query = filterLists(pQuery);
-    Filter filter = query == null ? ExpressionParser.AllFilter : buildFilter(query);
-    long count = 0;
-    long upperLimit = Long.MAX_VALUE;
-    if (limit > 0) {
-      upperLimit = limit;
-    }
-    int seen = 0;
-    for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext() && count < upperLimit; ) {
-      DBObject value = iter.next();
-      if (filter.apply(value)) {
-        if (seen++ >= skip) {
-          count++;
+  /**
+   * The first matching objects in the order of the sort, like sorting all the objects then keeping the first matching
+   * ones : a bounded heap holds the best candidates (the worst on top), so the other objects are never sorted. Equal
+   * objects keep their given order, like with the stable sort of {@link #sortObjects(DBObject, Collection)}.
+   *
+   * @param orderby sort specification, not empty.
+   * @param filter  null if all the objects match.
+   * @param max     number of objects to keep.
+   * @return the kept objects, sorted.
+   */
+  private List<DBObject> topObjects(DBObject orderby, Collection<DBObject> objects, Filter filter, int max) {
+    final Comparator<DBObject> comparator = sortComparator(orderby);
+    // The position in the given order breaks the ties.
+    final Comparator<Tuple2<DBObject, Integer>> order = new Comparator<Tuple2<DBObject, Integer>>() {
+      @Override
+      public int compare(Tuple2<DBObject, Integer> candidate0, Tuple2<DBObject, Integer> candidate1) {
+        final int compareValue = comparator.compare(candidate0._1, candidate1._1);
+        return compareValue != 0 ? compareValue : candidate0._2.compareTo(candidate1._2);
+      }
+    };
+    final PriorityQueue<Tuple2<DBObject, Integer>> heap = new PriorityQueue<Tuple2<DBObject, Integer>>(
+        Math.min(max, objects.size()) + 1, Collections.reverseOrder(order));
+    int position = 0;
+    for (DBObject object : objects) {
+      if (filter != null && !filter.apply(object)) {
+        continue;
+      }
+      final Tuple2<DBObject, Integer> candidate = new Tuple2<DBObject, Integer>(object, position++);
+      if (heap.size() < max) {
+        heap.add(candidate);
+      } else if (max > 0 && comparator.compare(object, heap.peek()._1) < 0) {
+        // A candidate comes after the ones already kept : it replaces the worst only when strictly better.
+        heap.poll();
+        heap.add(candidate);
+      }
+    }
+    @SuppressWarnings("unchecked")
+    final Tuple2<DBObject, Integer>[] best = heap.toArray(new Tuple2[heap.size()]);
+    Arrays.sort(best, order);
+    final List<DBObject> result = new ArrayList<DBObject>(best.length);
+    for (Tuple2<DBObject, Integer> candidate : best) {
+      result.add(candidate._1);
+    }
+    return result;
+  }
+
+  /**
+   * @param orderby sort specification, not empty.
+   */
+  private Comparator<DBObject> sortComparator(final DBObject orderby) {
+    final Set<String> orderbyKeySet = orderby.keySet();
+    final List<List<String>> paths = new ArrayList<List<String>>(orderbyKeySet.size());
+    for (String sortKey : orderbyKeySet) {
+      paths.add(Util.split(sortKey));
+    }
+    return new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        int i = 0;
+        for (String sortKey : orderbyKeySet) {
+          final List<String> path = paths.get(i++);
+          int sortDirection = (Integer) orderby.get(sortKey);
+
+          List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
+          List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
+
+          int compareValue = expressionParser.compareLists(o1list, o2list) * sortDirection;
+          if (compareValue != 0) {
+            return compareValue;
+          }
         }
+        return 0;
+      }
+    };
+  }
+
+  /**
+   * Lock to take for a query : $near queries write the distance into the documents, they need an exclusive access.
+   */
+  private Lock lockFor(DBObject query) {
+    return hasNearOperator(query) ? lock.writeLock() : lock.readLock();
+  }
+
+  /**
+   * Order to use when the query has no sort : objects are already in natural order (or in index order), only the
+   * $near queries must be sorted by distance.
+   *
+   * @return the order by distance for $near queries, null otherwise.
+   */
+  private DBObject naturalOrderBy(DBObject query) {
+    return hasNearOperator(query) ? new BasicDBObject(FONGO_SPECIAL_ORDER_BY, 1) : null;
+  }
+
+  private static boolean hasNearOperator(DBObject query) {
+    if (query == null) {
+      return false;
+    }
+    for (String key : query.keySet()) {
+      if (ExpressionParser.NEAR.equals(key) || ExpressionParser.NEAR_SPHERE.equals(key)) {
+        return true;
+      }
+      final Object value = query.get(key);
+      if (ExpressionParser.isDbObject(value) && hasNearOperator(ExpressionParser.toDbObject(value))) {
+        return true;
       }
     }
+    return false;
+  }
+
+  // @Override
+  public long getCount(final DBObject pQuery, final DBObject projection, final long limit, final long skip,
+                       final ReadPreference readPreference, final long maxTime, final TimeUnit maxTimeUnit,
+                       final BsonValue hint) {
+    final ExecutionStats stats = new ExecutionStats("count");
+    final long count = count(pQuery, limit, skip, stats);
+    LOG.debug("count {} : {}", pQuery, stats);
     return count;
   }
 
-  @Override
-  public synchronized long getCount(DBObject query, DBObject fields, ReadPreference readPrefs) {
-    //as we're in memory we don't need to worry about readPrefs
-    return getCount(query, fields, 0, 0);
+  /**
+   * Explain a count : run it, and give the plan and the statistics of the execution.
+   */
+  public DBObject explainCount(final DBObject query, final long limit, final long skip) {
+    final ExecutionStats stats = new ExecutionStats("count");
+    count(query, limit, skip, stats);
+    return stats.toExplain(getFullName(), query);
   }
 
-  @Override
-  public synchronized DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
-    LOG.debug("findAndModify({}, {}, {}, {}, {}, {}, {}", query, fields, sort, remove, update, returnNew, upsert);
-    query = filterLists(query);
-    update = filterLists(update);
-    Filter filter = buildFilter(query);
-
-    Iterable<DBObject> objectsToSearch = sortObjects(sort, filterByIndexes(query));
-    DBObject beforeObject = null;
-    DBObject afterObject = null;
-    for (DBObject dbo : objectsToSearch) {
-      if (filter.apply(dbo)) {
-        beforeObject = dbo;
-        if (!remove) {
-          afterObject = Util.clone(beforeObject);
-          updateEngine.doUpdate(afterObject, update, query, false);
-          addToIndexes(afterObject, beforeObject, getWriteConcern());
-          break;
-        } else {
-          remove(dbo);
-          return dbo;
+  /**
+   * Explain an update or a remove : the objects to write are searched, but not written.
+   *
+   * @param operation "update" or "remove".
+   * @param multi     false to stop at the first object.
+   */
+  public DBObject explainWrite(final String operation, final DBObject pQuery, final boolean multi) {
+    lock.readLock().lock();
+    try {
+      final DBObject query = filterLists(pQuery == null ? new BasicDBObject() : pQuery);
+      final ExecutionStats stats = new ExecutionStats(operation);
+      Filter filter = buildFilter(query);
+      long examined = 0;
+      long matched = 0;
+      for (DBObject object : filterByIndexes(query, stats)) {
+        examined++;
+        if (filter.apply(object)) {
+          matched++;
+          if (!multi) {
+            break;
+          }
         }
       }
+      stats.filtered(examined);
+      stats.setReturned(matched);
+      stats.endStage(ExecutionStats.FILTER);
+      return stats.toExplain(getFullName(), query);
+    } finally {
+      lock.readLock().unlock();
     }
-    if (beforeObject != null && !returnNew) {
-      return replaceWithObjectClass(applyProjections(beforeObject, fields));
-    }
-    if (beforeObject == null && upsert && !remove) {
-      beforeObject = new BasicDBObject();
-      afterObject = createUpsertObject(query);
-      fInsert(updateEngine.doUpdate(afterObject, update, query, upsert), getWriteConcern());
-    }
+  }
 
-    final DBObject resultObject;
-    if (returnNew) {
-      resultObject = applyProjections(afterObject, fields);
-    } else {
-      resultObject = applyProjections(beforeObject, fields);
+  private long count(final DBObject pQuery, final long limit, final long skip, final ExecutionStats stats) {
+    final Lock queryLock = lockFor(pQuery);
+    queryLock.lock();
+    try {
+      final DBObject query = filterLists(pQuery);
+      long count = 0;
+      long upperLimit = Long.MAX_VALUE;
+      if (limit > 0) {
+        upperLimit = limit;
+      }
+      if (query == null || query.keySet().isEmpty()) {
+        // The store keeps its size : the objects are not walked.
+        count = Math.min(Math.max(records.size() - Math.max(skip, 0), 0), upperLimit);
+        stats.setReturned(count);
+        stats.endStage(ExecutionStats.FILTER);
+        return count;
+      }
+      final QueryPlan plan = searchIndex(query, stats);
+      final IndexAbstract index = plan.getIndex();
+      if (index != null && !plan.isIntersection() && index.isCovering(query)) {
+        // The keys of the index are enough to check the query : one key by matching object, the objects are not read.
+        count = Math.min(Math.max(index.retrieveKeys(query, false, stats).size() - Math.max(skip, 0), 0), upperLimit);
+        stats.setUsed(plan, true);
+        stats.endStage(ExecutionStats.INDEX);
+        stats.setReturned(count);
+        stats.endStage(ExecutionStats.FILTER);
+        return count;
+      }
+      Filter filter = buildFilter(query);
+      int seen = 0;
+      long examined = 0;
+      for (Iterator<DBObject> iter = filterByIndexes(query, plan, stats).iterator(); iter.hasNext() && count < upperLimit; ) {
+        DBObject value = iter.next();
+        examined++;
+        if (filter.apply(value)) {
+          if (seen++ >= skip) {
+            count++;
+          }
+        }
+      }
+      stats.filtered(examined);
+      stats.setReturned(count);
+      stats.endStage(ExecutionStats.FILTER);
+      return count;
+    } finally {
+      queryLock.unlock();
     }
+  }
 
-    return replaceWithObjectClass(resultObject);
+  @Override
+  public long getCount(DBObject query, DBObject fields, ReadPreference readPrefs) {
+    //as we're in memory we don't need to worry about readPrefs
+    return getCount(query, fields, 0, 0);
   }
 
   @Override
-  public synchronized List distinct(final String key, final DBObject pQuery, final ReadPreference readPreference) {
-    final DBObject query = filterLists(pQuery);
-    Set<Object> results = new LinkedHashSet<Object>();
-    Filter filter = buildFilter(query);
-    for (DBObject value : filterByIndexes(query)) {
-      if (filter.apply(value)) {
-        List<Object> keyValues = expressionParser.getEmbeddedValues(key, value);
-        for (Object keyValue : keyValues) {
-          if (keyValue instanceof List) {
-            results.addAll((List) keyValue);
+  public DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
+    lock.writeLock().lock();
+    try {
+      LOG.debug("findAndModify({}, {}, {}, {}, {}, {}, {}", query, fields, sort, remove, update, returnNew, upsert);
+      query = filterLists(query);
+      update = filterLists(update);
+      Filter filter = buildFilter(query);
+
+      final DBObject orderby = sort == null ? naturalOrderBy(query) : sort;
+      // Only the first matching object in the order of the sort is modified.
+      Iterable<DBObject> objectsToSearch = orderby == null || orderby.keySet().isEmpty() ? filterByIndexes(query)
+          : topObjects(orderby, filterByIndexes(query), filter, 1);
+      DBObject beforeObject = null;
+      DBObject afterObject = null;
+      for (DBObject dbo : objectsToSearch) {
+        if (filter.apply(dbo)) {
+          beforeObject = dbo;
+          if (!remove) {
+            afterObject = Util.clone(beforeObject);
+            updateEngine.doUpdate(afterObject, update, query, false);
+            addToIndexes(afterObject, beforeObject, getWriteConcern());
+            break;
           } else {
-            results.add(keyValue);
+            remove(dbo);
+            return dbo;
           }
         }
       }
+      if (beforeObject != null && !returnNew) {
+        return replaceWithObjectClass(applyProjections(beforeObject, fields));
+      }
+      if (beforeObject == null && upsert && !remove) {
+        beforeObject = new BasicDBObject();
+        afterObject = createUpsertObject(query);
+        fInsert(updateEngine.doUpdate(afterObject, update, query, upsert), getWriteConcern());
+      }
+
+      final DBObject resultObject;
+      if (returnNew) {
+        resultObject = applyProjections(afterObject, fields);
+      } else {
+        resultObject = applyProjections(beforeObject, fields);
+      }
+
+      return replaceWithObjectClass(resultObject);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public List distinct(final String key, final DBObject pQuery, final ReadPreference readPreference) {
+    final Lock queryLock = lockFor(pQuery);
+    queryLock.lock();
+    try {
+      final DBObject query = filterLists(pQuery);
+      Set<Object> results = new LinkedHashSet<Object>();
+      // An index on the key can give the values, in its order, without reading the objects.
+      final List<Object> indexValues = distinctFromIndexes(key, query);
+      if (indexValues != null) {
+        addDistinctValues(results, indexValues);
+        return new ArrayList<Object>(results);
+      }
+      Filter filter = buildFilter(query);
+      for (DBObject value : filterByIndexes(query)) {
+        if (filter.apply(value)) {
+          addDistinctValues(results, expressionParser.getEmbeddedValues(key, value));
+        }
+      }
+      //noinspection unchecked
+      return new ArrayList(results);
+    } finally {
+      queryLock.unlock();
+    }
+  }
+
+  /**
+   * @return the values of the key given by the first index holding all the objects and able to give them (see
+   * {@link IndexAbstract#distinctValues}), null if no index can.
+   */
+  private List<Object> distinctFromIndexes(String key, DBObject query) {
+    final ExecutionStats stats = new ExecutionStats("distinct");
+    for (IndexAbstract index : indexes) {
+      if (index.size() != records.size()) {
+        // Objects without a value for all the fields of the index are not in it.
+        continue;
+      }
+      final List<Object> values = index.distinctValues(key, query, stats);
+      if (values != null) {
+        LOG.debug("distinct({}, {}) from index {} : {}", key, query, index.getName(), stats);
+        return values;
+      }
+    }
+    return null;
+  }
+
+  private static void addDistinctValues(Set<Object> results, List<Object> keyValues) {
+    for (Object keyValue : keyValues) {
+      if (keyValue instanceof List) {
+        results.addAll((List) keyValue);
+      } else {
+        results.add(keyValue);
+      }
     }
-    //noinspection unchecked
-    return new ArrayList(results);
   }
 
   @Override
@@ -1260,22 +1820,28 @@ public class FongoDBCollection extends DBCollection {
   }
 
 
-  protected synchronized void _dropIndex(String name) throws MongoException {
-    final DBCollection indexColl = fongoDb.getCollection("system.indexes");
-    final WriteResult wr = indexColl.remove(new BasicDBObject("name", name).append("ns", nsName()), WriteConcern.ACKNOWLEDGED);
-    boolean isDrop = wr.getN() == 1;
-    ListIterator<IndexAbstract> iterator = indexes.listIterator();
-
-    while (iterator.hasNext()) {
-      IndexAbstract index = iterator.next();
-      if (index.getName().equals(name)) {
-        iterator.remove();
-        isDrop = true;
-        break;
+  protected void _dropIndex(String name) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      final DBCollection indexColl = fongoDb.getCollection("system.indexes");
+      final WriteResult wr = indexColl.remove(new BasicDBObject("name", name).append("ns", nsName()), WriteConcern.ACKNOWLEDGED);
+      boolean isDrop = wr.getN() == 1;
+      ListIterator<IndexAbstract> iterator = indexes.listIterator();
+
+      while (iterator.hasNext()) {
+        IndexAbstract index = iterator.next();
+        if (index.getName().equals(name)) {
+          iterator.remove();
+          planCache.clear(null);
+          isDrop = true;
+          break;
+        }
       }
-    }
-    if (!isDrop) {
-      fongoDb.notOkErrorResult("index not found with name [" + name + "]").throwOnError();
+      if (!isDrop) {
+        fongoDb.notOkErrorResult("index not found with name [" + name + "]").throwOnError();
+      }
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
@@ -1283,55 +1849,59 @@ public class FongoDBCollection extends DBCollection {
     return this.getDB().getName() + "." + this.getName();
   }
 
-  protected synchronized void _dropIndexes() {
-    final List<DBObject> indexes = fongoDb.getCollection("system.indexes").find(new BasicDBObject("ns", nsName())).toArray();
-    // Two step for no concurrent modification exception
-    for (final DBObject index : indexes) {
-      final String indexName = index.get("name").toString();
-      if (!ID_NAME_INDEX.equals(indexName)) {
-        dropIndexes(indexName);
+  protected void _dropIndexes() {
+    lock.writeLock().lock();
+    try {
+      final List<DBObject> indexes = fongoDb.getCollection("system.indexes").find(new BasicDBObject("ns", nsName())).toArray();
+      // Two step for no concurrent modification exception
+      for (final DBObject index : indexes) {
+        final String indexName = index.get("name").toString();
+        if (!ID_NAME_INDEX.equals(indexName)) {
+          dropIndexes(indexName);
+        }
       }
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
   @Override
   public void drop() {
-    _idIndex.clear();
+    lock.writeLock().lock();
+    try {
+      _idIndex.clear();
+      records.clear();
+      planCache.clear(null);
+    } finally {
+      lock.writeLock().unlock();
+    }
     _dropIndexes(); // _idIndex must stay.
     fongoDb.removeCollection(this);
   }
 
   /**
-   * Search the most restrictive index for query.
+   * Search the most restrictive index, or intersection of indexes, for query.
    *
    * @param query query for restriction
-   * @return the most restrictive index, or null.
+   * @return the cheapest plan.
    */
-  private synchronized IndexAbstract searchIndex(DBObject query) {
-    IndexAbstract result = null;
-    int foundCommon = -1;
-    Set<String> queryFields = query.keySet();
-    for (IndexAbstract index : this.indexes) {
-      if (index.canHandle(query)) {
-        // The most restrictive first.
-        if (index.getFields().size() > foundCommon || (result != null && !result.isUnique() && index.isUnique())) {
-          result = index;
-          foundCommon = index.getFields().size();
-        }
-      }
-    }
+  private QueryPlan searchIndex(DBObject query, ExecutionStats stats) {
+    final QueryPlan plan = planCache.plan(this.indexes, query, records.size());
+    stats.setPlan(plan);
+    stats.endStage(ExecutionStats.PLAN);
 
-    LOG.debug("searchIndex() found index {} for fields {}", result, queryFields);
+    LOG.debug("searchIndex() found plan {} for fields {}", plan, query.keySet());
 
-    return result;
+    return plan;
   }
 
+
   /**
    * Search the geo index.
    *
    * @return the geo index, or null.
    */
-  private synchronized IndexAbstract searchGeoIndex(boolean unique) {
+  private IndexAbstract searchGeoIndex(boolean unique) {
     IndexAbstract result = null;
     for (IndexAbstract index : indexes) {
       if (index.isGeoIndex()) {
@@ -1359,69 +1929,187 @@ public class FongoDBCollection extends DBCollection {
    */
   private void addToIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
     // Ensure "insert/update" create collection into "fongoDB"
-    // First, try to see if index can add the new value.
-    for (IndexAbstract index : indexes) {
-      @SuppressWarnings("unchecked") List<List<Object>> error = index.checkAddOrUpdate(object, oldObject);
-      if (!error.isEmpty()) {
-        // TODO formatting : E11000 duplicate key error index: test.zip.$city_1_state_1_pop_1  dup key: { : "BARRE", : "MA", : 4546.0 }
-        if (enforceDuplicates(concern)) {
-          throw fongoDb.duplicateKeyException(11000, "E11000 duplicate key error index: " + this.getFullName() + "." + index.getName() + "  dup key : {" + error + " }", oldObject);
-        }
-        return; // silently ignore.
-      }
-    }
-
     //     Set<String> queryFields = object.keySet();
-    final DBObject idFirst = Util.cloneIdFirst(object);
+    final DBObject idFirst = immutableDocuments ? ReadOnlyDBObject.freezeIdFirst(Index.expandObject(object)) : Util.cloneIdFirst(object);
+    final DBObject storedOldObject = storedObject(oldObject);
+    final long bytes = checkBytesLimit(idFirst, storedOldObject);
+    // Each index adds the object in one pass : the changes are undone if an index refuses it.
+    final IndexUndoLog undo = new IndexUndoLog();
+    IndexAbstract refusedBy = null;
+    List<List<Object>> error = null;
     try {
       for (final IndexAbstract index : indexes) {
         if (index.canHandle(object)) {
-          index.addOrUpdate(idFirst, oldObject);
-        } else if (index.canHandle(oldObject))
-          // In case of update and removing a field, we must remove from the index.
-          index.remove(oldObject);
+          error = index.addOrUpdate(idFirst, oldObject, undo);
+        } else {
+          // A unique index can refuse an object it doesn't hold.
+          error = index.checkAddOrUpdate(object, oldObject);
+          if (error.isEmpty() && index.canHandle(oldObject)) {
+            // In case of update and removing a field, we must remove from the index.
+            index.remove(oldObject, undo);
+          }
+        }
+        if (!error.isEmpty()) {
+          refusedBy = index;
+          break;
+        }
       }
     } catch (MongoException e) {
       LOG.info("", e);
+      undo.rollback();
       throw this.fongoDb.writeConcernException(e.getCode(), e.getMessage());
     }
+    if (refusedBy != null) {
+      undo.rollback();
+      // TODO formatting : E11000 duplicate key error index: test.zip.$city_1_state_1_pop_1  dup key: { : "BARRE", : "MA", : 4546.0 }
+      if (enforceDuplicates(concern)) {
+        throw fongoDb.duplicateKeyException(11000, "E11000 duplicate key error index: " + this.getFullName() + "." + refusedBy.getName() + "  dup key : {" + error + " }", oldObject);
+      }
+      return; // silently ignore.
+    }
+    if (storedOldObject == null) {
+      records.add(idFirst, bytes);
+    } else {
+      records.replace(storedOldObject, idFirst, bytes);
+    }
     this.fongoDb.addCollection(this);
   }
 
+  /**
+   * Remove the objects expired by the TTL indexes, by batches : the lock is taken for each batch, not for the whole
+   * pass, so readers and writers are not blocked by a large expiry.
+   *
+   * @param now       date of the pass.
+   * @param batchSize maximum number of objects removed under the lock.
+   * @return number of removed objects.
+   */
+  public int removeExpired(Date now, int batchSize) {
+    int removed = 0;
+    for (IndexAbstract index : ttlIndexes()) {
+      int batch;
+      do {
+        lock.writeLock().lock();
+        try {
+          if (!indexes.contains(index)) {
+            // Dropped between two batches.
+            break;
+          }
+          @SuppressWarnings("unchecked") final List<DBObject> expired = index.expired(now, batchSize);
+          for (DBObject object : expired) {
+            LOG.debug("remove expired object : {}", object);
+            removeFromIndexes(object);
+          }
+          batch = expired.size();
+        } finally {
+          lock.writeLock().unlock();
+        }
+        removed += batch;
+      } while (batch == batchSize);
+    }
+    return removed;
+  }
+
+  private List<IndexAbstract> ttlIndexes() {
+    lock.readLock().lock();
+    try {
+      final List<IndexAbstract> ttlIndexes = new ArrayList<IndexAbstract>();
+      for (IndexAbstract index : indexes) {
+        if (index.getExpireAfterSeconds() != null) {
+          ttlIndexes.add(index);
+        }
+      }
+      return ttlIndexes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
   /**
    * Remove an object from indexes.
    *
    * @param object object to remove.
    */
-  private synchronized void removeFromIndexes(DBObject object) {
+  private void removeFromIndexes(DBObject object) {
+    final DBObject storedObject = storedObject(object);
     for (IndexAbstract index : indexes) {
       if (index.canHandle(object)) {
         index.remove(object);
       }
     }
+    records.remove(storedObject);
+  }
+
+  /**
+   * Find the stored instance of an object : some indexes (geo) give copies of the stored objects.
+   *
+   * @return the object shared by the indexes, or the object itself if not found.
+   */
+  private DBObject storedObject(DBObject object) {
+    if (object == null || records.contains(object)) {
+      return object;
+    }
+    @SuppressWarnings("unchecked") Collection<DBObject> candidates = _idIndex.retrieveObjects(new BasicDBObject(ID_FIELD_NAME, object.get(ID_FIELD_NAME)));
+    if (candidates != null) {
+      for (DBObject candidate : candidates) {
+        if (records.contains(candidate)) {
+          return candidate;
+        }
+      }
+    }
+    return object;
   }
 
-  public synchronized Collection<IndexAbstract> getIndexes() {
-    return Collections.unmodifiableList(indexes);
+  /**
+   * @param query only the plan of the shape of this query, or all the cached plans if null.
+   * @return the cached plans (shape of the query, index used and its estimated cost).
+   */
+  public List<DBObject> planCacheListPlans(DBObject query) {
+    return planCache.list(query);
+  }
+
+  /**
+   * @param query only the plan of the shape of this query, or all the cached plans if null.
+   */
+  public void planCacheClear(DBObject query) {
+    planCache.clear(query);
   }
 
-  public synchronized List<DBObject> geoNear(Coordinate near, DBObject query, Number limit, Number maxDistance, boolean spherical) {
-    IndexAbstract matchingIndex = searchGeoIndex(true);
-    if (matchingIndex == null) {
-      fongoDb.notOkErrorResult(-5, "no geo indices for geoNear").throwOnError();
+  public Collection<IndexAbstract> getIndexes() {
+    lock.readLock().lock();
+    try {
+      return Collections.unmodifiableList(new ArrayList<IndexAbstract>(indexes));
+    } finally {
+      lock.readLock().unlock();
     }
-    //noinspection ConstantConditions
-    LOG.info("geoNear() near:{}, query:{}, limit:{}, maxDistance:{}, spherical:{}, use index:{}", near, query, limit, maxDistance, spherical, matchingIndex.getName());
+  }
+
+  public List<DBObject> geoNear(Coordinate near, DBObject query, Number limit, Number maxDistance, boolean spherical) {
+    lock.writeLock().lock();
+    try {
+      IndexAbstract matchingIndex = searchGeoIndex(true);
+      if (matchingIndex == null) {
+        fongoDb.notOkErrorResult(-5, "no geo indices for geoNear").throwOnError();
+      }
+      //noinspection ConstantConditions
+      LOG.info("geoNear() near:{}, query:{}, limit:{}, maxDistance:{}, spherical:{}, use index:{}", near, query, limit, maxDistance, spherical, matchingIndex.getName());
 
 //    List<LatLong> latLongs = GeoUtil.coordinate(Collections.<String>emptyList(), near);
-    Geometry geometry = GeoUtil.toGeometry(near);
-    return ((GeoIndex) matchingIndex).geoNear(query == null ? new BasicDBObject() : query, geometry, limit == null ? 100 : limit.intValue(), spherical);
+      Geometry geometry = GeoUtil.toGeometry(near);
+      return ((GeoIndex) matchingIndex).geoNear(query == null ? new BasicDBObject() : query, geometry, limit == null ? 100 : limit.intValue(), spherical);
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   //Text search Emulation see http://docs.mongodb.org/manual/tutorial/search-for-text/ for mongo
-  public synchronized DBObject text(String search, Number limit, DBObject project) {
-    TextSearch ts = new TextSearch(this);
-    return ts.findByTextSearch(search, project == null ? new BasicDBObject() : project, limit == null ? 100 : limit.intValue());
+  public DBObject text(String search, Number limit, DBObject project) {
+    lock.readLock().lock();
+    try {
+      TextSearch ts = new TextSearch(this);
+      return ts.findByTextSearch(search, project == null ? new BasicDBObject() : project, limit == null ? 100 : limit.intValue());
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   // TODO WDEL
@@ -1439,7 +2127,12 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public long count() {
-    return _idIndex.size();
+    lock.readLock().lock();
+    try {
+      return records.size();
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   @Override
@@ -15,6 +15,8 @@ import org.slf4j.LoggerFactory;
  */
 public class FongoDBCursor extends DBCursor {
   private final static Logger LOG = LoggerFactory.getLogger(FongoDBCursor.class);
+  // Like the first batch of mongod, when no batch size is given.
+  static final int DEFAULT_BATCH_SIZE = 101;
 
   private final FongoDBCollection dbCollection;
   private final DBObject query;
@@ -26,7 +28,13 @@ public class FongoDBCursor extends DBCursor {
   private boolean closed;
 
   private DBObject currentObject;
+  // Results produced batch by batch, null until the first batch.
+  private FongoDBCollection.FindCursor results;
+  // All the results, only when asked for by toArray() or length().
   private List<DBObject> objects = null;
+  // Results given by next() before toArray() or length() : they are the first ones of the array.
+  private final List<DBObject> consumed = new ArrayList<DBObject>();
+  // Current batch.
   private Iterator<DBObject> iterator;
 
   public FongoDBCursor(FongoDBCollection fongoDBCollection, DBObject query, DBObject projection) {
@@ -43,24 +51,60 @@ public class FongoDBCursor extends DBCursor {
     this.sort = sort;
   }
 
+  /**
+   * Make sure the current batch has a result, if there is one : the next batch is only produced once the current one
+   * was iterated.
+   */
   private void fetch() {
-    if (this.objects == null) {
-      objects = new ArrayList<DBObject>();
+    if (results == null) {
+      results = dbCollection.openFind(fullQuery(), projection, this.findOptions.getSkip(), this.getLimit());
+    }
+    if (iterator == null || (!iterator.hasNext() && results.hasMore())) {
+      final int batchSize = this.findOptions.getBatchSize();
+      iterator = results.nextBatch(batchSize == 0 ? DEFAULT_BATCH_SIZE : Math.abs(batchSize)).iterator();
+    }
+  }
 
-      final DBObject q;
-      if (this.query != null && this.query.containsField("$query")) {
-        q = Util.clone(query);
+  /**
+   * All the results : the ones already given by next(), then the rest of the results of the same find. The iteration
+   * goes on after the results already given.
+   */
+  private List<DBObject> fetchAll() {
+    if (this.objects == null) {
+      if (results == null) {
+        results = dbCollection.openFind(fullQuery(), projection, this.findOptions.getSkip(), this.getLimit());
+        objects = new ArrayList<DBObject>(results.nextBatch(Integer.MAX_VALUE));
+        iterator = objects.iterator();
       } else {
-        q = new BasicDBObject("$query", Util.clone(this.query));
+        objects = new ArrayList<DBObject>(consumed);
+        while (iterator.hasNext()) {
+          objects.add(iterator.next());
+        }
+        objects.addAll(results.nextBatch(Integer.MAX_VALUE));
+        iterator = objects.listIterator(consumed.size());
+        consumed.clear();
       }
-      if (sort != null) {
-        q.put("$orderby", sort);
-      }
-      q.putAll(modifiers);
-      objects.addAll(dbCollection.__find(q, projection, this.findOptions.getSkip(), this.findOptions.getBatchSize(),
-          this.getLimit(), this.getOptions(), getReadPreference(), null));
-      iterator = objects.iterator();
     }
+    return objects;
+  }
+
+  private DBObject fullQuery() {
+    final DBObject q;
+    if (this.query != null && this.query.containsField("$query")) {
+      q = Util.clone(query);
+    } else {
+      q = new BasicDBObject("$query", Util.clone(this.query));
+    }
+    if (sort != null) {
+      q.put("$orderby", sort);
+    }
+    q.putAll(modifiers);
+    return q;
+  }
+
+  @Override
+  public DBObject explain() {
+    return dbCollection.explain(fullQuery(), projection, this.findOptions.getSkip(), this.getLimit());
   }
 
 
@@ -78,8 +122,7 @@ public class FongoDBCursor extends DBCursor {
 
   @Override
   public synchronized List<DBObject> toArray(int max) {
-    fetch();
-    return objects;
+    return fetchAll();
   }
 
   @Override
@@ -98,7 +141,11 @@ public class FongoDBCursor extends DBCursor {
     }
     fetch();
     this.numSeen++;
-    return currentObject(iterator.next());
+    final DBObject object = iterator.next();
+    if (objects == null) {
+      consumed.add(object);
+    }
+    return currentObject(object);
   }
 
   @Override
@@ -116,8 +163,7 @@ public class FongoDBCursor extends DBCursor {
 
   @Override
   public int length() {
-    fetch();
-    return this.objects.size();
+    return fetchAll().size();
   }
 
   /**
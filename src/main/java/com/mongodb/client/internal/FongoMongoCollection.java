@@ -1,6 +1,7 @@
 package com.mongodb.client.internal;
 
 import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoNamespace;
@@ -10,6 +11,7 @@ import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.CountOptions;
 import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.UpdateResult;
 import com.mongodb.util.FongoJSON;
@@ -84,7 +86,21 @@ public class FongoMongoCollection<TDocument> extends MongoCollectionImpl<TDocume
   public List<String> createIndexes(List<IndexModel> indexes) {
     ArrayList<String> names = new ArrayList<String>(indexes.size());
     for (IndexModel indexModel : indexes) {
-      this.dbCollection.createIndex(dbObject(indexModel.getKeys()), indexModel.getOptions().getName(), indexModel.getOptions().isUnique());
+      final IndexOptions indexOptions = indexModel.getOptions();
+      final DBObject options = new BasicDBObject();
+      if (indexOptions.getName() != null) {
+        options.put("name", indexOptions.getName());
+      }
+      if (indexOptions.isUnique()) {
+        options.put("unique", Boolean.TRUE);
+      }
+      if (indexOptions.isSparse()) {
+        options.put("sparse", Boolean.TRUE);
+      }
+      if (indexOptions.getPartialFilterExpression() != null) {
+        options.put("partialFilterExpression", dbObject(indexOptions.getPartialFilterExpression()));
+      }
+      this.dbCollection.createIndex(dbObject(indexModel.getKeys()), options);
       names.add(indexModel.getOptions().getName());
     }
 //    return super.createIndexes(indexes);
@@ -10,6 +10,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -49,6 +50,7 @@ import com.mongodb.client.FindIterable;
 import com.mongodb.client.ListCollectionsIterable;
 import com.mongodb.client.ListIndexesIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.CountOptions;
@@ -188,6 +190,48 @@ public abstract class AbstractFongoV3Test {
     assertThat(documents).containsExactly(docId(1));
   }
 
+  @Test
+  public void find_with_batch_size_give_the_results_by_getMore() {
+    // Given
+    final MongoCollection<Document> collection = newCollection();
+    final List<Document> inserted = new ArrayList<Document>();
+    for (int i = 0; i < 25; i++) {
+      inserted.add(docId(i));
+    }
+    collection.insertMany(inserted);
+
+    // When
+    final MongoCursor<Document> cursor = collection.find().batchSize(10).iterator();
+    final Document first = cursor.next();
+
+    // Then
+    assertThat(first).isEqualTo(docId(0));
+    assertThat(fongoRule.getFongo().getCursorRegistry().size()).isEqualTo(1);
+    final List<Document> documents = new ArrayList<Document>(Collections.singletonList(first));
+    while (cursor.hasNext()) {
+      documents.add(cursor.next());
+    }
+    assertThat(documents).isEqualTo(inserted);
+    assertThat(fongoRule.getFongo().getCursorRegistry().size()).isEqualTo(0);
+  }
+
+  @Test
+  public void find_cursor_closed_before_the_end_is_killed() {
+    // Given
+    final MongoCollection<Document> collection = newCollection();
+    for (int i = 0; i < 5; i++) {
+      collection.insertOne(docId(i));
+    }
+
+    // When
+    final MongoCursor<Document> cursor = collection.find().batchSize(2).iterator();
+    cursor.next();
+    cursor.close();
+
+    // Then
+    assertThat(fongoRule.getFongo().getCursorRegistry().size()).isEqualTo(0);
+  }
+
   @Test
   public void find_first() {
     // Given
@@ -0,0 +1,240 @@
+package com.github.fakemongo;
+
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FongoImmutableDocumentsTest {
+
+  private DBCollection collection;
+
+  @Before
+  public void setUp() {
+    final Fongo fongo = new Fongo("immutable");
+    fongo.setImmutableDocuments(true);
+    collection = fongo.getDB("db").getCollection("coll");
+  }
+
+  @Test
+  public void should_find_share_the_embedded_documents_without_copy() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", Util.list(1, 2))));
+
+    // When
+    final DBObject first = collection.find().next();
+    final DBObject second = collection.find().next();
+
+    // Then
+    assertSame(first.get("a"), second.get("a"));
+    assertEquals(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", Util.list(1, 2))), first);
+  }
+
+  @Test
+  public void should_embedded_documents_be_read_only() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", Util.list(1, 2))));
+    final DBObject found = collection.find().next();
+
+    // Then
+    found.put("c", 1);
+    try {
+      ((DBObject) found.get("a")).removeField("b");
+      fail("embedded document must be read-only");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      ((List) ((DBObject) found.get("a")).get("b")).add(3);
+      fail("list must be read-only");
+    } catch (UnsupportedOperationException expected) {
+    }
+    assertEquals(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", Util.list(1, 2))), collection.findOne());
+  }
+
+  @Test
+  public void should_embedded_documents_be_read_only_with_the_methods_of_java_8() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)).append("c", Util.list(2, 1)));
+    final DBObject found = collection.find().next();
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> embedded = (Map<String, Object>) found.get("a");
+    @SuppressWarnings("unchecked")
+    final List<Object> list = (List<Object>) found.get("c");
+    final BiFunction<Object, Object, Object> seven = new BiFunction<Object, Object, Object>() {
+      @Override
+      public Object apply(Object key, Object value) {
+        return 7;
+      }
+    };
+    final List<Runnable> modifications = Arrays.<Runnable>asList(
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.entrySet().iterator().next().setValue(7);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.replaceAll(seven);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.putIfAbsent("d", 7);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.replace("b", 7);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.replace("b", 1, 7);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.remove("b", 1);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.compute("b", seven);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.computeIfPresent("b", seven);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.computeIfAbsent("d", new Function<String, Object>() {
+              @Override
+              public Object apply(String key) {
+                return 7;
+              }
+            });
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            embedded.merge("b", 7, seven);
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            list.removeIf(new Predicate<Object>() {
+              @Override
+              public boolean test(Object value) {
+                return true;
+              }
+            });
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            list.replaceAll(new UnaryOperator<Object>() {
+              @Override
+              public Object apply(Object value) {
+                return 7;
+              }
+            });
+          }
+        },
+        new Runnable() {
+          @Override
+          public void run() {
+            list.sort(null);
+          }
+        }
+    );
+
+    for (int i = 0; i < modifications.size(); i++) {
+      // When
+      try {
+        modifications.get(i).run();
+        fail("modification " + i + " must fail");
+      } catch (UnsupportedOperationException expected) {
+      }
+
+      // Then
+      assertEquals("modification " + i, new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)).append("c", Util.list(2, 1)),
+          collection.findOne());
+    }
+  }
+
+  @Test
+  public void should_clone_give_a_modifiable_copy() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", Util.list(1, 2)));
+
+    // When
+    final DBObject copy = Util.clone(collection.findOne());
+    copy.put("b", 2);
+    ((BasicDBList) copy.get("a")).add(3);
+
+    // Then
+    assertEquals(new BasicDBObject("_id", 1).append("a", Util.list(1, 2)), collection.findOne());
+  }
+
+  @Test
+  public void should_update_replace_the_stored_document() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)));
+    collection.insert(new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 2)));
+    final DBObject before = collection.findOne(new BasicDBObject("_id", 1));
+
+    // When
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("a.b", 3)));
+    final DBObject modified = collection.findAndModify(new BasicDBObject("_id", 2), new BasicDBObject("$inc", new BasicDBObject("a.b", 1)));
+
+    // Then
+    assertEquals(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)), before);
+    assertEquals(new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 2)), modified);
+    assertThat(collection.find().toArray()).containsExactly(
+        new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 3)),
+        new BasicDBObject("_id", 2).append("a", new BasicDBObject("b", 3)));
+  }
+
+  @Test
+  public void should_remove_stored_documents() {
+    // Given
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 2));
+
+    // When
+    collection.remove(new BasicDBObject("a", 1));
+
+    // Then
+    assertThat(collection.find().toArray()).containsExactly(new BasicDBObject("_id", 2).append("a", 2));
+    assertEquals(1, collection.count());
+  }
+}
@@ -2,21 +2,32 @@ package com.github.fakemongo;
 
 import com.github.fakemongo.impl.Util;
 import com.github.fakemongo.impl.index.IndexAbstract;
+import com.github.fakemongo.impl.index.IndexStatistics;
 import com.github.fakemongo.junit.FongoRule;
 import com.google.common.collect.Lists;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoCommandException;
 import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.assertj.core.api.Assertions;
+import org.bson.Document;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeFalse;
@@ -363,16 +374,17 @@ public class FongoIndexTest {
     assertEquals(0, indexDate.getLookupCount());
     assertEquals(0, indexPermalink.getLookupCount());
 
+    // The most selective index : 15 dates for 10 names.
     objects = collection.find(new BasicDBObject("firstname", "firstname0").append("lastname", "lastname0").append("date", 0)).toArray();
     assertEquals(1, objects.size());
-    assertEquals(2, indexFLname.getLookupCount());
-    assertEquals(0, indexDate.getLookupCount());
+    assertEquals(1, indexFLname.getLookupCount());
+    assertEquals(1, indexDate.getLookupCount());
     assertEquals(0, indexPermalink.getLookupCount());
 
     objects = collection.find(new BasicDBObject("permalink", 0)).toArray();
     assertEquals(1, objects.size());
-    assertEquals(2, indexFLname.getLookupCount());
-    assertEquals(0, indexDate.getLookupCount());
+    assertEquals(1, indexFLname.getLookupCount());
+    assertEquals(1, indexDate.getLookupCount());
     assertEquals(1, indexPermalink.getLookupCount());
   }
 
@@ -484,76 +496,921 @@ public class FongoIndexTest {
   }
 
   @Test
-  public void uniqueIndexesShouldPermitCreateOfDuplicatedEntriesWhenAllIndexesAreRemoved() {
+  public void uniqueIndexesShouldPermitCreateOfDuplicatedEntriesWhenAllIndexesAreRemoved() {
+    DBCollection collection = fongoRule.newCollection();
+
+    collection.createIndex(new BasicDBObject("date", 1), new BasicDBObject("name", "uniqueDate").append("unique", true));
+
+    // Insert
+    collection.insert(new BasicDBObject("_id", 1).append("date", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("date", 2));
+
+    collection.dropIndex("uniqueDate");
+
+    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("date", 1));
+    collection.insert(new BasicDBObject("_id", 3).append("date", 1));
+  }
+
+  // Add or remove a field in an object must populate the index.
+  @Test
+  public void updateAndAddFieldMustAddIntoIndex() {
+    assumeFalse(fongoRule.isRealMongo());
+    DBCollection collection = fongoRule.newCollection();
+
+    collection.createIndex(new BasicDBObject("date", 1));
+
+    // Insert
+    collection.insert(new BasicDBObject("_id", 2));
+
+    IndexAbstract index = getIndex(collection, "date_1");
+    assertEquals(0, index.size());
+
+    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("date", 1));
+    assertEquals(1, index.size());
+  }
+
+  // Add or remove a field in an object must populate the index.
+  @Test
+  public void updateAndRemoveFieldMustAddIntoIndex() {
+    assumeFalse(fongoRule.isRealMongo());
+    DBCollection collection = fongoRule.newCollection();
+
+    collection.createIndex(new BasicDBObject("date", 1));
+
+    // Insert
+    collection.insert(new BasicDBObject("_id", 1).append("date", 1));
+
+    IndexAbstract index = getIndex(collection, "date_1");
+    assertEquals(1, index.size());
+
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$unset", new BasicDBObject("date", 1)));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void indexesMustBeUsedForFindWithInFilter() {
+    assumeFalse(fongoRule.isRealMongo());
+    DBCollection collection = fongoRule.newCollection();
+
+    collection.createIndex(new BasicDBObject("date", 1));
+
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("date", i % 10).append("_id", i));
+    }
+
+    IndexAbstract indexDate = getIndex(collection, "date_1");
+
+    assertEquals(0, indexDate.getLookupCount());
+
+    List<DBObject> objects = collection.find(new BasicDBObject("date", new BasicDBObject("$in", Util.list(0, 1, 2)))).toArray();
+    // No index used.
+    assertEquals(1, indexDate.getLookupCount());
+    assertEquals(6, objects.size());
+  }
+
+  @Test
+  public void should_range_query_on_index_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("date", 1));
+    for (int i = 0; i < 50; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("date", i % 20).append("name", "n" + i % 3);
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
+    withIndex.insert(new BasicDBObject("_id", 100).append("name", "nodate"));
+    withoutIndex.insert(new BasicDBObject("_id", 100).append("name", "nodate"));
+
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("date", new BasicDBObject("$gt", 5)),
+        new BasicDBObject("date", new BasicDBObject("$gte", 5).append("$lt", 10)),
+        new BasicDBObject("date", new BasicDBObject("$lte", 3)),
+        new BasicDBObject("date", new BasicDBObject("$gt", 10).append("$lt", 5)),
+        new BasicDBObject("date", new BasicDBObject("$in", Util.list(18, 1, 7, 1, 42)).append("$gt", 1)),
+        new BasicDBObject("date", new BasicDBObject("$eq", 12)),
+        new BasicDBObject("date", new BasicDBObject("$gte", 2).append("$ne", 3)),
+        new BasicDBObject("date", 4).append("name", "n1")
+    );
+
+    for (DBObject query : queries) {
+      // When
+      List<DBObject> indexed = withIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+      List<DBObject> notIndexed = withoutIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+
+      // Then
+      assertEquals("query " + query, notIndexed, indexed);
+    }
+  }
+
+  @Test
+  public void should_range_query_on_descending_index_keep_index_order() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("date", -1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("date", i));
+    }
+
+    // When
+    List<DBObject> objects = collection.find(new BasicDBObject("date", new BasicDBObject("$gte", 3).append("$lt", 6))).toArray();
+    List<DBObject> inObjects = collection.find(new BasicDBObject("date", new BasicDBObject("$in", Util.list(2, 8, 5)))).toArray();
+
+    // Then
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 5).append("date", 5),
+        new BasicDBObject("_id", 4).append("date", 4),
+        new BasicDBObject("_id", 3).append("date", 3)), objects);
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 8).append("date", 8),
+        new BasicDBObject("_id", 5).append("date", 5),
+        new BasicDBObject("_id", 2).append("date", 2)), inObjects);
+    assertEquals(2, getIndex(collection, "date_-1").getLookupCount());
+  }
+
+  @Test
+  public void should_range_query_on_index_handle_arrays() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("date", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("date", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("date", Util.list(1, 20)));
+    collection.insert(new BasicDBObject("_id", 3).append("date", 10));
+
+    // When
+    List<DBObject> objects = collection.find(new BasicDBObject("date", new BasicDBObject("$lt", 5))).sort(new BasicDBObject("_id", 1)).toArray();
+
+    // Then
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 1).append("date", 1),
+        new BasicDBObject("_id", 2).append("date", Util.list(1, 20))), objects);
+  }
+
+  @Test
+  public void should_multikey_index_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("tags", 1));
+    withIndex.createIndex(new BasicDBObject("items.sku", 1));
+    List<DBObject> objects = Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")).append("items", Util.list(new BasicDBObject("sku", 1), new BasicDBObject("sku", 2))),
+        new BasicDBObject("_id", 2).append("tags", Util.list("b", "c", "b")).append("items", new BasicDBObject("sku", 3)),
+        new BasicDBObject("_id", 3).append("tags", Util.list("a")).append("items", Util.list(new BasicDBObject("sku", 3), new BasicDBObject("qty", 1))),
+        new BasicDBObject("_id", 4).append("tags", Util.list()).append("items", Util.list()),
+        new BasicDBObject("_id", 5).append("tags", Util.list(3, 12)),
+        new BasicDBObject("_id", 6).append("tags", Util.list(Util.list("a", "b"), "d")),
+        new BasicDBObject("_id", 7).append("name", "notags")
+    );
+    for (DBObject object : objects) {
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
+
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("tags", "a"),
+        new BasicDBObject("tags", "b"),
+        new BasicDBObject("tags", new BasicDBObject("$in", Util.list("a", "c"))),
+        new BasicDBObject("tags", new BasicDBObject("$all", Util.list("a", "b"))),
+        new BasicDBObject("tags", Util.list("a", "b")),
+        new BasicDBObject("tags", Util.list()),
+        new BasicDBObject("tags", new BasicDBObject("$size", 2)),
+        new BasicDBObject("tags", new BasicDBObject("$gt", 5).append("$lt", 10)),
+        new BasicDBObject("tags", new BasicDBObject("$gt", 5)),
+        new BasicDBObject("tags", new BasicDBObject("$gte", "b").append("$ne", "c")),
+        new BasicDBObject("tags", new BasicDBObject("$elemMatch", new BasicDBObject("$gt", 10))),
+        new BasicDBObject("items.sku", 3),
+        new BasicDBObject("items.sku", new BasicDBObject("$lte", 2)),
+        new BasicDBObject("items", new BasicDBObject("sku", 1))
+    );
+
+    for (DBObject query : queries) {
+      // When
+      List<DBObject> indexed = withIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+      List<DBObject> notIndexed = withoutIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+
+      // Then
+      assertEquals("query " + query, notIndexed, indexed);
+    }
+  }
+
+  @Test
+  public void should_multikey_index_find_elements_without_duplicates() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("tags", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")));
+    collection.insert(new BasicDBObject("_id", 2).append("tags", Util.list("c")));
+    collection.insert(new BasicDBObject("_id", 3).append("tags", Util.list("b")));
+    IndexAbstract index = getIndex(collection, "tags_1");
+
+    // When
+    List<DBObject> objects = collection.find(new BasicDBObject("tags", new BasicDBObject("$in", Util.list("a", "b")))).toArray();
+
+    // Then
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")),
+        new BasicDBObject("_id", 3).append("tags", Util.list("b"))), objects);
+    assertEquals(1, index.getLookupCount());
+    assertEquals(4, index.size());
+
+    // Queries on the whole array can't use the keys of the elements.
+    assertEquals(1, collection.count(new BasicDBObject("tags", new BasicDBObject("$all", Util.list("a", "b")))));
+    assertEquals(1, index.getLookupCount());
+  }
+
+  @Test
+  public void should_multikey_index_follow_updates_and_removes() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("tags", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")));
+
+    // When
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$pull", new BasicDBObject("tags", "a")));
+    collection.insert(new BasicDBObject("_id", 2).append("tags", Util.list("a", "c")));
+    collection.remove(new BasicDBObject("tags", "c"));
+
+    // Then
+    assertEquals(0, collection.count(new BasicDBObject("tags", "a")));
+    assertEquals(1, collection.count(new BasicDBObject("tags", "b")));
+    assertEquals(0, collection.count(new BasicDBObject("tags", "c")));
+  }
+
+  @Test
+  public void should_unique_multikey_index_check_each_element() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("tags", 1), "uniqueTags", true);
+    collection.insert(new BasicDBObject("_id", 1).append("tags", Util.list("a", "b")));
+    // The same element twice in one document is not a duplicate.
+    collection.insert(new BasicDBObject("_id", 2).append("tags", Util.list("c", "c")));
+
+    // When
+    try {
+      collection.insert(new BasicDBObject("_id", 3).append("tags", Util.list("d", "b")));
+      fail("should throw MongoException");
+    } catch (MongoException me) {
+      assertEquals(11000, me.getCode());
+    }
+
+    // Then
+    assertEquals(2, collection.count());
+    assertEquals(0, collection.count(new BasicDBObject("tags", "d")));
+    collection.insert(new BasicDBObject("_id", 3).append("tags", Util.list("d", "e")));
+    assertEquals(1, collection.count(new BasicDBObject("tags", "d")));
+  }
+
+  @Test
+  public void should_multikey_index_keep_equal_numbers_of_one_document_once() {
+    // Given
+    DBCollection unique = fongoRule.newCollection();
+    unique.createIndex(new BasicDBObject("t", 1), "uniqueT", true);
+    DBCollection notUnique = fongoRule.newCollection();
+    notUnique.createIndex(new BasicDBObject("t", 1));
+    DBCollection loaded = fongoRule.newCollection();
+
+    // When
+    for (DBCollection collection : Arrays.asList(unique, notUnique, loaded)) {
+      collection.insert(new BasicDBObject("_id", 1).append("t", Util.list(1, 1.0D)));
+      collection.insert(new BasicDBObject("_id", 2).append("t", Util.list(2, 2L, 3)));
+    }
+    loaded.createIndex(new BasicDBObject("t", 1), "uniqueT", true);
+
+    // Then
+    for (DBCollection collection : Arrays.asList(unique, notUnique, loaded)) {
+      assertEquals(2, collection.count());
+      assertEquals(Arrays.asList(new BasicDBObject("_id", 1).append("t", Util.list(1, 1.0D))),
+          collection.find(new BasicDBObject("t", 1)).toArray());
+      assertEquals(Arrays.asList(new BasicDBObject("_id", 2).append("t", Util.list(2, 2L, 3))),
+          collection.find(new BasicDBObject("t", new BasicDBObject("$gte", 2))).toArray());
+    }
+    if (!fongoRule.isRealMongo()) {
+      assertEquals(3, getIndex(unique, "uniqueT").size());
+      assertEquals(3, getIndex(notUnique, "t_1").size());
+      assertEquals(3, getIndex(loaded, "uniqueT").size());
+    }
+    try {
+      unique.insert(new BasicDBObject("_id", 3).append("t", 2.0D));
+      fail("should throw MongoException");
+    } catch (MongoException me) {
+      assertEquals(11000, me.getCode());
+    }
+  }
+
+  @Test
+  public void should_compound_index_be_used_by_prefix() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1).append("b", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 5).append("b", 2));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 5));
+    collection.insert(new BasicDBObject("_id", 3).append("a", 6).append("b", 1));
+    collection.insert(new BasicDBObject("_id", 4).append("b", 1));
+    IndexAbstract index = getIndex(collection, "a_1_b_1");
+
+    // When
+    List<DBObject> objects = collection.find(new BasicDBObject("a", 5)).sort(new BasicDBObject("_id", 1)).toArray();
+
+    // Then
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 1).append("a", 5).append("b", 2),
+        new BasicDBObject("_id", 2).append("a", 5)), objects);
+    assertEquals(1, index.getLookupCount());
+    assertEquals(3, index.size());
+    // Not the leading field.
+    assertEquals(2, collection.count(new BasicDBObject("b", 1)));
+    assertEquals(1, index.getLookupCount());
+  }
+
+  @Test
+  public void should_sort_with_index_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("a", 1).append("b", 1));
+    for (int i = 0; i < 40; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("a", i % 4).append("b", (i * 7) % 10);
+      if (i % 9 == 0) {
+        object.removeField("b");
+      }
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
+
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("a", 2),
+        new BasicDBObject("a", new BasicDBObject("$gte", 1)),
+        new BasicDBObject("a", new BasicDBObject("$in", Util.list(3, 1))),
+        new BasicDBObject("a", 1).append("b", new BasicDBObject("$gt", 3))
+    );
+    // The order of ties is only the natural order when the sort reaches the last field of the index.
+    List<DBObject> sorts = Arrays.<DBObject>asList(
+        new BasicDBObject("a", 1).append("b", 1),
+        new BasicDBObject("a", -1).append("b", -1),
+        new BasicDBObject("a", 1).append("b", -1),
+        new BasicDBObject("a", -1).append("b", 1)
+    );
+
+    for (DBObject query : queries) {
+      for (DBObject sort : sorts) {
+        // When
+        List<DBObject> indexed = withIndex.find(query).sort(sort).skip(2).limit(5).toArray();
+        List<DBObject> notIndexed = withoutIndex.find(query).sort(sort).skip(2).limit(5).toArray();
+
+        // Then
+        assertEquals("query " + query + " sort " + sort, notIndexed, indexed);
+      }
+    }
+    for (int order : new int[]{1, -1}) {
+      DBObject sort = new BasicDBObject("b", order);
+      assertEquals(withoutIndex.find(new BasicDBObject("a", 2)).sort(sort).skip(1).limit(6).toArray(),
+          withIndex.find(new BasicDBObject("a", 2)).sort(sort).skip(1).limit(6).toArray());
+    }
+  }
+
+  @Test
+  public void should_index_give_the_sort_order() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", -1).append("b", -1));
+    collection.insert(new BasicDBObject("a", 1).append("b", 1));
+    IndexAbstract index = getIndex(collection, "a_-1_b_-1");
+    DBObject range = new BasicDBObject("a", new BasicDBObject("$gt", 0));
+
+    // Then
+    assertEquals(1, index.sortOrder(range, new BasicDBObject("a", -1).append("b", -1)));
+    assertEquals(0, index.sortOrder(range, new BasicDBObject("a", -1)));
+    assertEquals(-1, index.sortOrder(range, new BasicDBObject("a", 1).append("b", 1)));
+    assertEquals(0, index.sortOrder(range, new BasicDBObject("a", 1).append("b", -1)));
+    assertEquals(0, index.sortOrder(range, new BasicDBObject("b", 1)));
+    assertEquals(-1, index.sortOrder(new BasicDBObject("a", 1), new BasicDBObject("b", 1)));
+    assertEquals(0, index.sortOrder(new BasicDBObject("a", new BasicDBObject("$in", Util.list(1, 2))), new BasicDBObject("b", 1)));
+  }
+
+  @Test
+  public void should_planner_choose_the_most_selective_index() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("status", 1));
+    collection.createIndex(new BasicDBObject("user", 1));
+    for (int i = 0; i < 200; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("status", i % 10 == 0 ? "closed" : "open").append("user", "u" + i % 50));
+    }
+    IndexAbstract indexStatus = getIndex(collection, "status_1");
+    IndexAbstract indexUser = getIndex(collection, "user_1");
+
+    // When
+    List<DBObject> objects = collection.find(new BasicDBObject("status", "open").append("user", "u7")).toArray();
+
+    // Then
+    assertEquals(4, objects.size());
+    assertEquals(0, indexStatus.getLookupCount());
+    assertEquals(1, indexUser.getLookupCount());
+  }
+
+  @Test
+  public void should_index_statistics_follow_the_index() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", -1).append("b", 1));
+    for (int i = 0; i < 30; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 5).append("b", i % 3));
+    }
+    IndexAbstract index = getIndex(collection, "a_-1_b_1");
+
+    // When
+    IndexStatistics statistics = index.getStatistics();
+
+    // Then
+    assertEquals(15, statistics.getKeys());
+    assertEquals(30, statistics.getEntries());
+    assertEquals(2D, statistics.getEntriesPerKey(), 0D);
+    assertEquals(5, statistics.getLeadingValues());
+    assertEquals(0, statistics.getMin());
+    assertEquals(4, statistics.getMax());
+
+    // When
+    collection.remove(new BasicDBObject("a", 4));
+    statistics = index.getStatistics();
+
+    // Then
+    assertEquals(24, statistics.getEntries());
+    assertEquals(4, statistics.getLeadingValues());
+    assertEquals(3, statistics.getMax());
+  }
+
+  @Test
+  public void should_plan_cache_keep_one_plan_by_shape() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i).append("b", i % 2));
+    }
+
+    // When
+    collection.find(new BasicDBObject("a", 1)).toArray();
+    collection.find(new BasicDBObject("a", 2)).toArray();
+    collection.find(new BasicDBObject("a", new BasicDBObject("$gt", 3))).toArray();
+    CommandResult all = collection.getDB().command(new BasicDBObject("planCacheListPlans", collection.getName()));
+    CommandResult one = collection.getDB().command(new BasicDBObject("planCacheListPlans", collection.getName()).append("query", new BasicDBObject("a", 5)));
+
+    // Then
+    all.throwOnError();
+    assertEquals(2, ((List) all.get("plans")).size());
+    List plans = (List) one.get("plans");
+    assertEquals(1, plans.size());
+    assertEquals(new BasicDBObject("solution", "a_1"), ((DBObject) plans.get(0)).get("details"));
+    assertEquals(new BasicDBObject("a", "Integer"), ((DBObject) plans.get(0)).get("query"));
+    assertEquals(3, getIndex(collection, "a_1").getLookupCount());
+  }
+
+  @Test
+  public void should_plan_cache_be_cleared() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    MongoCollection<Document> collection = fongoRule.newMongoCollection();
+    MongoDatabase database = fongoRule.getDatabase();
+    collection.createIndex(new Document("a", 1));
+    collection.insertOne(new Document("a", 1).append("b", 1));
+    collection.find(new Document("a", 1)).first();
+    collection.find(new Document("b", 1)).first();
+    Document listPlans = new Document("planCacheListPlans", collection.getNamespace().getCollectionName());
+    assertEquals(2, ((List) database.runCommand(listPlans).get("plans")).size());
+
+    // When
+    database.runCommand(new Document("planCacheClear", collection.getNamespace().getCollectionName()).append("query", new Document("b", 2)));
+
+    // Then
+    assertEquals(1, ((List) database.runCommand(listPlans).get("plans")).size());
+
+    // When
+    collection.createIndex(new Document("b", 1));
+
+    // Then
+    assertEquals(0, ((List) database.runCommand(listPlans).get("plans")).size());
+  }
+
+  @Test
+  public void should_covered_query_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("email", 1).append("age", -1));
+    for (int i = 0; i < 30; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("email", "user" + i % 7 + "@mail.com").append("age", i % 4).append("name", "n" + i);
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
+
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("email", "user3@mail.com"),
+        new BasicDBObject("email", new BasicDBObject("$gte", "user2")).append("age", new BasicDBObject("$lt", 2)),
+        new BasicDBObject("email", "nobody")
+    );
+    List<DBObject> projections = Arrays.<DBObject>asList(
+        new BasicDBObject("email", 1).append("_id", 0),
+        new BasicDBObject("email", 1).append("age", true).append("_id", false),
+        new BasicDBObject("age", 1).append("_id", 0),
+        // Not covered.
+        new BasicDBObject("email", 1),
+        new BasicDBObject("email", 1).append("name", 1).append("_id", 0)
+    );
+
+    for (DBObject query : queries) {
+      for (DBObject projection : projections) {
+        // When
+        List<DBObject> indexed = withIndex.find(query, projection).sort(new BasicDBObject("email", 1).append("age", -1)).skip(1).toArray();
+        List<DBObject> notIndexed = withoutIndex.find(query, projection).sort(new BasicDBObject("email", 1).append("age", -1)).skip(1).toArray();
+
+        // Then
+        assertEquals("query " + query + " projection " + projection, notIndexed, indexed);
+      }
+    }
+  }
+
+  @Test
+  public void should_covered_query_not_share_the_keys_of_the_index() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("email", "a@mail.com").append("name", "a"));
+    IndexAbstract index = getIndex(collection, "email_1");
+    DBObject query = new BasicDBObject("email", "a@mail.com");
+    DBObject projection = new BasicDBObject("email", 1).append("_id", 0);
+
+    // When
+    DBObject result = collection.find(query, projection).next();
+    result.put("email", "changed");
+
+    // Then
+    assertEquals(new BasicDBObject("email", "a@mail.com"), collection.find(query, projection).next());
+    assertEquals(2, index.getLookupCount());
+    assertTrue(index.isCovering(query, projection, null));
+    assertFalse(index.isCovering(query, new BasicDBObject("email", 1), null));
+    assertFalse(index.isCovering(query, projection, new BasicDBObject("name", 1)));
+  }
+
+  @Test
+  public void should_explain_give_the_plan_and_the_execution_statistics() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("b", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i).append("b", i % 2));
+    }
+
+    // When
+    DBObject explain = collection.find(new BasicDBObject("a", new BasicDBObject("$lt", 10)).append("b", 0))
+        .sort(new BasicDBObject("b", 1)).explain();
+
+    // Then
+    DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+    DBObject executionStats = (DBObject) explain.get("executionStats");
+    DBObject sort = (DBObject) queryPlanner.get("winningPlan");
+    assertEquals("SORT", sort.get("stage"));
+    DBObject fetch = (DBObject) sort.get("inputStage");
+    assertEquals("FETCH", fetch.get("stage"));
+    DBObject indexScan = (DBObject) fetch.get("inputStage");
+    assertEquals("IXSCAN", indexScan.get("stage"));
+    assertEquals("a_1", indexScan.get("indexName"));
+    assertEquals(new BasicDBObject("a", 1), indexScan.get("keyPattern"));
+    assertEquals(false, queryPlanner.get("indexOnly"));
+    // b_1, the intersection of a_1 and b_1, and the scan.
+    assertEquals(3, ((List) queryPlanner.get("rejectedPlans")).size());
+    assertEquals(10L, executionStats.get("totalKeysExamined"));
+    assertEquals(10L, executionStats.get("totalDocsExamined"));
+    assertEquals(5L, executionStats.get("nReturned"));
+    assertTrue(((DBObject) executionStats.get("stageTimesMicros")).containsField("filter"));
+  }
+
+  @Test
+  public void should_explain_covered_query_not_fetch() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "user" + i + "@mail.com"));
+    }
+
+    // When
+    DBObject explain = collection.find(new BasicDBObject("email", "user3@mail.com"), new BasicDBObject("email", 1).append("_id", 0)).explain();
+
+    // Then
+    DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+    DBObject executionStats = (DBObject) explain.get("executionStats");
+    assertEquals(true, queryPlanner.get("indexOnly"));
+    DBObject projection = (DBObject) queryPlanner.get("winningPlan");
+    assertEquals("PROJECTION_COVERED", projection.get("stage"));
+    assertEquals("IXSCAN", ((DBObject) projection.get("inputStage")).get("stage"));
+    assertEquals(1L, executionStats.get("totalKeysExamined"));
+    assertEquals(0L, executionStats.get("totalDocsExamined"));
+    assertEquals(1L, executionStats.get("nReturned"));
+  }
+
+  @Test
+  public void should_explain_collection_scan_examine_all_the_documents() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+
+    // When
+    DBObject explain = collection.find(new BasicDBObject("a", new BasicDBObject("$gte", 15))).explain();
+
+    // Then
+    DBObject queryPlanner = (DBObject) explain.get("queryPlanner");
+    DBObject executionStats = (DBObject) explain.get("executionStats");
+    assertEquals("COLLSCAN", ((DBObject) queryPlanner.get("winningPlan")).get("stage"));
+    assertEquals(0L, executionStats.get("totalKeysExamined"));
+    assertEquals(20L, executionStats.get("totalDocsExamined"));
+    assertEquals(5L, executionStats.get("nReturned"));
+  }
+
+  @Test
+  public void should_explain_sort_with_limit_keep_only_skip_plus_limit_objects() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 5));
+    }
+
+    // When
+    DBCursor cursor = collection.find(new BasicDBObject("_id", new BasicDBObject("$gte", 2))).sort(new BasicDBObject("a", -1)).skip(1).limit(3);
+    DBObject explain = cursor.explain();
+
+    // Then
+    DBObject sort = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+    assertEquals("SORT", sort.get("stage"));
+    assertEquals(4, sort.get("limitAmount"));
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 9).append("a", 4), new BasicDBObject("_id", 14).append("a", 4),
+        new BasicDBObject("_id", 19).append("a", 4)), cursor.toArray());
+  }
+
+  @Test
+  public void should_explain_command_explain_count_and_writes() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 5));
+    }
+
+    // When
+    CommandResult count = collection.getDB().command(new BasicDBObject("explain",
+        new BasicDBObject("count", collection.getName()).append("query", new BasicDBObject("a", 2))));
+    CommandResult delete = collection.getDB().command(new BasicDBObject("explain",
+        new BasicDBObject("delete", collection.getName()).append("deletes",
+            Util.list(new BasicDBObject("q", new BasicDBObject("a", 3)).append("limit", 1)))));
+
+    // Then
+    count.throwOnError();
+    DBObject countPlan = (DBObject) ((DBObject) count.get("queryPlanner")).get("winningPlan");
+    assertEquals("COUNT", countPlan.get("stage"));
+    assertEquals(4L, ((DBObject) count.get("executionStats")).get("nReturned"));
+    DBObject deletePlan = (DBObject) ((DBObject) delete.get("queryPlanner")).get("winningPlan");
+    assertEquals("DELETE", deletePlan.get("stage"));
+    assertEquals(1L, ((DBObject) delete.get("executionStats")).get("nReturned"));
+    // Nothing is removed.
+    assertEquals(20, collection.count());
+  }
+
+  @Test
+  public void should_count_from_the_keys_when_the_index_covers_the_query() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 5).append("b", i));
+    }
+
+    // When
+    CommandResult count = collection.getDB().command(new BasicDBObject("explain",
+        new BasicDBObject("count", collection.getName()).append("query", new BasicDBObject("a", 2))));
+
+    // Then
+    DBObject countPlan = (DBObject) ((DBObject) count.get("queryPlanner")).get("winningPlan");
+    assertEquals("IXSCAN", ((DBObject) countPlan.get("inputStage")).get("stage"));
+    assertEquals(0L, ((DBObject) count.get("executionStats")).get("totalDocsExamined"));
+    assertEquals(4L, ((DBObject) count.get("executionStats")).get("nReturned"));
+    assertEquals(8, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 3))));
+    assertEquals(2, collection.getCount(new BasicDBObject("a", new BasicDBObject("$gte", 3)), null, 2, 1));
+    assertEquals(1, collection.getCount(new BasicDBObject("a", new BasicDBObject("$gte", 3)), null, 0, 7));
+    // The query uses a field outside of the index : the objects are read.
+    assertEquals(2, collection.count(new BasicDBObject("a", 2).append("b", new BasicDBObject("$gt", 10))));
+  }
+
+  @Test
+  public void should_count_without_query_give_the_size_of_the_collection() {
+    // Given
     DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i));
+    }
+    collection.remove(new BasicDBObject("_id", 3));
 
-    collection.createIndex(new BasicDBObject("date", 1), new BasicDBObject("name", "uniqueDate").append("unique", true));
-
-    // Insert
-    collection.insert(new BasicDBObject("_id", 1).append("date", 1));
-    collection.insert(new BasicDBObject("_id", 2).append("date", 2));
+    // Then
+    assertEquals(19, collection.count());
+    assertEquals(19, collection.getCount(new BasicDBObject()));
+    assertEquals(5, collection.getCount(new BasicDBObject(), null, 5, 0));
+    assertEquals(4, collection.getCount(new BasicDBObject(), null, 0, 15));
+    assertEquals(0, collection.getCount(new BasicDBObject(), null, 0, 30));
+  }
 
-    collection.dropIndex("uniqueDate");
+  @Test
+  public void should_distinct_on_an_indexed_field_give_the_values_from_the_index_in_order() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1).append("b", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 3).append("b", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 1).append("b", 2));
+    collection.insert(new BasicDBObject("_id", 3).append("a", 3).append("b", 3));
+    collection.insert(new BasicDBObject("_id", 4).append("a", "x").append("b", 4));
+    collection.insert(new BasicDBObject("_id", 5).append("a", new BasicDBObject("c", 1)).append("b", 5));
 
-    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("date", 1));
-    collection.insert(new BasicDBObject("_id", 3).append("date", 1));
+    // Then
+    assertEquals(Arrays.asList(1, 3, "x", new BasicDBObject("c", 1)), collection.distinct("a"));
+    assertEquals(Arrays.asList(3, "x"), collection.distinct("a", new BasicDBObject("b", new BasicDBObject("$in", Arrays.asList(1, 3, 4, 6)))));
+    // Not the first field of the index, or a query on another field : the objects are read.
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5), collection.distinct("b"));
+    assertEquals(Arrays.asList(3, 1), collection.distinct("a", new BasicDBObject("_id", new BasicDBObject("$lte", 3))));
+    // An object without a value is not in the index : the objects are read.
+    collection.insert(new BasicDBObject("_id", 6).append("a", null).append("b", 6));
+    assertEquals(Arrays.asList(3, 1, "x", new BasicDBObject("c", 1), null), collection.distinct("a"));
   }
 
-  // Add or remove a field in an object must populate the index.
   @Test
-  public void updateAndAddFieldMustAddIntoIndex() {
+  public void should_intersect_two_single_field_indexes() {
     assumeFalse(fongoRule.isRealMongo());
+    // Given
     DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("b", 1));
+    for (int i = 0; i < 1000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 10).append("b", i % 7));
+    }
+    IndexAbstract indexA = getIndex(collection, "a_1");
+    IndexAbstract indexB = getIndex(collection, "b_1");
+    DBObject query = new BasicDBObject("a", 3).append("b", 4);
 
-    collection.createIndex(new BasicDBObject("date", 1));
+    // When
+    List<DBObject> result = collection.find(query).toArray();
+    DBObject explain = collection.find(query).explain();
 
-    // Insert
-    collection.insert(new BasicDBObject("_id", 2));
+    // Then
+    assertEquals(14, result.size());
+    for (DBObject object : result) {
+      assertEquals(3, object.get("a"));
+      assertEquals(4, object.get("b"));
+    }
+    assertEquals(2, indexA.getLookupCount());
+    assertEquals(2, indexB.getLookupCount());
+    DBObject fetch = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+    DBObject andHash = (DBObject) fetch.get("inputStage");
+    assertEquals("AND_HASH", andHash.get("stage"));
+    assertEquals(2, ((List) andHash.get("inputStages")).size());
+    assertEquals(14L, ((DBObject) explain.get("executionStats")).get("totalDocsExamined"));
+    assertEquals(14, collection.count(query));
+  }
 
-    IndexAbstract index = getIndex(collection, "date_1");
-    assertEquals(0, index.size());
+  @Test
+  public void should_intersection_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("a", 1));
+    withIndex.createIndex(new BasicDBObject("b", -1));
+    withIndex.createIndex(new BasicDBObject("tags", 1));
+    for (int i = 0; i < 500; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("a", i % 10).append("b", i % 7)
+          .append("tags", Util.list("t" + i % 3, "t" + i % 5));
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
 
-    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("date", 1));
-    assertEquals(1, index.size());
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("a", 3).append("b", 4),
+        new BasicDBObject("a", new BasicDBObject("$in", Util.list(1, 2))).append("b", new BasicDBObject("$gte", 5)),
+        new BasicDBObject("a", 5).append("tags", "t2"),
+        new BasicDBObject("a", 1).append("b", 9)
+    );
+
+    for (DBObject query : queries) {
+      // When
+      List<DBObject> indexed = withIndex.find(query).sort(new BasicDBObject("a", 1).append("_id", 1)).toArray();
+      List<DBObject> notIndexed = withoutIndex.find(query).sort(new BasicDBObject("a", 1).append("_id", 1)).toArray();
+
+      // Then
+      assertEquals("query " + query, notIndexed, indexed);
+      assertEquals("query " + query, withoutIndex.count(query), withIndex.count(query));
+    }
   }
 
-  // Add or remove a field in an object must populate the index.
   @Test
-  public void updateAndRemoveFieldMustAddIntoIndex() {
+  public void should_or_use_an_index_by_branch() {
     assumeFalse(fongoRule.isRealMongo());
+    // Given
     DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1));
+    collection.createIndex(new BasicDBObject("login", 1));
+    collection.createIndex(new BasicDBObject("phone", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "e" + i).append("login", "l" + i).append("phone", i).append("name", "n" + i));
+    }
+    IndexAbstract email = getIndex(collection, "email_1");
+    IndexAbstract login = getIndex(collection, "login_1");
+    IndexAbstract phone = getIndex(collection, "phone_1");
+    DBObject query = new BasicDBObject("$or", Util.list(new BasicDBObject("email", "e5"), new BasicDBObject("login", "l7"),
+        new BasicDBObject("phone", 5), new BasicDBObject("phone", 9)));
 
-    collection.createIndex(new BasicDBObject("date", 1));
-
-    // Insert
-    collection.insert(new BasicDBObject("_id", 1).append("date", 1));
-
-    IndexAbstract index = getIndex(collection, "date_1");
-    assertEquals(1, index.size());
+    // When
+    List<DBObject> result = collection.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+    DBObject explain = collection.find(query).explain();
 
-    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$unset", new BasicDBObject("date", 1)));
-    assertEquals(0, index.size());
+    // Then
+    assertEquals(Arrays.asList(5, 7, 9), Arrays.asList(result.get(0).get("_id"), result.get(1).get("_id"), result.get(2).get("_id")));
+    assertEquals(3, result.size());
+    assertEquals(2, email.getLookupCount());
+    assertEquals(2, login.getLookupCount());
+    assertEquals(4, phone.getLookupCount());
+    DBObject or = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+    assertEquals("OR", or.get("stage"));
+    // One plan by shape of branch.
+    assertEquals(3, ((List) or.get("inputStages")).size());
+    assertEquals(3L, ((DBObject) explain.get("executionStats")).get("nReturned"));
   }
 
   @Test
-  public void indexesMustBeUsedForFindWithInFilter() {
+  public void should_or_scan_when_a_branch_has_no_index() {
     assumeFalse(fongoRule.isRealMongo());
+    // Given
     DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "e" + i).append("name", "n" + i));
+    }
+    IndexAbstract email = getIndex(collection, "email_1");
+    DBObject query = new BasicDBObject("$or", Util.list(new BasicDBObject("email", "e5"), new BasicDBObject("name", "n7")));
 
-    collection.createIndex(new BasicDBObject("date", 1));
+    // When
+    List<DBObject> result = collection.find(query).toArray();
 
-    for (int i = 0; i < 20; i++) {
-      collection.insert(new BasicDBObject("date", i % 10).append("_id", i));
+    // Then
+    assertEquals(2, result.size());
+    assertEquals(0, email.getLookupCount());
+    assertEquals("COLLSCAN", ((DBObject) ((DBObject) collection.find(query).explain().get("queryPlanner")).get("winningPlan")).get("stage"));
+  }
+
+  @Test
+  public void should_or_with_indexes_return_same_results_than_without_index() {
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("a", 1));
+    withIndex.createIndex(new BasicDBObject("b", -1).append("c", 1));
+    withIndex.createIndex(new BasicDBObject("tags", 1));
+    for (int i = 0; i < 200; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("a", i % 10).append("b", i % 7).append("c", i % 3)
+          .append("tags", Util.list("t" + i % 4, "t" + i % 6));
+      withIndex.insert(object);
+      withoutIndex.insert(object);
     }
 
-    IndexAbstract indexDate = getIndex(collection, "date_1");
+    List<DBObject> queries = Arrays.<DBObject>asList(
+        new BasicDBObject("$or", Util.list(new BasicDBObject("a", 3), new BasicDBObject("b", 4))),
+        new BasicDBObject("$or", Util.list(new BasicDBObject("a", 3), new BasicDBObject("a", 3).append("c", 1))),
+        new BasicDBObject("$or", Util.list(new BasicDBObject("a", new BasicDBObject("$gt", 7)), new BasicDBObject("b", 2).append("c", 0), new BasicDBObject("tags", "t5"))),
+        new BasicDBObject("c", 2).append("$or", Util.list(new BasicDBObject("a", 1), new BasicDBObject("tags", "t3"))),
+        new BasicDBObject("$or", Util.list(new BasicDBObject("$or", Util.list(new BasicDBObject("a", 1), new BasicDBObject("a", 2))), new BasicDBObject("b", 6)))
+    );
 
-    assertEquals(0, indexDate.getLookupCount());
+    for (DBObject query : queries) {
+      // When
+      List<DBObject> indexed = withIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+      List<DBObject> notIndexed = withoutIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
 
-    List<DBObject> objects = collection.find(new BasicDBObject("date", new BasicDBObject("$in", Util.list(0, 1, 2)))).toArray();
-    // No index used.
-    assertEquals(1, indexDate.getLookupCount());
-    assertEquals(6, objects.size());
+      // Then
+      assertEquals("query " + query, notIndexed, indexed);
+      assertEquals("query " + query, withoutIndex.count(query), withIndex.count(query));
+    }
   }
 
   @Test
@@ -811,6 +1668,388 @@ public class FongoIndexTest {
     ), cursor.toArray());
   }
 
+  @Test
+  public void should_partial_index_only_hold_the_objects_matching_its_filter() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1), new BasicDBObject("name", "email_active")
+        .append("partialFilterExpression", new BasicDBObject("status", "active").append("age", new BasicDBObject("$gte", 18))));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "e" + i % 10).append("status", i % 4 == 0 ? "active" : "closed").append("age", i));
+    }
+    IndexAbstract index = getIndex(collection, "email_active");
+
+    // When
+    collection.update(new BasicDBObject("_id", 4), new BasicDBObject("$set", new BasicDBObject("age", 40)));
+    collection.update(new BasicDBObject("_id", 20), new BasicDBObject("$set", new BasicDBObject("status", "closed")));
+    collection.remove(new BasicDBObject("_id", 21));
+    collection.remove(new BasicDBObject("_id", 24));
+
+    // Then
+    // 20, 24, 28... 96 and 4, without 20 and 24.
+    assertEquals(19, index.size());
+    assertEquals(new BasicDBObject("status", "active").append("age", new BasicDBObject("$gte", 18)), index.getPartialFilterExpression());
+    assertEquals(new BasicDBObject("status", "active").append("age", new BasicDBObject("$gte", 18)),
+        collection.getIndexInfo().get(1).get("partialFilterExpression"));
+  }
+
+  @Test
+  public void should_partial_index_only_be_used_when_the_query_implies_its_filter() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection withIndex = fongoRule.newCollection();
+    DBCollection withoutIndex = fongoRule.newCollection();
+    withIndex.createIndex(new BasicDBObject("email", 1), new BasicDBObject("name", "email_active")
+        .append("partialFilterExpression", new BasicDBObject("status", "active").append("age", new BasicDBObject("$gt", 18))));
+    for (int i = 0; i < 100; i++) {
+      DBObject object = new BasicDBObject("_id", i).append("email", "e" + i % 10).append("status", i % 4 == 0 ? "active" : "closed").append("age", i);
+      withIndex.insert(object);
+      withoutIndex.insert(object);
+    }
+    IndexAbstract index = getIndex(withIndex, "email_active");
+
+    List<DBObject> implying = Arrays.<DBObject>asList(
+        new BasicDBObject("email", "e4").append("status", "active").append("age", new BasicDBObject("$gte", 30)),
+        new BasicDBObject("email", "e4").append("status", "active").append("age", 20),
+        new BasicDBObject("email", "e4").append("$and", Util.list(new BasicDBObject("status", "active"), new BasicDBObject("age", new BasicDBObject("$gt", 18).append("$lt", 50)))),
+        new BasicDBObject("email", "e4").append("status", new BasicDBObject("$eq", "active")).append("age", new BasicDBObject("$in", Util.list(20, 40)))
+    );
+    List<DBObject> notImplying = Arrays.<DBObject>asList(
+        new BasicDBObject("email", "e4"),
+        new BasicDBObject("email", "e4").append("status", "active"),
+        new BasicDBObject("email", "e4").append("status", "active").append("age", new BasicDBObject("$gte", 18)),
+        new BasicDBObject("email", "e4").append("status", "active").append("age", 18),
+        new BasicDBObject("email", "e4").append("status", "active").append("age", "20"),
+        new BasicDBObject("email", "e4").append("status", "closed").append("age", 20)
+    );
+
+    for (DBObject query : implying) {
+      // When
+      long lookups = index.getLookupCount();
+      List<DBObject> result = withIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+
+      // Then
+      assertTrue("query " + query, index.hasAllObjectsFor(query));
+      assertEquals("query " + query, lookups + 1, index.getLookupCount());
+      assertEquals("query " + query, withoutIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray(), result);
+    }
+    for (DBObject query : notImplying) {
+      // When
+      List<DBObject> result = withIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray();
+
+      // Then
+      assertFalse("query " + query, index.hasAllObjectsFor(query));
+      assertEquals("query " + query, withoutIndex.find(query).sort(new BasicDBObject("_id", 1)).toArray(), result);
+    }
+  }
+
+  @Test
+  public void should_cached_plan_with_partial_index_not_be_used_when_the_values_do_not_imply_its_filter() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1), new BasicDBObject("partialFilterExpression", new BasicDBObject("b", new BasicDBObject("$gt", 5))));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", 1).append("b", i));
+    }
+    DBObject implying = new BasicDBObject("a", 1).append("b", new BasicDBObject("$gte", 7));
+    DBObject notImplying = new BasicDBObject("a", 1).append("b", new BasicDBObject("$gte", 2));
+    DBObject union = new BasicDBObject("$or", Util.list(implying, notImplying));
+
+    // When
+    List<DBObject> first = collection.find(implying).sort(new BasicDBObject("_id", 1)).toArray();
+    long firstCount = collection.count(implying);
+    List<DBObject> second = collection.find(notImplying).sort(new BasicDBObject("_id", 1)).toArray();
+    long secondCount = collection.count(notImplying);
+    List<DBObject> third = collection.find(union).sort(new BasicDBObject("_id", 1)).toArray();
+
+    // Then
+    assertEquals(3, first.size());
+    assertEquals(7, first.get(0).get("_id"));
+    assertEquals(3L, firstCount);
+    assertEquals(8, second.size());
+    assertEquals(2, second.get(0).get("_id"));
+    assertEquals(8L, secondCount);
+    assertEquals(second, third);
+  }
+
+  @Test
+  public void should_partial_unique_index_only_check_the_objects_matching_its_filter() {
+    // Given
+    MongoCollection<Document> collection = fongoRule.newMongoCollection();
+    collection.createIndex(new Document("email", 1), new IndexOptions().unique(true)
+        .partialFilterExpression(new Document("status", "active")));
+    collection.insertOne(new Document("_id", 1).append("email", "a@mail.com").append("status", "active"));
+    collection.insertOne(new Document("_id", 2).append("email", "a@mail.com").append("status", "closed"));
+
+    // When
+    try {
+      collection.insertOne(new Document("_id", 3).append("email", "a@mail.com").append("status", "active"));
+      fail("duplicate key expected");
+    } catch (MongoException e) {
+      // Then
+      assertEquals(11000, e.getCode());
+    }
+    assertEquals(2, collection.count());
+  }
+
+  @Test
+  public void should_partial_index_not_be_sparse() {
+    ExpectedMongoException.expectCode(exception, 67);
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1), new BasicDBObject("sparse", true)
+        .append("partialFilterExpression", new BasicDBObject("status", "active")));
+  }
+
+  @Test
+  public void should_write_refused_by_a_unique_index_leave_the_other_indexes_unchanged() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("b", 1), new BasicDBObject("unique", true));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 1).append("b", 1));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 2).append("b", 2));
+
+    // When
+    try {
+      collection.insert(new BasicDBObject("_id", 3).append("a", 3).append("b", 1));
+      fail("need MongoException on duplicate key.");
+    } catch (MongoException me) {
+      assertEquals(11000, me.getCode());
+    }
+    try {
+      collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("a", 9).append("b", 2)));
+      fail("need MongoException on duplicate key.");
+    } catch (MongoException me) {
+      assertEquals(11000, me.getCode());
+    }
+
+    // Then
+    assertEquals(Arrays.asList(1), collection.distinct("_id", new BasicDBObject("a", 1)));
+    assertEquals(0, collection.count(new BasicDBObject("a", new BasicDBObject("$in", Arrays.asList(3, 9)))));
+    assertEquals(2, collection.find().toArray().size());
+    if (!fongoRule.isRealMongo()) {
+      assertEquals(2, getIndex(collection, "a_1").size());
+      assertEquals(2, getIndex(collection, "b_1").size());
+      assertEquals(2, getIndex(collection, "_id_").size());
+    }
+  }
+
+  @Test
+  public void should_write_refused_by_a_hashed_index_leave_the_other_indexes_unchanged() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("tags", "hashed"));
+
+    // When
+    try {
+      collection.insert(new BasicDBObject("_id", 1).append("a", 1).append("tags", Arrays.asList("x", "y")));
+      fail("need MongoException on array value.");
+    } catch (MongoException me) {
+      assertEquals(16766, me.getCode());
+    }
+
+    // Then
+    assertEquals(0, collection.count(new BasicDBObject("a", 1)));
+    if (!fongoRule.isRealMongo()) {
+      assertEquals(0, getIndex(collection, "a_1").size());
+      assertEquals(0, getIndex(collection, "_id_").size());
+    }
+  }
+
+  @Test
+  public void should_index_built_on_a_populated_collection_be_the_same_than_an_index_maintained_by_inserts() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection built = fongoRule.newCollection();
+    DBCollection maintained = fongoRule.newCollection();
+    maintained.createIndex(new BasicDBObject("a", 1).append("b", -1));
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < 20000; i++) {
+      objects.add(new BasicDBObject("_id", i).append("a", i % 7 == 0 ? Arrays.asList(i % 100, "x") : i % 100).append("b", i % 13));
+    }
+    objects.add(new BasicDBObject("_id", 20000));
+    built.insert(objects);
+    maintained.insert(objects);
+
+    // When
+    built.createIndex(new BasicDBObject("a", 1).append("b", -1));
+
+    // Then
+    IndexAbstract index = getIndex(built, "a_1_b_-1");
+    assertEquals(getIndex(maintained, "a_1_b_-1").size(), index.size());
+    assertTrue(index.isMultiKey());
+    assertEquals(getIndex(maintained, "a_1_b_-1").values(), index.values());
+    DBObject query = new BasicDBObject("a", new BasicDBObject("$gte", 42).append("$lt", 45));
+    assertEquals(maintained.find(query).toArray(), built.find(query).toArray());
+    assertEquals(1L, built.count(new BasicDBObject("a", null)));
+  }
+
+  @Test
+  public void should_unique_index_built_on_a_populated_collection_find_duplicates() {
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 1000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i == 999 ? 500 : i));
+    }
+
+    // When
+    try {
+      collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("unique", true));
+      fail("need MongoException on duplicate key.");
+    } catch (MongoException me) {
+      // Then
+      assertEquals(11000, me.getCode());
+    }
+    assertEquals(1, collection.getIndexInfo().size());
+  }
+
+  @Test
+  public void should_ttl_pass_remove_expired_documents() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("lastSeen", 1), new BasicDBObject("expireAfterSeconds", 60));
+    collection.createIndex(new BasicDBObject("createdAt", 1).append("n", 1), new BasicDBObject("expireAfterSeconds", 60));
+    final long now = System.currentTimeMillis();
+    collection.insert(new BasicDBObject("_id", 1).append("lastSeen", new Date(now - 120000L)));
+    collection.insert(new BasicDBObject("_id", 2).append("lastSeen", new Date(now)));
+    collection.insert(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 4).append("lastSeen", "yesterday"));
+    collection.insert(new BasicDBObject("_id", 5).append("lastSeen", Arrays.asList(new Date(now), new Date(now - 120000L))));
+    collection.insert(new BasicDBObject("_id", 6).append("createdAt", new Date(now - 120000L)));
+
+    // When
+    int removed = fongoRule.getFongo().runTtlPass();
+
+    // Then
+    assertEquals(2, removed);
+    assertEquals(Arrays.asList(2, 3, 4, 6), collection.distinct("_id"));
+    assertEquals(60, getIndex(collection, "lastSeen_1").getExpireAfterSeconds().intValue());
+    assertNull("a compound index is not a TTL index", getIndex(collection, "createdAt_1_n_1").getExpireAfterSeconds());
+  }
+
+  @Test
+  public void should_ttl_pass_remove_by_batches() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("expireAt", -1), new BasicDBObject("expireAfterSeconds", 0));
+    final long now = System.currentTimeMillis();
+    for (int i = 0; i < Fongo.TTL_BATCH_SIZE * 2 + 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("expireAt", new Date(now - i * 1000L)));
+    }
+
+    // When
+    int removed = fongoRule.getFongo().runTtlPass(new Date(now - 5000L));
+
+    // Then
+    assertEquals(Fongo.TTL_BATCH_SIZE * 2 + 5, removed);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), collection.distinct("_id"));
+  }
+
+  @Test
+  public void should_ttl_monitor_remove_expired_documents_in_background() throws InterruptedException {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    fongoRule.getFongo().setTtlMonitorPeriod(10, TimeUnit.MILLISECONDS);
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("lastSeen", 1), new BasicDBObject("expireAfterSeconds", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("lastSeen", new Date(System.currentTimeMillis() - 2000L)));
+    collection.insert(new BasicDBObject("_id", 2).append("lastSeen", new Date(System.currentTimeMillis() + 60000L)));
+
+    // When
+    for (int i = 0; i < 500 && collection.count() > 1; i++) {
+      Thread.sleep(10);
+    }
+
+    // Then
+    assertEquals(Arrays.asList(2), collection.distinct("_id"));
+  }
+
+  @Test
+  public void should_ttl_index_have_a_numeric_expiry() {
+    ExpectedMongoException.expectCode(exception, 67);
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("lastSeen", 1), new BasicDBObject("expireAfterSeconds", "60"));
+  }
+
+  @Test
+  public void should_hashed_index_answer_equalities_with_one_lookup() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("userId", "hashed"));
+    for (int i = 0; i < 1000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("userId", "user" + i).append("n", i % 3));
+    }
+    collection.insert(new BasicDBObject("_id", 1000).append("userId", 12L));
+    collection.insert(new BasicDBObject("_id", 1001).append("userId", 12.0D));
+    collection.insert(new BasicDBObject("_id", 1002).append("userId", 12.5D));
+    collection.insert(new BasicDBObject("_id", 1003).append("userId", new BasicDBObject("id", 12)));
+    collection.remove(new BasicDBObject("_id", 5));
+    collection.update(new BasicDBObject("_id", 6), new BasicDBObject("$set", new BasicDBObject("userId", "user6b")));
+    IndexAbstract index = getIndex(collection, "userId_hashed");
+
+    // When
+    DBObject explain = collection.find(new BasicDBObject("userId", "user42")).explain();
+
+    // Then
+    assertEquals(1L, ((DBObject) explain.get("executionStats")).get("totalKeysExamined"));
+    assertEquals(1L, ((DBObject) explain.get("executionStats")).get("totalDocsExamined"));
+    assertEquals(42, collection.findOne(new BasicDBObject("userId", "user42")).get("_id"));
+    assertNull(collection.findOne(new BasicDBObject("userId", "user5")));
+    assertNull(collection.findOne(new BasicDBObject("userId", "user6")));
+    assertEquals(6, collection.findOne(new BasicDBObject("userId", "user6b")).get("_id"));
+    // 12, 12L and 12.0 are equal, 12.5 has the same hash but is filtered.
+    assertEquals(2, collection.find(new BasicDBObject("userId", 12)).count());
+    assertEquals(1003, collection.findOne(new BasicDBObject("userId", new BasicDBObject("id", 12))).get("_id"));
+    assertEquals(2, collection.find(new BasicDBObject("userId", new BasicDBObject("$in", Util.list("user1", "user2", "user1", "nobody")))
+        .append("n", new BasicDBObject("$gte", 0))).count());
+    assertEquals(1003, index.size());
+  }
+
+  @Test
+  public void should_hashed_index_not_answer_ranges() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", "hashed"));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+    IndexAbstract index = getIndex(collection, "a_hashed");
+
+    // When
+    List<DBObject> result = collection.find(new BasicDBObject("a", new BasicDBObject("$gte", 7))).toArray();
+
+    // Then
+    assertEquals(3, result.size());
+    assertEquals(0, index.getLookupCount());
+  }
+
+  @Test
+  public void should_sparse_hashed_index_skip_objects_without_the_field() {
+    assumeFalse(fongoRule.isRealMongo());
+    // Given
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a.b", "hashed"), new BasicDBObject("sparse", true));
+    collection.insert(new BasicDBObject("_id", 1).append("a", new BasicDBObject("b", 1)));
+    collection.insert(new BasicDBObject("_id", 2).append("a", new BasicDBObject("c", 1)));
+    collection.insert(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 4).append("a", new BasicDBObject("b", "1")));
+    IndexAbstract index = getIndex(collection, "a.b_hashed");
+
+    // When
+    DBObject result = collection.findOne(new BasicDBObject("a.b", 1));
+
+    // Then
+    assertEquals(1, result.get("_id"));
+    assertEquals(2, index.size());
+    assertEquals(1, index.getLookupCount());
+  }
+
   @Test
   public void should_not_handled_hashed_index_on_array_before() throws Exception {
     ExpectedMongoException.expectCode(exception, 16766, MongoCommandException.class);
@@ -71,6 +71,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FongoTest {
 
@@ -622,6 +623,70 @@ public class FongoTest {
     assertEquals(Arrays.asList(), cursor.toArray());
   }
 
+  @Test
+  public void testFindIterateTheResultsBatchByBatch() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 5; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+
+    DBCursor cursor = collection.find(new BasicDBObject("a", new BasicDBObject("$ne", 1))).batchSize(2);
+    assertEquals(new BasicDBObject("_id", 0).append("a", 0), cursor.next());
+    // The next batches of a collection scan are produced from the collection as it is when they are asked for,
+    // without the objects inserted after the cursor was opened.
+    collection.remove(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 5).append("a", 5));
+
+    List<DBObject> results = new ArrayList<DBObject>();
+    while (cursor.hasNext()) {
+      results.add(cursor.next());
+    }
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 2).append("a", 2), new BasicDBObject("_id", 4).append("a", 4)), results);
+  }
+
+  @Test
+  public void testToArrayAfterNextKeepsTheResultsAlreadyGiven() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 5; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+
+    DBCursor cursor = collection.find(new BasicDBObject("a", new BasicDBObject("$ne", 1))).batchSize(2);
+    DBObject first = cursor.next();
+    DBObject second = cursor.next();
+    collection.update(new BasicDBObject("_id", 0), new BasicDBObject("$set", new BasicDBObject("a", 10)));
+    collection.remove(new BasicDBObject("_id", 3));
+    collection.insert(new BasicDBObject("_id", 5).append("a", 5));
+
+    List<DBObject> array = cursor.toArray();
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 0).append("a", 0), new BasicDBObject("_id", 2).append("a", 2),
+        new BasicDBObject("_id", 4).append("a", 4)), array);
+    assertSame(first, array.get(0));
+    assertSame(second, array.get(1));
+    assertEquals(3, cursor.length());
+    // The iteration goes on after the results already given.
+    assertSame(array.get(2), cursor.next());
+    assertFalse(cursor.hasNext());
+  }
+
+  @Test
+  public void testFindTerminatesWhenInsertingWhileIterating() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 150; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+
+    DBCursor cursor = collection.find(new BasicDBObject("a", new BasicDBObject("$gte", 0)));
+    int count = 0;
+    while (cursor.hasNext() && count <= 1000) {
+      DBObject object = cursor.next();
+      collection.insert(new BasicDBObject("_id", 1000 + count).append("a", object.get("a")));
+      count++;
+    }
+    assertEquals(150, count);
+    assertEquals(300, collection.count());
+  }
+
   @Test
   public void testFindWithWhere() {
     DBCollection collection = newCollection();
@@ -756,6 +821,36 @@ public class FongoTest {
         new BasicDBObject("_id", 3).append("a", 1), object);
   }
 
+  @Test
+  public void testSortWithSkipLimitGiveTheSameObjectsThanTheFullSort() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 50; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 7).append("b", (i * 13) % 50));
+    }
+    DBObject query = new BasicDBObject("b", new BasicDBObject("$gte", 5));
+    DBObject sort = new BasicDBObject("a", -1);
+    List<DBObject> all = collection.find(query).sort(sort).toArray();
+
+    for (int skip : new int[]{0, 3, 40}) {
+      for (int limit : new int[]{1, 5, 20}) {
+        List<DBObject> expected = all.subList(Math.min(skip, all.size()), Math.min(skip + limit, all.size()));
+        assertEquals("skip " + skip + " limit " + limit, expected, collection.find(query).sort(sort).skip(skip).limit(limit).toArray());
+      }
+    }
+  }
+
+  @Test
+  public void testSortFindAndModifyTakeTheFirstMatchingObject() {
+    DBCollection collection = newCollection();
+    collection.insert(new BasicDBObject("a", 2).append("b", 1).append("_id", 1));
+    collection.insert(new BasicDBObject("a", 1).append("b", 0).append("_id", 2));
+    collection.insert(new BasicDBObject("a", 1).append("b", 1).append("_id", 3));
+    collection.insert(new BasicDBObject("a", 1).append("b", 1).append("_id", 4));
+
+    DBObject object = collection.findAndModify(new BasicDBObject("b", 1), new BasicDBObject("a", 1), new BasicDBObject("$set", new BasicDBObject("c", 1)));
+    assertEquals(new BasicDBObject("a", 1).append("b", 1).append("_id", 3), object);
+  }
+
   @Test
   public void testCommandFindAndModify() {
     // Given
@@ -1609,6 +1704,141 @@ public class FongoTest {
     }
   }
 
+  @Test
+  public void should_limit_the_number_of_documents_per_collection() {
+    Fongo fongo = newFongo();
+    fongo.setMaxDocumentsPerCollection(2);
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.insert(new BasicDBObject("_id", 1));
+    collection.insert(new BasicDBObject("_id", 2));
+
+    try {
+      collection.insert(new BasicDBObject("_id", 3));
+      fail("should have thrown");
+    } catch (FongoException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("2 items per collection max"));
+    }
+    assertEquals(2, collection.count());
+
+    collection.remove(new BasicDBObject("_id", 1));
+    collection.insert(new BasicDBObject("_id", 3));
+    assertEquals(2, collection.count());
+  }
+
+  @Test
+  public void should_not_limit_the_number_of_documents_when_limit_is_zero() {
+    Fongo fongo = newFongo();
+    fongo.setMaxDocumentsPerCollection(0);
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for (int i = 0; i < Fongo.DEFAULT_MAX_DOCUMENTS_PER_COLLECTION + 10; i++) {
+      documents.add(new BasicDBObject("_id", i));
+    }
+    collection.insert(documents);
+
+    assertEquals(Fongo.DEFAULT_MAX_DOCUMENTS_PER_COLLECTION + 10, collection.count());
+  }
+
+  @Test
+  public void should_limit_the_size_of_a_collection() {
+    Fongo fongo = newFongo();
+    // Each document is 30 bytes in BSON.
+    fongo.setMaxBytesPerCollection(70);
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    collection.insert(new BasicDBObject("_id", 1).append("name", "fongo"));
+    collection.insert(new BasicDBObject("_id", 2).append("name", "fongo"));
+
+    try {
+      collection.insert(new BasicDBObject("_id", 3).append("name", "fongo"));
+      fail("should have thrown");
+    } catch (FongoException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("70 bytes per collection max"));
+    }
+    assertEquals(2, collection.count());
+  }
+
+  @Test
+  public void should_limit_the_size_of_a_collection_on_updates() {
+    Fongo fongo = newFongo();
+    DBCollection collection = fongo.getDB("db").getCollection("coll");
+    // Each document is 30 bytes in BSON, the limit is set once they are inserted.
+    collection.insert(new BasicDBObject("_id", 1).append("name", "fongo"));
+    collection.insert(new BasicDBObject("_id", 2).append("name", "fongo"));
+    fongo.setMaxBytesPerCollection(70);
+
+    try {
+      collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("name", "a much longer name")));
+      fail("should have thrown");
+    } catch (FongoException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("70 bytes per collection max"));
+    }
+    assertEquals(new BasicDBObject("_id", 1).append("name", "fongo"), collection.findOne(new BasicDBObject("_id", 1)));
+
+    // Updates which don't make the collection grow are accepted.
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("name", "mongo")));
+    collection.update(new BasicDBObject("_id", 2), new BasicDBObject("$unset", new BasicDBObject("name", 1)));
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("name", "longer")));
+    assertEquals(new BasicDBObject("_id", 1).append("name", "longer"), collection.findOne(new BasicDBObject("_id", 1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_not_accept_a_negative_limit() {
+    newFongo().setMaxDocumentsPerCollection(-1);
+  }
+
+  @Test(timeout = 16000)
+  public void testMultiThreadReadWhileWriting() throws Exception {
+    final int size = 500;
+    final DBCollection col = new Fongo("InMemoryMongo").getDB("myDB").createCollection("myCollection", new BasicDBObject());
+    col.createIndex(new BasicDBObject("n", 1));
+    final AtomicInteger errors = new AtomicInteger();
+    final CountDownLatch lockDone = new CountDownLatch(4);
+
+    final Thread writer = new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < size; i++) {
+            col.insert(new BasicDBObject("_id", i).append("n", i), WriteConcern.ACKNOWLEDGED);
+            col.update(new BasicDBObject("_id", i), new BasicDBObject("$set", new BasicDBObject("done", true)));
+          }
+        } catch (RuntimeException e) {
+          errors.incrementAndGet();
+        } finally {
+          lockDone.countDown();
+        }
+      }
+    };
+    writer.start();
+    for (int t = 0; t < 3; t++) {
+      new Thread() {
+        public void run() {
+          try {
+            while (writer.isAlive()) {
+              // A document is never seen half inserted, and a find never sees more documents than a later count.
+              final List<DBObject> found = col.find(new BasicDBObject("n", new BasicDBObject("$gte", 0))).toArray();
+              if (found.size() > col.count()) {
+                errors.incrementAndGet();
+              }
+              for (DBObject object : found) {
+                if (!object.get("_id").equals(object.get("n"))) {
+                  errors.incrementAndGet();
+                }
+              }
+            }
+          } catch (RuntimeException e) {
+            errors.incrementAndGet();
+          } finally {
+            lockDone.countDown();
+          }
+        }
+      }.start();
+    }
+
+    assertTrue("Too long :-(", lockDone.await(15, TimeUnit.SECONDS));
+    assertEquals(0, errors.get());
+    assertEquals(size, col.getCount(new BasicDBObject("done", true)));
+  }
+
   // Don't know why, but request by _id only return document event if limit is set
   @Test
   public void testFindLimit0ById() throws Exception {
@@ -4076,6 +4306,28 @@ public class FongoTest {
     Assertions.assertThat(dbc.toArray()).isEmpty();
   }
 
+  @Test
+  public void should_find_without_sort_keep_natural_order_after_update() {
+    // Given
+    DBCollection collection = newCollection();
+    collection.insert(new BasicDBObject("_id", 3).append("a", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("a", 2));
+    collection.insert(new BasicDBObject("_id", 2).append("a", 3));
+
+    // When
+    collection.update(new BasicDBObject("_id", 3), new BasicDBObject("$set", new BasicDBObject("a", 4)));
+    collection.update(new BasicDBObject("a", 2), new BasicDBObject("b", 5));
+    collection.remove(new BasicDBObject("_id", 2));
+    collection.insert(new BasicDBObject("_id", 0));
+
+    // Then
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("_id", 3).append("a", 4),
+        new BasicDBObject("_id", 1).append("b", 5),
+        new BasicDBObject("_id", 0)), collection.find().toArray());
+    assertEquals(new BasicDBObject("_id", 1).append("b", 5), collection.findOne(new BasicDBObject("_id", new BasicDBObject("$lt", 3))));
+  }
+
   static class Seq {
     Object[] data;
 
@@ -0,0 +1,64 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CursorRegistryTest {
+
+  @Test
+  public void should_give_the_results_batch_by_batch_until_exhausted() {
+    CursorRegistry registry = new CursorRegistry(0L);
+    CursorRegistry.Batches batches = CursorRegistry.batchesOf(objects(5));
+    assertEquals(2, CursorRegistry.nextBatch(batches, 2).size());
+
+    long id = registry.register("db.coll", batches, true);
+
+    assertTrue(id != 0L);
+    assertNull(registry.getMore(id, "db.other", 2));
+    assertEquals(objects(5).subList(2, 4), registry.getMore(id, "db.coll", 2));
+    assertTrue(registry.isAlive(id));
+    assertEquals(objects(5).subList(4, 5), registry.getMore(id, "db.coll", 2));
+    assertFalse(registry.isAlive(id));
+    assertNull(registry.getMore(id, "db.coll", 2));
+  }
+
+  @Test
+  public void should_not_register_exhausted_results() {
+    CursorRegistry registry = new CursorRegistry(0L);
+    CursorRegistry.Batches batches = CursorRegistry.batchesOf(objects(2));
+    CursorRegistry.nextBatch(batches, 0);
+
+    assertEquals(0L, registry.register("db.coll", batches, true));
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void should_reap_only_the_idle_cursors_which_can_time_out() {
+    CursorRegistry registry = new CursorRegistry(1000L);
+    long idle = registry.register("db.coll", CursorRegistry.batchesOf(objects(2)), true);
+    long noTimeout = registry.register("db.coll", CursorRegistry.batchesOf(objects(2)), false);
+
+    assertEquals(0, registry.reap(System.currentTimeMillis()));
+    assertEquals(1, registry.reap(System.currentTimeMillis() + 1000L));
+    assertFalse(registry.isAlive(idle));
+    assertTrue(registry.isAlive(noTimeout));
+    assertTrue(registry.kill(noTimeout));
+    assertFalse(registry.kill(noTimeout));
+  }
+
+  private static List<DBObject> objects(int count) {
+    List<DBObject> objects = new ArrayList<DBObject>();
+    for (int i = 0; i < count; i++) {
+      objects.add(new BasicDBObject("_id", i));
+    }
+    return objects;
+  }
+}
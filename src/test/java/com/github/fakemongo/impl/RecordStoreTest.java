@@ -0,0 +1,145 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordStoreTest {
+
+  @Test
+  public void should_keep_insertion_order() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 2);
+    DBObject second = new BasicDBObject("_id", 1);
+    DBObject third = new BasicDBObject("_id", 3);
+    store.add(first);
+    store.add(second);
+    store.add(third);
+
+    assertEquals(Arrays.asList(first, second, third), new ArrayList<DBObject>(store.values()));
+    assertEquals(3, store.size());
+  }
+
+  @Test
+  public void should_replace_keep_the_place_of_the_old_object() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1);
+    DBObject second = new BasicDBObject("_id", 2);
+    DBObject third = new BasicDBObject("_id", 3);
+    store.add(first);
+    store.add(second);
+    store.add(third);
+
+    DBObject updated = new BasicDBObject("_id", 1).append("a", 1);
+    store.replace(first, updated);
+
+    assertEquals(Arrays.asList(updated, second, third), new ArrayList<DBObject>(store.values()));
+    assertFalse(store.contains(first));
+    assertTrue(store.contains(updated));
+  }
+
+  @Test
+  public void should_resume_a_scan_after_the_last_sequence_seen() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1);
+    DBObject second = new BasicDBObject("_id", 2);
+    DBObject third = new BasicDBObject("_id", 3);
+    store.add(first);
+    store.add(second);
+    store.add(third);
+    long seen = store.valuesBetween(-1L, store.lastSequence()).firstKey();
+    long last = store.lastSequence();
+
+    store.remove(second);
+    DBObject fourth = new BasicDBObject("_id", 4);
+    store.add(fourth);
+
+    assertEquals(Arrays.asList(third), new ArrayList<DBObject>(store.valuesBetween(seen, last).values()));
+    assertEquals(Arrays.asList(third, fourth), new ArrayList<DBObject>(store.valuesBetween(seen, store.lastSequence()).values()));
+    assertEquals(Arrays.asList(first, third, fourth), new ArrayList<DBObject>(store.valuesBetween(-1L, store.lastSequence()).values()));
+    assertTrue(store.valuesBetween(last, last).isEmpty());
+  }
+
+  @Test
+  public void should_find_objects_by_identity() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1);
+    store.add(first);
+
+    assertFalse(store.contains(new BasicDBObject("_id", 1)));
+    assertFalse(store.remove(new BasicDBObject("_id", 1)));
+    assertTrue(store.remove(first));
+    assertEquals(0, store.size());
+    assertTrue(store.values().isEmpty());
+  }
+
+  @Test
+  public void should_replace_unknown_object_add_at_the_end() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1);
+    DBObject second = new BasicDBObject("_id", 2);
+    store.add(first);
+
+    store.replace(new BasicDBObject("_id", 2), second);
+
+    assertEquals(Arrays.asList(first, second), new ArrayList<DBObject>(store.values()));
+  }
+
+  @Test
+  public void should_keep_the_size_of_the_documents() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1).append("a", "abc");
+    DBObject second = new BasicDBObject("_id", 2).append("b", Arrays.asList(1, 2L, 3.0));
+    store.add(first);
+    store.add(second);
+    assertEquals(25 + encodedSize(second), store.bytes());
+
+    DBObject updated = new BasicDBObject("_id", 1);
+    store.replace(first, updated);
+    assertEquals(encodedSize(updated) + encodedSize(second), store.bytes());
+
+    store.remove(second);
+    assertEquals(encodedSize(updated), store.bytes());
+    store.clear();
+    assertEquals(0, store.bytes());
+  }
+
+  @Test
+  public void should_use_the_size_given_on_write() {
+    RecordStore store = new RecordStore();
+    DBObject first = new BasicDBObject("_id", 1).append("a", "abc");
+    DBObject second = new BasicDBObject("_id", 2);
+    store.add(first, 100L);
+    store.add(second);
+    assertEquals(100L, store.bytesOf(first));
+    assertEquals(encodedSize(second), store.bytesOf(second));
+    assertEquals(100L + encodedSize(second), store.bytes());
+
+    DBObject updated = new BasicDBObject("_id", 1);
+    store.replace(first, updated, 10L);
+    assertEquals(10L + encodedSize(second), store.bytes());
+    assertEquals(0L, store.bytesOf(first));
+  }
+
+  @Test
+  public void should_estimate_size_like_bson() {
+    DBObject object = new BasicDBObject("_id", new ObjectId())
+        .append("name", "fongo")
+        .append("embedded", new BasicDBObject("flag", true).append("long", 12L))
+        .append("list", Arrays.asList("a", new BasicDBObject("b", 1)));
+
+    assertEquals(encodedSize(object), RecordStore.estimateSize(object));
+  }
+
+  private static long encodedSize(DBObject object) {
+    return new BasicBSONEncoder().encode(object).length;
+  }
+}
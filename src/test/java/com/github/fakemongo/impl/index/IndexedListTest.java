@@ -4,6 +4,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -176,4 +177,73 @@ public class IndexedListTest {
         assertFalse(list.contains(firstElement));
         assertFalse(list.contains(secondElement));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRemoveKeepOrder() throws Exception {
+        List<Integer> innerList = new ArrayList<Integer>();
+        innerList.add(0);
+        IndexedList<Integer> list = new IndexedList<Integer>(innerList);
+        for (int i = 1; i < 100; i++) {
+            list.add(i);
+        }
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                list.remove(i);
+            } else {
+                expected.add(i);
+            }
+        }
+
+        assertEquals(expected, new ArrayList<Integer>(list.getElements()));
+        assertEquals(expected.size(), list.size());
+
+        // Compaction.
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 1) {
+                list.remove(i);
+                expected.remove(Integer.valueOf(i));
+            }
+        }
+        list.add(1);
+        expected.add(1);
+
+        assertEquals(expected, new ArrayList<Integer>(list.getElements()));
+        assertEquals(expected.size(), list.size());
+        assertTrue(list.contains(1));
+        assertFalse(list.contains(4));
+        assertTrue(list.contains(5));
+    }
+
+    @Test
+    public void testRemoveFirstDuplicate() throws Exception {
+        List<Integer> innerList = new ArrayList<Integer>();
+        innerList.add(1);
+        IndexedList<Integer> list = new IndexedList<Integer>(innerList);
+        list.add(2);
+        list.add(1);
+        list.add(3);
+
+        list.remove(1);
+
+        assertEquals(Arrays.asList(2, 1, 3), new ArrayList<Integer>(list.getElements()));
+        assertTrue(list.contains(1));
+    }
+
+    @Test(timeout = 10000)
+    public void testRemoveManyElements() throws Exception {
+        int count = 200000;
+        IndexedList<Integer> list = new IndexedList<Integer>(new ArrayList<Integer>());
+        for (int i = 0; i < count; i++) {
+            list.add(i);
+        }
+
+        for (int i = 0; i < count; i++) {
+            list.remove(i);
+        }
+
+        assertEquals(0, list.size());
+        assertTrue(list.getElements().isEmpty());
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.fakemongo.impl.index;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link KeyExtractor} and {@link IndexKey}.
+ */
+public class KeyExtractorTest {
+
+  private static final List<DBObject> OBJECTS = Arrays.<DBObject>asList(
+      new BasicDBObject("_id", 1).append("a", 1).append("b", "x"),
+      new BasicDBObject("_id", 2).append("b", "x").append("a", 1L),
+      new BasicDBObject("_id", 3).append("a", null),
+      new BasicDBObject("_id", 4),
+      new BasicDBObject("a", new BasicDBObject("b", 2).append("c", 3)),
+      new BasicDBObject("a", new BasicDBObject("c", 3)),
+      new BasicDBObject("a", 5).append("c", new BasicDBObject("d", new BasicDBObject("e", Arrays.asList(new BasicDBObject(), 1)))),
+      new BasicDBObject("_id", new BasicDBObject("x", 1)).append("a", "y"));
+
+  private static final List<DBObject> PATTERNS = Arrays.<DBObject>asList(
+      new BasicDBObject("a", 1),
+      new BasicDBObject("a", 1).append("b", -1),
+      new BasicDBObject("b", 1).append("_id", 1),
+      new BasicDBObject("_id", 1),
+      new BasicDBObject("a.b", 1).append("a.c", 1),
+      new BasicDBObject("c.d", 1).append("a", 1),
+      new BasicDBObject("c", 1));
+
+  @Test
+  public void should_compiled_key_be_the_same_than_the_projected_key() {
+    for (DBObject pattern : PATTERNS) {
+      final KeyExtractor extractor = new KeyExtractor(pattern.keySet(), projection(pattern));
+      for (DBObject object : OBJECTS) {
+        final IndexKey key = extractor.keyFor(object);
+        final DBObject projected = KeyExtractor.pruneEmptyListObjects(FongoDBCollection.applyProjections(object, projection(pattern)));
+
+        assertThat(key.toString()).as(pattern + " on " + object).isEqualTo(projected.toString());
+        assertThat(key.keySet()).as(pattern + " on " + object).containsExactlyElementsOf(projected.keySet());
+      }
+    }
+  }
+
+  @Test
+  public void should_frozen_keys_hash_and_compare_like_documents() {
+    final Comparator<Object> comparator = new IndexBound.KeyComparator(new ExpressionParser(), true);
+    final KeyExtractor extractor = new KeyExtractor(Arrays.asList("a", "b"), projection(new BasicDBObject("a", 1).append("b", 1)));
+    for (DBObject object0 : OBJECTS) {
+      for (DBObject object1 : OBJECTS) {
+        final IndexKey key0 = extractor.keyFor(object0);
+        final IndexKey key1 = extractor.keyFor(object1);
+        final DBObject document0 = new BasicDBObject(key0.toMap());
+        final DBObject document1 = new BasicDBObject(key1.toMap());
+
+        assertThat(key0.equals(key1)).as(key0 + " equals " + key1).isEqualTo(document0.equals(document1));
+        if (key0.equals(key1)) {
+          assertThat(key0.hashCode()).isEqualTo(key1.hashCode());
+        }
+        assertThat(Integer.signum(comparator.compare(key0, key1))).as(key0 + " compared to " + key1)
+            .isEqualTo(Integer.signum(comparator.compare(document0, document1)));
+      }
+    }
+  }
+
+  @Test
+  public void should_key_be_complete_only_with_a_value_for_each_field() {
+    final KeyExtractor extractor = new KeyExtractor(Arrays.asList("a", "c.d"), projection(new BasicDBObject("a", 1).append("c.d", 1)));
+
+    assertThat(extractor.isComplete(extractor.keyFor(new BasicDBObject("a", 1).append("c", new BasicDBObject("d", 2))))).isTrue();
+    assertThat(extractor.isComplete(extractor.keyFor(new BasicDBObject("a", 1)))).isFalse();
+    assertThat(extractor.isComplete(extractor.keyFor(new BasicDBObject("a", 1).append("c", new BasicDBObject("d", null))))).isFalse();
+    assertThat(extractor.isComplete(extractor.keyFor(new BasicDBObject("a", new BasicDBObject("x", 1)).append("c", new BasicDBObject("d", 2))))).isFalse();
+  }
+
+  private static DBObject projection(DBObject pattern) {
+    // Like the projection of an index : all the fields are included.
+    final DBObject projection = new BasicDBObject();
+    for (String field : pattern.keySet()) {
+      projection.put(field, 1);
+    }
+    if (!pattern.containsField("_id")) {
+      projection.put("_id", 0);
+    }
+    return projection;
+  }
+}